@@ -0,0 +1,369 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Looks up lots of email IDs at once. IDs are read one per line and fetched concurrently through a single
+ * HttpClient, so connections are reused (HTTP/2 where the server speaks it) and no thread waits on a request.
+ * Results come out as soon as each one is done, so they're not in the order the IDs went in.
+ * Pages are scanned for the name as they arrive (see MarkerScanner), and the rest isn't downloaded.
+ * Names found go in a PageCache, so people looked up before are only checked for changes.
+ *
+ * At most maxInFlight lookups run at a time; reading stops until one finishes, so the input can be any size.
+ * Requests to each host are spaced out to perHostRate a second, and ones that fail in a way that might work
+ * next time (connection errors, 429 and 5xx) are tried again after an exponential backoff.
+ * Timings and counts go to LookupMetrics.Shared(); HttpClient doesn't say how long DNS and connecting took,
+ * so those are part of FIRST_BYTE here.
+ */
+public class BulkLookup {
+  // One finished lookup: the name, or why there isn't one
+  public record Result(String id, FetchResult result) {
+  }
+
+  // A response that wasn't worth retrying or reading
+  private static class StatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    StatusException(String message) {
+      super(message);
+    }
+  }
+
+  private static final int MAX_REDIRECTS = 5;
+  private static final long BASE_BACKOFF_MS = 200;
+  private static final long MAX_BACKOFF_MS = 10_000;
+
+  private final String baseUrl;
+  private final int maxInFlight;
+  private final double perHostRate;
+  private final int maxRetries;
+  private final HttpClient client;
+  private final PageCache cache;
+  private final LookupMetrics metrics = LookupMetrics.Shared();
+  private final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+  /**
+   * baseUrl has the ID appended to it. perHostRate is requests per second to any one host; 0 for no limit.
+   */
+  public BulkLookup(String baseUrl, int maxInFlight, double perHostRate, int maxRetries) {
+    this(baseUrl, maxInFlight, perHostRate, maxRetries, PageCache.Shared());
+  }
+
+  /**
+   * cache may be null to always fetch.
+   */
+  public BulkLookup(String baseUrl, int maxInFlight, double perHostRate, int maxRetries, PageCache cache) {
+    this.cache = cache;
+    this.baseUrl = baseUrl;
+    this.maxInFlight = maxInFlight;
+    this.perHostRate = perHostRate;
+    this.maxRetries = maxRetries;
+    this.client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .connectTimeout(Duration.ofSeconds(10))
+        .followRedirects(HttpClient.Redirect.NEVER) // Done by hand, see Fetch()
+        .build();
+  }
+
+  /**
+   * Looks up every ID read from ids, passing each result to out as it comes in. out may be called from
+   * several threads, but never at the same time. Returns once every lookup has finished.
+   */
+  public void Run(BufferedReader ids, Consumer<Result> out) throws IOException, InterruptedException {
+    Semaphore slots = new Semaphore(maxInFlight);
+    Phaser pending = new Phaser(1); // This thread, plus one per lookup still going
+    Consumer<Result> serialised = result -> {
+      synchronized (out) {
+        out.accept(result);
+      }
+    };
+
+    String line;
+    while ((line = ids.readLine()) != null) {
+      String id = line.trim();
+      if (id.isEmpty()) {
+        continue;
+      }
+
+      slots.acquire();
+      pending.register();
+      Lookup(id).whenComplete((result, failure) -> {
+        try {
+          serialised.accept(failure == null ? result : new Result(id, FetchResult.Failed(failure)));
+        } finally {
+          slots.release();
+          pending.arriveAndDeregister();
+        }
+      });
+    }
+
+    pending.arriveAndAwaitAdvance();
+  }
+
+  /**
+   * One ID, with retries. Never completes exceptionally; failures come back as a Result with an error.
+   */
+  public CompletableFuture<Result> Lookup(String id) {
+    // IDs are whatever was in the input, so anything that can't go in a path is escaped
+    String url = baseUrl + URLEncoder.encode(id, StandardCharsets.UTF_8).replace("+", "%20");
+    URI target;
+    try {
+      target = URI.create(url);
+    } catch (IllegalArgumentException e) {
+      // Only a bad baseUrl gets here now
+      return CompletableFuture.completedFuture(
+          new Result(id, metrics.Count(FetchResult.Failed(FetchError.INVALID_URL, e.getMessage()))));
+    }
+    String[] starts = {EmailReader.NAME_START};
+    String[] ends = {EmailReader.NAME_END};
+
+    LookupMetrics.Timer timer = metrics.Start();
+    PageCache.Entry cached = cache == null ? null : cache.Get(url);
+    String[] known = cached == null ? null : cache.Lookup(cached, starts, ends, 1);
+    if (known != null && cache.IsFresh(cached)) {
+      cache.Hit(cached);
+      metrics.CacheHit();
+      timer.Finish();
+      return CompletableFuture.completedFuture(ToResult(id, url, known[0]));
+    }
+
+    PageCache.Entry validator = known != null ? cached : null;
+    return Fetch(target, validator, timer, 0, 0).thenApply(response -> {
+      if (response.statusCode() == 304) {
+        cache.Revalidated(validator);
+        metrics.CacheHit();
+        return ToResult(id, url, known[0]);
+      }
+      MarkerScanner scanner = response.body();
+      metrics.BytesRead(scanner.GetScanned());
+      Store(url, response, scanner);
+      return ToResult(id, url, scanner.Get(0));
+    }).exceptionally(e -> {
+      Throwable cause = Unwrap(e);
+      return new Result(id, cause instanceof StatusException
+          ? FetchResult.Failed(FetchError.HTTP_STATUS, cause.getMessage())
+          : FetchResult.Failed(cause));
+    }).thenApply(result -> {
+      timer.Finish();
+      metrics.Count(result.result());
+      return result;
+    });
+  }
+
+  private static Result ToResult(String id, String url, String name) {
+    return new Result(id, name != null ? FetchResult.Ok(name) : FetchResult.Failed(FetchError.NOT_FOUND, url));
+  }
+
+  // Remembers the name found in response (or that there wasn't one), unless the server said not to
+  private void Store(String url, HttpResponse<MarkerScanner> response, MarkerScanner scanner) {
+    if (cache == null) {
+      return;
+    }
+    if (response.headers().firstValue("Cache-Control").orElse("").contains("no-store")) {
+      cache.Uncached(scanner.GetScanned());
+      return;
+    }
+
+    // The subscriber only stops early once it has the name, so if it's not there the whole page was read
+    Map<String, String> fields = new HashMap<>();
+    fields.put(PageCache.Key(EmailReader.NAME_START, EmailReader.NAME_END), scanner.Get(0));
+    cache.Put(new PageCache.Entry(url, response.headers().firstValue("ETag").orElse(null),
+        response.headers().firstValue("Last-Modified").orElse(null), null, fields, scanner.GetScanned()));
+  }
+
+  /**
+   * Scans a page for the name, following redirects and retrying where it's worth it. If validator is given,
+   * only asks for the page if it's changed since then, and the response may be a 304 with no body.
+   */
+  private CompletableFuture<HttpResponse<MarkerScanner>> Fetch(URI target, PageCache.Entry validator,
+      LookupMetrics.Timer timer, int attempt, int redirects) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(target).timeout(Duration.ofSeconds(30)).GET();
+    if (validator != null && validator.etag != null) {
+      builder.header("If-None-Match", validator.etag);
+    }
+    if (validator != null && validator.lastModified != null) {
+      builder.header("If-Modified-Since", validator.lastModified);
+    }
+    HttpRequest request = builder.build();
+    // Only pages that worked are worth reading
+    HttpResponse.BodyHandler<MarkerScanner> handler = info -> {
+      timer.Mark(LookupPhase.FIRST_BYTE);
+      return info.statusCode() == 200
+          ? new ScanningSubscriber(new MarkerScanner(EmailReader.NAME_START, EmailReader.NAME_END), timer)
+          : HttpResponse.BodySubscribers.replacing(null);
+    };
+
+    return Delayed(RateLimit(target)).thenCompose(ready -> {
+      timer.Skip();
+      return client.sendAsync(request, handler);
+    })
+        .handle((response, failure) -> {
+          if (failure != null) {
+            Throwable cause = Unwrap(failure);
+            if (cause instanceof IOException && attempt < maxRetries) {
+              return Retry(target, validator, timer, attempt, redirects, Backoff(attempt));
+            }
+            return CompletableFuture.<HttpResponse<MarkerScanner>>failedFuture(cause);
+          }
+
+          int status = response.statusCode();
+          if (status == 304 && validator != null) {
+            return CompletableFuture.completedFuture(response);
+          }
+          if (status >= 300 && status < 400 && redirects < MAX_REDIRECTS) {
+            String location = response.headers().firstValue("Location").orElse(null);
+            if (location != null) {
+              URI next = target.resolve(location);
+              // Same as HttpAgent: the site redirects to http, but only answers on https
+              if (target.getScheme().equals("https") && next.getScheme().equals("http")) {
+                next = URI.create("https" + next.toString().substring(4));
+              }
+              metrics.Redirected();
+              return Fetch(next, validator, timer, attempt, redirects + 1);
+            }
+          }
+          if ((status == 429 || status >= 500) && attempt < maxRetries) {
+            long wait = response.headers().firstValueAsLong("Retry-After").orElse(-1);
+            long waitMs = wait >= 0 ? TimeUnit.SECONDS.toMillis(wait) : Backoff(attempt);
+            return Retry(target, validator, timer, attempt, redirects, waitMs);
+          }
+          if (status != 200) {
+            return CompletableFuture.<HttpResponse<MarkerScanner>>failedFuture(
+                new StatusException("HTTP " + status + " from " + target));
+          }
+          return CompletableFuture.completedFuture(response);
+        })
+        .thenCompose(next -> next);
+  }
+
+  private CompletableFuture<HttpResponse<MarkerScanner>> Retry(URI target, PageCache.Entry validator,
+      LookupMetrics.Timer timer, int attempt, int redirects, long waitMs) {
+    metrics.Retried();
+    return Delayed(TimeUnit.MILLISECONDS.toNanos(waitMs))
+        .thenCompose(ready -> Fetch(target, validator, timer, attempt + 1, redirects));
+  }
+
+  // Exponential, with full jitter so a burst of failures doesn't all come back at once
+  private static long Backoff(int attempt) {
+    long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 20));
+    return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+  }
+
+  // Nanoseconds to wait before the next request to target's host is allowed
+  private long RateLimit(URI target) {
+    if (perHostRate <= 0) {
+      return 0;
+    }
+    return limiters.computeIfAbsent(target.getHost(), host -> new RateLimiter(perHostRate)).Reserve();
+  }
+
+  private static CompletableFuture<Void> Delayed(long nanos) {
+    if (nanos <= 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    Executor later = CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS);
+    return CompletableFuture.runAsync(() -> { }, later);
+  }
+
+  // The exception inside the CompletionException wrappers futures put around it
+  private static Throwable Unwrap(Throwable e) {
+    while (e.getCause() != null && (e instanceof java.util.concurrent.CompletionException
+        || e instanceof java.util.concurrent.ExecutionException)) {
+      e = e.getCause();
+    }
+    return e;
+  }
+
+  /**
+   * Feeds a body to a MarkerScanner as it arrives, and cancels the rest of it as soon as the scanner's done.
+   * Times reading the body and scanning it separately.
+   */
+  private static class ScanningSubscriber implements HttpResponse.BodySubscriber<MarkerScanner> {
+    private final MarkerScanner scanner;
+    private final LookupMetrics.Timer timer;
+    private final CompletableFuture<MarkerScanner> done = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+
+    ScanningSubscriber(MarkerScanner scanner, LookupMetrics.Timer timer) {
+      this.scanner = scanner;
+      this.timer = timer;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+      for (ByteBuffer buffer : buffers) {
+        long scanning = System.nanoTime();
+        boolean finished = scanner.Feed(buffer);
+        timer.Extracted(System.nanoTime() - scanning);
+        if (finished) {
+          subscription.cancel();
+          timer.Mark(LookupPhase.BODY);
+          done.complete(scanner);
+          return;
+        }
+      }
+      subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      done.completeExceptionally(error);
+    }
+
+    @Override
+    public void onComplete() {
+      timer.Mark(LookupPhase.BODY);
+      done.complete(scanner);
+    }
+
+    @Override
+    public CompletableFuture<MarkerScanner> getBody() {
+      return done;
+    }
+  }
+
+  /**
+   * Spaces requests to one host evenly. Each request reserves the next free time slot,
+   * so a burst gets queued up behind the others instead of sent all at once.
+   */
+  private static class RateLimiter {
+    private final long interval;
+    private long next = 0;
+
+    RateLimiter(double perSecond) {
+      interval = (long) (1_000_000_000 / perSecond);
+    }
+
+    synchronized long Reserve() {
+      long now = System.nanoTime();
+      long slot = Math.max(now, next);
+      next = slot + interval;
+      return slot - now;
+    }
+  }
+}
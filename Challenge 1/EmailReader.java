@@ -1,13 +1,169 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Scanner;
 
 public class EmailReader {
+  // Where people's pages are, and what's either side of the name on them
+  static final String PEOPLE_URL = "https://www.ecs.soton.ac.uk/people/";
+  static final String NAME_START = " property=\"name\">";
+  static final String NAME_END = "<em property=";
+
+  static final String USAGE = "Usage: java EmailReader [--cache=DIR] [--ttl=MINUTES]\n"
+      + "       java EmailReader --bulk [--concurrency=N] [--rate=N] [--retries=N] [--base=URL] [--metrics=SECONDS]"
+      + " [--cache=DIR] [--ttl=MINUTES] [FILE]";
+
   public static String GetNameFromEmail(String emailId) {
-    HttpAgent agent = new HttpAgent("https://www.ecs.soton.ac.uk/people/" + emailId);
+    HttpAgent agent = new HttpAgent(PEOPLE_URL + emailId);
+
+    // Stops reading the page as soon as the name's been found, wherever it is
+    return agent.FindOutput(NAME_START, NAME_END);
+  }
+
+  /**
+   * Looks up a whole file of IDs (one per line; - or nothing for stdin), printing "id<TAB>name" for each
+   * as it comes in. Options: --concurrency=N lookups at once, --rate=N requests a second per host,
+   * --retries=N, --base=URL to look IDs up somewhere other than PEOPLE_URL, and --metrics=SECONDS to
+   * print LookupMetrics every so often. See also UseCache().
+   */
+  public static void RunBulk(String[] args) throws IOException, InterruptedException {
+    String file = "-";
+    String base = PEOPLE_URL;
+    int concurrency = 16;
+    double rate = 10;
+    int retries = 3;
+    long metricsEvery = 0;
+
+    try {
+      for (int i = 1; i < args.length; i++) {
+        String arg = args[i];
+        if (arg.startsWith("--concurrency=")) {
+          concurrency = (int) WholeNumber(arg, 1, Integer.MAX_VALUE);
+        } else if (arg.startsWith("--rate=")) {
+          rate = Rate(arg);
+        } else if (arg.startsWith("--retries=")) {
+          retries = (int) WholeNumber(arg, 0, Integer.MAX_VALUE);
+        } else if (arg.startsWith("--base=")) {
+          base = arg.substring("--base=".length());
+        } else if (arg.startsWith("--metrics=")) {
+          metricsEvery = WholeNumber(arg, 0, Long.MAX_VALUE);
+        } else if (arg.startsWith("--cache=") || arg.startsWith("--ttl=")) {
+          continue; // See UseCache()
+        } else if (arg.startsWith("--")) {
+          throw new IllegalArgumentException("Unknown option " + arg);
+        } else {
+          file = arg;
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      PrintUsage(e.getMessage());
+      return;
+    }
+
+    BulkLookup lookup = new BulkLookup(base, concurrency, rate, retries);
+    BufferedReader ids = new BufferedReader(file.equals("-")
+        ? new InputStreamReader(System.in) : new FileReader(file));
+
+    if (metricsEvery > 0) {
+      LookupMetrics.Shared().StartLogging(Duration.ofSeconds(metricsEvery), System.err);
+    }
+
+    long started = System.nanoTime();
+    int[] counts = new int[2]; // Found, failed
+    try (ids) {
+      lookup.Run(ids, result -> {
+        FetchResult found = result.result();
+        if (found.IsOk()) {
+          System.out.println(result.id() + "\t" + found.GetValue());
+          counts[0]++;
+        } else {
+          System.out.println(result.id() + "\t" + found);
+          counts[1]++;
+        }
+        System.out.flush();
+      });
+    }
 
-    return agent.GetOutput(84, " property=\"name\">", "<em property=");
+    System.err.printf("(INFO) %d found, %d failed in %.1fs%n",
+        counts[0], counts[1], (System.nanoTime() - started) / 1e9);
+    LookupMetrics.Shared().StopLogging();
+    System.err.println("(INFO) " + LookupMetrics.Shared().getSummary());
+    System.err.println("(INFO) Cache: " + PageCache.Shared().Stats());
   }
 
-  public static void main(String[] args) {
+  /**
+   * Sets up the shared cache from --cache=DIR (keep lookups on disk there, between runs)
+   * and --ttl=MINUTES (how long before checking a page again; 10 by default).
+   * Returns false, having said what's wrong, if they don't make sense.
+   */
+  public static boolean UseCache(String[] args) {
+    Path dir = null;
+    long ttl = 10;
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("--cache=")) {
+          dir = Path.of(arg.substring("--cache=".length()));
+        } else if (arg.startsWith("--ttl=")) {
+          ttl = WholeNumber(arg, 0, Long.MAX_VALUE / 60_000);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      PrintUsage(e.getMessage()); // InvalidPathException is one too
+      return false;
+    }
+    PageCache.SetShared(new PageCache(16 << 20, Duration.ofMinutes(ttl), dir));
+    return true;
+  }
+
+  // The number after the = in arg, which has to be from min to max. Throws IllegalArgumentException if it isn't.
+  private static long WholeNumber(String arg, long min, long max) {
+    String option = arg.substring(0, arg.indexOf('='));
+    String value = arg.substring(option.length() + 1);
+    try {
+      long number = Long.parseLong(value);
+      if (number >= min && number <= max) {
+        return number;
+      }
+    } catch (NumberFormatException e) {
+      // Same message as one out of range
+    }
+    // max is only there to stop it overflowing, so isn't worth mentioning
+    throw new IllegalArgumentException(option + " needs a whole number of at least " + min + ", not '" + value + "'");
+  }
+
+  // --rate=N: requests a second, 0 for no limit
+  private static double Rate(String arg) {
+    String value = arg.substring("--rate=".length());
+    try {
+      double rate = Double.parseDouble(value);
+      if (rate >= 0 && rate < Double.POSITIVE_INFINITY) {
+        return rate;
+      }
+    } catch (NumberFormatException e) {
+      // Same message as a negative one
+    }
+    throw new IllegalArgumentException("--rate needs a number of requests a second (0 for no limit), not '"
+        + value + "'");
+  }
+
+  private static void PrintUsage(String problem) {
+    System.err.println("(ERROR) " + problem);
+    System.err.println("(INFO) " + USAGE);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (!UseCache(args)) {
+      return;
+    }
+    LookupMetrics.Shared().Register();
+    if (args.length > 0 && args[0].equals("--bulk")) {
+      RunBulk(args);
+      return;
+    }
+
     System.out.print("Enter an email ID >> ");
     Scanner scanner = new Scanner(System.in);
     String email = scanner.nextLine();
@@ -0,0 +1,42 @@
+/**
+ * Why a lookup didn't produce anything. message goes after "(ERROR) " in the strings the older methods return.
+ */
+public enum FetchError {
+  INVALID_URL("No output. URL may be invalid."),
+  DNS("No output. Couldn't find the server."),
+  CONNECT("No output. Couldn't connect to the server."), // Includes the TLS handshake
+  TIMEOUT("No output. The server took too long to answer."),
+  HTTP_STATUS("No output. The server returned an error."),
+  IO("No output. Reading the page failed."),
+  NO_OUTPUT("No output. The page was empty."), // Read fine, but there was nothing in it
+  LINE_OUT_OF_RANGE("Line index out of range."),
+  NOT_FOUND("Start/end not found.");
+
+  public final String message;
+
+  FetchError(String message) {
+    this.message = message;
+  }
+
+  /**
+   * Which kind of failure an exception from fetching a page means.
+   */
+  public static FetchError Of(Throwable e) {
+    // HttpClient reports a host it can't find as a ConnectException, with the real reason as its cause
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof java.net.UnknownHostException
+          || cause instanceof java.nio.channels.UnresolvedAddressException) {
+        return DNS;
+      }
+    }
+    if (e instanceof java.net.MalformedURLException || e instanceof IllegalArgumentException) {
+      return INVALID_URL;
+    } else if (e instanceof java.net.SocketTimeoutException || e instanceof java.net.http.HttpTimeoutException) {
+      return TIMEOUT;
+    } else if (e instanceof java.net.ConnectException || e instanceof java.net.NoRouteToHostException
+        || e instanceof javax.net.ssl.SSLException) {
+      return CONNECT;
+    }
+    return IO;
+  }
+}
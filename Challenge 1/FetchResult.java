@@ -0,0 +1,57 @@
+/**
+ * What a lookup found: either a value, or why there isn't one. Replaces checking for "(ERROR)" strings,
+ * though toString() still gives one of those, for the old methods to return.
+ */
+public final class FetchResult {
+  private final String value;
+  private final FetchError error;
+  private final String detail;
+
+  private FetchResult(String value, FetchError error, String detail) {
+    this.value = value;
+    this.error = error;
+    this.detail = detail;
+  }
+
+  public static FetchResult Ok(String value) {
+    return new FetchResult(value, null, null);
+  }
+
+  /**
+   * detail says more about what went wrong, like the status code; may be null.
+   */
+  public static FetchResult Failed(FetchError error, String detail) {
+    return new FetchResult(null, error, detail);
+  }
+
+  public static FetchResult Failed(Throwable e) {
+    return Failed(FetchError.Of(e), e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+  }
+
+  public boolean IsOk() {
+    return error == null;
+  }
+
+  // null if it failed
+  public String GetValue() {
+    return value;
+  }
+
+  // null if it worked
+  public FetchError GetError() {
+    return error;
+  }
+
+  public String GetDetail() {
+    return detail;
+  }
+
+  // The value, or the error as an "(ERROR) ..." string, with the detail if there is one
+  @Override
+  public String toString() {
+    if (IsOk()) {
+      return value;
+    }
+    return "(ERROR) " + error.message + (detail == null ? "" : " (" + detail + ")");
+  }
+}
@@ -1,21 +1,54 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
  * Generalised agent to pull HTTP requests and do basic processing.
+ * Pages and fields found in them are kept in a PageCache, shared between agents unless given another.
+ * How long everything takes, and what went wrong, goes to LookupMetrics.Shared().
+ *
+ * The Get/FindResult methods say what went wrong with a FetchResult; the older Get/FindOutput methods
+ * return the same thing as a string, with "(ERROR) ..." if it failed.
  */
 public class HttpAgent {
+  // What a "moved" page says just before and after where it's moved to
+  private static final String MOVED_START = "document has moved <a href=\"";
+  private static final String MOVED_END = "\">here</a>";
+  private static final int MAX_REDIRECTS = 5;
+
   private String target;
   private List<String> output;
   private boolean pullSuccess;
+  private FetchResult failure; // Why the last fetch didn't work
+  private final PageCache cache;
+  private final LookupMetrics metrics = LookupMetrics.Shared();
+  private boolean revalidate; // Check with the server even if the cache thinks it's fresh
 
   public HttpAgent(String trg) {
+    this(trg, PageCache.Shared());
+  }
+
+  /**
+   * An agent using cache, or no cache at all if it's null.
+   */
+  public HttpAgent(String trg, PageCache cache) {
     // Initialise target but don't fetch until it's needed.
     target = trg;
+    this.cache = cache;
   }
 
   /**
@@ -25,32 +58,33 @@ public class HttpAgent {
   private void FetchOutput() {
     List<String> out;
 
-    try {
-      // Open URL using BufferedReader
-      URL url = new URL(target);
-      BufferedReader in = new BufferedReader(new InputStreamReader(url.openStream()));
-
-      out = in.lines().collect(Collectors.toList());
-    } catch (IOException e) {
+    LookupMetrics.Timer timer = metrics.Start();
+    byte[] page = FetchPage(target, timer);
+    if (page == null) {
       // If error in reader, returns with pullSuccess false (so GetOutput will fail)
+      timer.Finish();
       return;
     }
 
+    BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(page)));
+    out = in.lines().collect(Collectors.toList());
+    timer.Mark(LookupPhase.EXTRACT);
+    timer.Finish();
+
     output = out;
     pullSuccess = true;
 
     // Basic functionality to handle redirects
-    // This string will be an error if not redirect
-    // Need to manually upgrade to https because the site doesn't respond on http
-    String possibleRedirect = GetOutput(
-        5, "document has moved <a href=\"", "\">here</a>"
-    ).replace("http://", "https://");
+    // This will be an error if not redirect
+    FetchResult possibleRedirect = Extract(output, 5, MOVED_START, MOVED_END);
 
     // If it contains an ecs.soton link on this line, it's almost 100% chance to be a redirect
-    if (possibleRedirect.contains("ecs.soton")) {
+    if (possibleRedirect.IsOk() && possibleRedirect.GetValue().contains("ecs.soton")) {
       // If the redirect exists, fetch again after updating target.
-      System.out.println("(WARN) Redirected to " + possibleRedirect);
-      target = possibleRedirect;
+      // Need to manually upgrade to https because the site doesn't respond on http
+      target = possibleRedirect.GetValue().replace("http://", "https://");
+      System.out.println("(WARN) Redirected to " + target);
+      metrics.Redirected();
       ForceFetchOutput();
     }
   }
@@ -58,63 +92,341 @@ public class HttpAgent {
   /**
    * Forces the agent to fetch everything again. Public, unlike FetchOutput().
    * Usually not required unless the webpage changes constantly.
-   * Clears the output list before re-fetching.
+   * Clears the output list before re-fetching. A cached page is still used if the server says it hasn't changed.
    */
   public void ForceFetchOutput() {
     pullSuccess = false;
     output.clear();
 
+    revalidate = true;
     FetchOutput();
+    revalidate = false;
+  }
+
+  /**
+   * The whole page at url, from the cache if it's fresh or the server says it hasn't changed.
+   * null if it can't be read, with failure saying why.
+   */
+  private byte[] FetchPage(String url, LookupMetrics.Timer timer) {
+    PageCache.Entry cached = cache == null ? null : cache.Get(url);
+    if (cached != null && !cached.HasBody()) {
+      cached = null; // Only has a few fields, and a 304 wouldn't tell us the rest
+    }
+    if (cached != null && !revalidate && cache.IsFresh(cached)) {
+      cache.Hit(cached);
+      metrics.CacheHit();
+      return cached.body;
+    }
+
+    try {
+      URLConnection connection = Connect(url, cached, timer);
+      if (NotModified(connection)) {
+        cache.Revalidated(cached);
+        metrics.CacheHit();
+        return cached.body;
+      }
+      if (!StatusOk(connection)) {
+        return null;
+      }
+
+      byte[] page;
+      try (InputStream in = connection.getInputStream()) {
+        page = in.readAllBytes();
+      }
+      timer.Mark(LookupPhase.BODY);
+      metrics.BytesRead(page.length);
+      Store(url, connection, page, new HashMap<>(), page.length);
+      return page;
+    } catch (IOException e) {
+      failure = FetchResult.Failed(e);
+      return null;
+    }
   }
 
   /**
    * Returns an entire line from the fetched data.
    */
   public String GetOutput(int line) {
+    return GetResult(line).toString();
+  }
+
+  /**
+   * GetOutput(), saying what went wrong as a FetchResult instead of a string.
+   */
+  public FetchResult GetResult(int line) {
     // Pull if not pulled already
     if (!pullSuccess) {
       FetchOutput();
     }
 
     // Test if output exists and has been pulled
-    if (pullSuccess && output.size() > 0) {
+    if (!pullSuccess) {
+      return metrics.Count(failure);
+    } else if (output.size() > 0) {
       // Make sure the requested line is within bounds
       if (line < output.size()) {
-        return output.get(line);
+        return metrics.Count(FetchResult.Ok(output.get(line)));
       } else {
-        return "(ERROR) Line index out of range.";
+        return metrics.Count(FetchResult.Failed(FetchError.LINE_OUT_OF_RANGE, "line " + line));
       }
     } else {
-      return "(ERROR) No output. URL may be invalid.";
+      return metrics.Count(FetchResult.Failed(FetchError.NO_OUTPUT, target));
+    }
+  }
+
+  /**
+   * Finds the text between start and end anywhere in the page, reading only as far as it has to:
+   * the connection is closed as soon as it turns up. Doesn't use or fill the output GetOutput() uses,
+   * but does use the cache, which remembers what was found.
+   */
+  public String FindOutput(String start, String end) {
+    return FindResult(start, end).toString();
+  }
+
+  public FetchResult FindResult(String start, String end) {
+    return FindResults(new String[] {start}, new String[] {end})[0];
+  }
+
+  /**
+   * FindOutput() for several fields at once, in one pass over the page; starts[i] and ends[i] go together.
+   * Stops reading once all of them have been found.
+   */
+  public String[] FindOutputs(String[] starts, String[] ends) {
+    return Arrays.stream(FindResults(starts, ends)).map(FetchResult::toString).toArray(String[]::new);
+  }
+
+  public FetchResult[] FindResults(String[] starts, String[] ends) {
+    FetchResult[] results = new FetchResult[starts.length];
+
+    // The redirect check goes in as one extra field on the end
+    String[] allStarts = Arrays.copyOf(starts, starts.length + 1);
+    String[] allEnds = Arrays.copyOf(ends, ends.length + 1);
+    allStarts[starts.length] = MOVED_START;
+    allEnds[ends.length] = MOVED_END;
+
+    String url = target;
+    for (int redirects = 0; ; redirects++) {
+      LookupMetrics.Timer timer = metrics.Start();
+      String[] found = FindAt(url, allStarts, allEnds, starts.length, timer);
+      timer.Finish();
+      if (found == null) {
+        for (int i = 0; i < starts.length; i++) {
+          results[i] = metrics.Count(failure);
+        }
+        return results;
+      }
+
+      // Same as FetchOutput(): if it's moved somewhere on ecs.soton, go there instead (on https)
+      String moved = found[starts.length];
+      if (moved != null && moved.contains("ecs.soton") && redirects < MAX_REDIRECTS) {
+        url = moved.replace("http://", "https://");
+        System.out.println("(WARN) Redirected to " + url);
+        metrics.Redirected();
+        continue;
+      }
+
+      for (int i = 0; i < starts.length; i++) {
+        results[i] = metrics.Count(found[i] != null
+            ? FetchResult.Ok(found[i])
+            : FetchResult.Failed(FetchError.NOT_FOUND, url));
+      }
+      return results;
+    }
+  }
+
+  /**
+   * The fields between starts and ends at url (null for ones that aren't there), from the cache if it can.
+   * Otherwise streams the page until the first wanted fields are found, or one after those is, or it ends.
+   * Returns null if it couldn't be read at all, with failure saying why.
+   */
+  private String[] FindAt(String url, String[] starts, String[] ends, int wanted, LookupMetrics.Timer timer) {
+    PageCache.Entry cached = cache == null ? null : cache.Get(url);
+    String[] known = cached == null ? null : cache.Lookup(cached, starts, ends, wanted);
+    if (known != null && !revalidate && cache.IsFresh(cached)) {
+      cache.Hit(cached);
+      metrics.CacheHit();
+      return known;
     }
+
+    URLConnection connection = null;
+    boolean stoppedEarly = false;
+    try {
+      // Only worth asking if it's changed if the cache knows the answer when it hasn't
+      connection = Connect(url, known != null ? cached : null, timer);
+      if (NotModified(connection)) {
+        cache.Revalidated(cached);
+        metrics.CacheHit();
+        return known;
+      }
+      if (!StatusOk(connection)) {
+        return null;
+      }
+
+      MarkerScanner scanner = new MarkerScanner(starts, ends);
+      try (InputStream in = connection.getInputStream()) {
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+          long scanning = System.nanoTime();
+          scanner.Feed(buffer, 0, count);
+          timer.Extracted(System.nanoTime() - scanning);
+          if (AllFound(scanner, wanted) || scanner.Found(wanted)) {
+            stoppedEarly = true;
+            break;
+          }
+        }
+      }
+      timer.Mark(LookupPhase.BODY);
+      metrics.BytesRead(scanner.GetScanned());
+
+      // Remember what was found, and what definitely isn't there if the whole page was read
+      String[] values = new String[starts.length];
+      Map<String, String> fields = new HashMap<>();
+      for (int i = 0; i < starts.length; i++) {
+        values[i] = scanner.Get(i);
+        if (values[i] != null || !stoppedEarly) {
+          fields.put(PageCache.Key(starts[i], ends[i]), values[i]);
+        }
+      }
+      Store(url, connection, null, fields, scanner.GetScanned());
+      return values;
+    } catch (IOException e) {
+      failure = FetchResult.Failed(e);
+      return null;
+    } finally {
+      // Otherwise closing the stream reads the rest of the page anyway, to keep the connection alive
+      if (stoppedEarly && connection instanceof HttpURLConnection http) {
+        http.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Opens url and waits for the response to start, timing each step. Asks only for changes since
+   * cached if there is one. Through a proxy, the proxy looks the host up, so DNS counts as part of CONNECT.
+   */
+  private static URLConnection Connect(String url, PageCache.Entry cached, LookupMetrics.Timer timer)
+      throws IOException {
+    URL location = new URL(url);
+    if (location.getHost() != null && !location.getHost().isEmpty() && Direct(location)) {
+      // The JVM keeps the answer, so connecting won't look it up again
+      InetAddress.getAllByName(location.getHost());
+      timer.Mark(LookupPhase.DNS);
+    }
+
+    URLConnection connection = location.openConnection();
+    if (cached != null) {
+      if (cached.etag != null) {
+        connection.setRequestProperty("If-None-Match", cached.etag);
+      }
+      if (cached.lastModified != null) {
+        connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+      }
+    }
+    connection.connect();
+    timer.Mark(LookupPhase.CONNECT);
+
+    if (connection instanceof HttpURLConnection http) {
+      http.getResponseCode();
+      timer.Mark(LookupPhase.FIRST_BYTE);
+    }
+    return connection;
+  }
+
+  // Whether url is fetched without a proxy, so we look its host up ourselves
+  private static boolean Direct(URL url) {
+    ProxySelector selector = ProxySelector.getDefault();
+    if (selector == null) {
+      return true;
+    }
+    try {
+      return selector.select(url.toURI()).stream().allMatch(proxy -> proxy.type() == Proxy.Type.DIRECT);
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return false; // Let the connection sort it out
+    }
+  }
+
+  private static boolean NotModified(URLConnection connection) throws IOException {
+    return connection instanceof HttpURLConnection http
+        && http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+  }
+
+  // Whether the response is worth reading, setting failure if it isn't
+  private boolean StatusOk(URLConnection connection) throws IOException {
+    if (connection instanceof HttpURLConnection http && http.getResponseCode() >= 400) {
+      failure = FetchResult.Failed(FetchError.HTTP_STATUS, "HTTP " + http.getResponseCode() + " from " + http.getURL());
+      return false;
+    }
+    return true;
+  }
+
+  // Puts what was just read from connection in the cache, unless the server said not to
+  private void Store(String url, URLConnection connection, byte[] page, Map<String, String> fields, long read) {
+    if (cache == null) {
+      return;
+    }
+    String control = connection.getHeaderField("Cache-Control");
+    if (control != null && control.contains("no-store")) {
+      cache.Uncached(read);
+      return;
+    }
+    cache.Put(new PageCache.Entry(url, connection.getHeaderField("ETag"),
+        connection.getHeaderField("Last-Modified"), page, fields, read));
+  }
+
+  private static boolean AllFound(MarkerScanner scanner, int fields) {
+    for (int i = 0; i < fields; i++) {
+      if (!scanner.Found(i)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
    * Gets given line then splits it by start and end, returning the inside result.
    */
   public String GetOutput(int line, String start, String end) {
+    return GetResult(line, start, end).toString();
+  }
+
+  public FetchResult GetResult(int line, String start, String end) {
     // Pull if not pulled already
     if (!pullSuccess) {
       FetchOutput();
     }
 
-    // Test if output exists and has been pulled
-    if (pullSuccess && output.size() > 0) {
+    // Test if output has been pulled
+    if (pullSuccess) {
+      return metrics.Count(Extract(output, line, start, end));
+    } else {
+      return metrics.Count(failure);
+    }
+  }
+
+  /**
+   * The part of the given line of a page between start and end.
+   */
+  public static FetchResult Extract(List<String> page, int line, String start, String end) {
+    // Test if there's any output
+    if (page.size() > 0) {
       // Make sure the requested line is within bounds
-      if (line < output.size()) {
+      if (line < page.size()) {
         // Ensure both start and end exist in the requested line
-        String lineGet = output.get(line);
-        if (lineGet.contains(start) && lineGet.contains(end)) {
-          return lineGet.split(start)[1].split(end)[0];
+        String lineGet = page.get(line);
+        int from = lineGet.indexOf(start);
+        int to = from < 0 ? -1 : lineGet.indexOf(end, from + start.length());
+        if (from >= 0 && to >= 0) {
+          return FetchResult.Ok(lineGet.substring(from + start.length(), to));
         }
         else {
-          return "(ERROR) Start/end not found.";
+          return FetchResult.Failed(FetchError.NOT_FOUND, "line " + line);
         }
       } else {
-        return "(ERROR) Line index out of range.";
+        return FetchResult.Failed(FetchError.LINE_OUT_OF_RANGE, "line " + line);
       }
     } else {
-      return "(ERROR) No output. URL may be invalid.";
+      return FetchResult.Failed(FetchError.NO_OUTPUT, null);
     }
   }
 }
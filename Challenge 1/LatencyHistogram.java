@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations into log-linear buckets, like an HdrHistogram: every power of two is split into
+ * 32 equal buckets, so any value reported is within about 3% of the real one, from nanoseconds up
+ * to centuries, in a fixed 15KB. Recording is lock-free and safe from any thread.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 5;
+  private static final int SUB = 1 << SUB_BITS;
+  // 0 to SUB - 1 get a bucket each; after that, SUB buckets for each power of two up to Long.MAX_VALUE's
+  static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void Record(long nanos) {
+    nanos = Math.max(0, nanos);
+    counts.incrementAndGet(Index(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+
+  public long GetCount() {
+    return count.get();
+  }
+
+  public long GetMax() {
+    return max.get();
+  }
+
+  public double GetMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * The value percentile percent of recordings were at or below (0 to 100), give or take a bucket.
+   * 0 if nothing's been recorded.
+   */
+  public long GetPercentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+
+    long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= wanted) {
+        return Math.min(Highest(i), max.get());
+      }
+    }
+    return max.get(); // Only if recordings came in while counting
+  }
+
+  public void Reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  static int Index(long value) {
+    if (value < SUB) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return SUB + shift * SUB + (int) (value >>> shift) - SUB;
+  }
+
+  // The biggest value that goes in bucket index
+  static long Highest(int index) {
+    if (index < SUB) {
+      return index;
+    }
+    int shift = (index - SUB) / SUB;
+    long lowest = (long) (SUB + (index - SUB) % SUB) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
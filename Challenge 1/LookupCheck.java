@@ -0,0 +1,381 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runs BulkLookup and HttpAgent against a stub server on localhost, which answers like the people pages do,
+ * and checks retries, redirects, 404s and revalidating cached pages with a 304. Nothing goes over the network.
+ * Checks the histograms and metrics they report to, and the scanner they find names with, first.
+ * Exits with status 1 if anything's wrong, so it can gate a build.
+ *
+ * Usage: java LookupCheck
+ */
+public class LookupCheck {
+  private static final String NAME = "Alice Smith";
+  private static final String PAGE = "<html><h1" + EmailReader.NAME_START + NAME + EmailReader.NAME_END
+      + "\"honorificSuffix\"></em></h1></html>";
+  private static final String ETAG = "\"a1\"";
+  private static final int PADDING = 4 << 20; // After the name on the padded page
+
+  private static final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>(); // By path
+  private static final AtomicInteger notModified = new AtomicInteger();
+  private static int failures = 0;
+
+  public static void main(String[] args) throws IOException, InterruptedException, JMException {
+    CheckHistogram();
+    CheckMetrics();
+    CheckScanner();
+
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", LookupCheck::Answer);
+    server.start();
+    String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/people/";
+
+    try {
+      CheckBulk(base);
+      CheckAgent(base);
+    } finally {
+      server.stop(0);
+    }
+
+    if (failures > 0) {
+      System.exit(1);
+    }
+    System.exit(0); // HttpClient's threads would keep it going a while
+  }
+
+  private static void CheckHistogram() {
+    // Every value goes in a bucket that starts at or below it and ends less than 1/32 (about 3%) above it
+    Random random = new Random(1);
+    String wrong = null;
+    for (int i = 0; i < 200_000 && wrong == null; i++) {
+      long value = i < 100_000 ? i : random.nextLong() >>> (1 + random.nextInt(63));
+      int index = LatencyHistogram.Index(value);
+      long highest = LatencyHistogram.Highest(index);
+      boolean ok = index >= 0 && index < LatencyHistogram.BUCKETS && highest >= value && highest - value <= value / 32
+          && (index == 0 || LatencyHistogram.Highest(index - 1) < value);
+      wrong = ok ? null : value + " in bucket " + index + " up to " + highest;
+    }
+    Check("histogram buckets are within 3%", wrong == null, wrong);
+
+    int top = LatencyHistogram.Index(Long.MAX_VALUE);
+    Check("histogram's top bucket is its last", top == LatencyHistogram.BUCKETS - 1
+        && LatencyHistogram.Highest(top) == Long.MAX_VALUE && LatencyHistogram.Index(Long.MAX_VALUE / 2 + 1) < top,
+        "bucket " + top + " of " + LatencyHistogram.BUCKETS + " up to " + LatencyHistogram.Highest(top));
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    Check("empty histogram says 0", histogram.GetPercentile(50) == 0 && histogram.GetMean() == 0,
+        histogram.GetPercentile(50));
+    for (long value = 1000; value >= 1; value--) {
+      histogram.Record(value * 1000);
+    }
+    long median = histogram.GetPercentile(50);
+    long p99 = histogram.GetPercentile(99);
+    Check("histogram walks to its percentiles", median >= 500_000 && median <= 500_000 * 33 / 32
+        && p99 >= 990_000 && p99 <= 990_000 * 33 / 32 && histogram.GetPercentile(0) <= 1000 * 33 / 32
+        && histogram.GetPercentile(100) == 1_000_000 && histogram.GetMean() == 500_500,
+        median + " and " + p99);
+
+    histogram.Record(-5); // A clock going backwards counts as 0
+    histogram.Reset();
+    histogram.Record(7);
+    Check("histogram starts again after Reset()", histogram.GetCount() == 1 && histogram.GetPercentile(99) == 7
+        && histogram.GetMax() == 7, histogram.GetCount() + " recorded, max " + histogram.GetMax());
+  }
+
+  private static void CheckMetrics() throws JMException, InterruptedException {
+    LookupMetrics metrics = new LookupMetrics();
+    metrics.Count(FetchResult.Failed(FetchError.DNS, "nowhere"));
+    metrics.Count(FetchResult.Failed(FetchError.HTTP_STATUS, "HTTP 500"));
+    metrics.Count(FetchResult.Failed(FetchError.HTTP_STATUS, "HTTP 404"));
+    metrics.Retried();
+    metrics.BytesRead(1234);
+    metrics.GetHistogram(LookupPhase.CONNECT).Record(2_000_000);
+    metrics.GetHistogram(LookupPhase.CONNECT).Record(2_000_000);
+
+    String summary = metrics.getSummary();
+    String expected = "Lookups: 0 ok, 3 failed (DNS 1, HTTP_STATUS 2), 0 cached, 0 redirects, 1 retries, "
+        + "1234 bytes read | p50/p99 ms: connect " + String.format("%.1f/%.1f", 2.0, 2.0);
+    Check("metrics summarise themselves", summary.equals(expected), summary);
+
+    // What jconsole would see
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("EmailReader:type=LookupMetrics");
+    metrics.Register();
+    metrics.Register(); // Twice does no harm
+    try {
+      Check("metrics show over JMX", Long.valueOf(3).equals(server.getAttribute(name, "Failures"))
+          && expected.equals(server.getAttribute(name, "Summary"))
+          && metrics.getMedianMillis().get("CONNECT") == 2.0 && metrics.getFailuresByType().get("DNS") == 1,
+          server.getAttribute(name, "Failures") + ", " + metrics.getMedianMillis());
+      server.invoke(name, "reset", null, null);
+      Check("metrics reset over JMX", metrics.getFailures() == 0 && metrics.GetRetries() == 0
+          && metrics.GetHistogram(LookupPhase.CONNECT).GetCount() == 0, metrics.getSummary());
+    } finally {
+      server.unregisterMBean(name);
+    }
+
+    ByteArrayOutputStream logged = new ByteArrayOutputStream();
+    metrics.StartLogging(Duration.ofMillis(10), new PrintStream(logged, true, StandardCharsets.UTF_8));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (logged.size() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    metrics.StopLogging();
+    String line = logged.toString(StandardCharsets.UTF_8);
+    Check("metrics log a summary", line.startsWith("(INFO) Lookups: 0 ok, 0 failed, "), line);
+  }
+
+  private static void CheckScanner() {
+    // Markers and values with characters that take more than one byte, split across two reads at every point
+    String start = "<h1 \u00ab";
+    String end = "\u00bb</h1>";
+    String value = "Jos\u00e9 \u00d1u\u00f1ez \u20ac";
+    byte[] page = ("<html>\u00ab" + start + value + end + "</html>").getBytes(StandardCharsets.UTF_8);
+    int found = page.length - "</html>".length(); // Where everything's been seen
+    String wrong = null;
+    for (int split = 0; split <= page.length && wrong == null; split++) {
+      MarkerScanner scanner = new MarkerScanner(new String[] {start, "<html>"}, new String[] {end, "\u00ab"});
+      boolean early = scanner.Feed(page, 0, split);
+      boolean done = scanner.Feed(ByteBuffer.wrap(page, split, page.length - split));
+      boolean ok = early == (split >= found) && done && value.equals(scanner.Get(0)) && "".equals(scanner.Get(1))
+          && scanner.GetScanned() == page.length;
+      wrong = ok ? null : "split at " + split + ": " + scanner.Get(0) + " and " + scanner.Get(1);
+    }
+    Check("scanner finds markers split across reads", wrong == null, wrong);
+
+    MarkerScanner scanner = new MarkerScanner(start, end);
+    for (byte b : page) {
+      scanner.Feed(new byte[] {b}, 0, 1);
+    }
+    Check("scanner finds markers a byte at a time", value.equals(scanner.Get(0)), scanner.Get(0));
+
+    // A start marker whose end never turns up is given up on, and the next one's used
+    scanner = new MarkerScanner("<b>", "</b>");
+    byte[] junk = "x".repeat(MarkerScanner.MAX_FIELD + 1).getBytes(StandardCharsets.UTF_8);
+    scanner.Feed("<b>".getBytes(StandardCharsets.UTF_8), 0, 3);
+    scanner.Feed(junk, 0, junk.length);
+    boolean done = scanner.Feed(ByteBuffer.wrap("<b>Bob</b>".getBytes(StandardCharsets.UTF_8)));
+    Check("scanner gives up on a field that doesn't end", done && "Bob".equals(scanner.Get(0)),
+        scanner.Get(0) == null ? null : scanner.Get(0).length() + " chars");
+
+    scanner = new MarkerScanner("<b>", "</b>");
+    scanner.Feed("<b>".getBytes(StandardCharsets.UTF_8), 0, 3);
+    for (int i = 0; i < 100; i++) {
+      scanner.Feed(junk, 0, junk.length);
+    }
+    Check("scanner never finds an end that never comes", !scanner.Done() && scanner.Get(0) == null
+        && scanner.GetScanned() == 3 + 100L * junk.length, scanner.Get(0));
+  }
+
+  /**
+   * The stub server. alice is a page with a name on it and an ETag; the others each fail in their own way.
+   */
+  private static void Answer(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    int count = requests.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+
+    switch (path) {
+      case "/people/alice" -> {
+        if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          notModified.incrementAndGet();
+          Send(exchange, 304, null);
+        } else {
+          exchange.getResponseHeaders().set("ETag", ETAG);
+          Send(exchange, 200, PAGE);
+        }
+      }
+      case "/people/flaky" -> {
+        // Down the first time only
+        exchange.getResponseHeaders().set("Retry-After", "0");
+        Send(exchange, count == 1 ? 503 : 200, count == 1 ? "busy" : PAGE);
+      }
+      case "/people/down" -> {
+        exchange.getResponseHeaders().set("Retry-After", "0");
+        Send(exchange, 500, "broken");
+      }
+      case "/people/moved" -> {
+        exchange.getResponseHeaders().set("Location", "/people/alice");
+        Send(exchange, 302, null);
+      }
+      case "/people/anon" -> Send(exchange, 200, "<html>Nobody here</html>");
+      case "/people/padded" -> Send(exchange, 200, PAGE + " ".repeat(PADDING));
+      default -> Send(exchange, 404, "not found");
+    }
+  }
+
+  private static void Send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static int Requests(String id) {
+    AtomicInteger count = requests.get("/people/" + id);
+    return count == null ? 0 : count.get();
+  }
+
+  private static void CheckBulk(String base) throws IOException, InterruptedException {
+    // A ttl of 0 means every lookup after the first is checked with the server
+    PageCache checking = new PageCache(1 << 20, Duration.ZERO, null);
+    BulkLookup lookup = new BulkLookup(base, 4, 0, 2, checking);
+
+    FetchResult found = Lookup(lookup, "alice");
+    Check("bulk finds the name", NAME.equals(found.GetValue()), found);
+
+    found = Lookup(lookup, "alice");
+    Check("bulk revalidates with a 304", NAME.equals(found.GetValue()) && notModified.get() == 1
+        && checking.GetRevalidations() == 1 && Requests("alice") == 2, found + ", " + checking.Stats());
+
+    PageCache fresh = new PageCache(1 << 20, Duration.ofMinutes(10), null);
+    BulkLookup cached = new BulkLookup(base, 4, 0, 2, fresh);
+    Lookup(cached, "alice");
+    found = Lookup(cached, "alice");
+    Check("bulk uses a fresh entry without asking", NAME.equals(found.GetValue()) && fresh.GetHits() == 1
+        && Requests("alice") == 3, found + ", " + fresh.Stats());
+
+    found = Lookup(lookup, "flaky");
+    Check("bulk retries a 503", NAME.equals(found.GetValue()) && Requests("flaky") == 2,
+        found + " after " + Requests("flaky") + " requests");
+
+    found = Lookup(lookup, "down");
+    Check("bulk gives up after its retries", found.GetError() == FetchError.HTTP_STATUS
+        && found.GetDetail().contains("500") && Requests("down") == 3,
+        found + " after " + Requests("down") + " requests");
+
+    found = Lookup(lookup, "moved");
+    Check("bulk follows a redirect", NAME.equals(found.GetValue()) && Requests("moved") == 1, found);
+
+    found = Lookup(lookup, "nobody");
+    Check("bulk reports a 404 without retrying", found.GetError() == FetchError.HTTP_STATUS
+        && found.GetDetail().contains("404") && Requests("nobody") == 1,
+        found + " after " + Requests("nobody") + " requests");
+
+    found = Lookup(lookup, "anon");
+    Check("bulk says when the name isn't there", found.GetError() == FetchError.NOT_FOUND, found);
+
+    List<BulkLookup.Result> results = new ArrayList<>();
+    new BulkLookup(base, 2, 0, 2, null).Run(new BufferedReader(new StringReader("alice\n\nnobody\nanon\n")),
+        results::add);
+    Check("bulk runs a whole list", results.size() == 3, results);
+
+    found = Lookup(lookup, "ab cd#%");
+    Check("bulk escapes an ID that can't go in a path", found.GetError() == FetchError.HTTP_STATUS
+        && Requests("ab cd#%") == 1, found + " after " + Requests("ab cd#%") + " requests");
+
+    found = Lookup(new BulkLookup(base + "not a path/", 4, 0, 2, null), "alice");
+    Check("bulk reports a base URL that isn't one", found.GetError() == FetchError.INVALID_URL, found);
+
+    results.clear();
+    new BulkLookup(base, 2, 0, 2, null).Run(new BufferedReader(new StringReader("alice\nab cd\nalice\n")),
+        results::add);
+    Check("bulk carries on past a malformed ID", results.size() == 3, results);
+
+    // The name's at the top, so the rest of the page needn't be read
+    long read = LookupMetrics.Shared().getBytesRead();
+    found = Lookup(lookup, "padded");
+    read = LookupMetrics.Shared().getBytesRead() - read;
+    Check("bulk stops reading once it has the name", NAME.equals(found.GetValue()) && read < PADDING / 16,
+        found + " after " + read + " bytes");
+  }
+
+  private static FetchResult Lookup(BulkLookup lookup, String id) {
+    return lookup.Lookup(id).orTimeout(30, TimeUnit.SECONDS).join().result();
+  }
+
+  private static void CheckAgent(String base) throws IOException {
+    Path dir = Files.createTempDirectory("lookup-check");
+    PageCache checking = new PageCache(1 << 20, Duration.ZERO, dir);
+    int before = notModified.get();
+
+    FetchResult found = new HttpAgent(base + "alice", checking).FindResult(EmailReader.NAME_START,
+        EmailReader.NAME_END);
+    Check("agent finds the name", NAME.equals(found.GetValue()), found);
+
+    found = new HttpAgent(base + "alice", checking).FindResult(EmailReader.NAME_START, EmailReader.NAME_END);
+    Check("agent revalidates with a 304", NAME.equals(found.GetValue()) && notModified.get() == before + 1
+        && checking.GetRevalidations() == 1, found + ", " + checking.Stats());
+
+    // The entry was saved to disk, so a new cache can still revalidate it
+    PageCache reloaded = new PageCache(1 << 20, Duration.ZERO, dir);
+    found = new HttpAgent(base + "alice", reloaded).FindResult(EmailReader.NAME_START, EmailReader.NAME_END);
+    Check("agent revalidates an entry from disk", NAME.equals(found.GetValue()) && reloaded.GetDiskLoads() == 1
+        && notModified.get() == before + 2, found + ", " + reloaded.Stats());
+
+    // Fields and URLs over 64K bytes of UTF-8 go to disk and come back too
+    String huge = "\u00e9".repeat(40_000);
+    String url = base + "huge?" + huge;
+    checking.Put(new PageCache.Entry(url, null, null, null,
+        Map.of(PageCache.Key(EmailReader.NAME_START, EmailReader.NAME_END), huge), 1));
+    PageCache.Entry entry = new PageCache(1 << 20, Duration.ZERO, dir).Get(url);
+    String[] values = entry == null ? null : checking.Lookup(entry, new String[] {EmailReader.NAME_START},
+        new String[] {EmailReader.NAME_END}, 1);
+    Check("cache saves and loads a field over 64K", values != null && huge.equals(values[0]),
+        entry == null ? "nothing on disk" : "a field of " + (values == null ? 0 : values[0].length()));
+
+    // A whole page goes in the cache, and the name found in it later makes the entry bigger
+    PageCache whole = new PageCache(1 << 20, Duration.ofMinutes(10), null);
+    FetchResult line = new HttpAgent(base + "flaky", whole).GetResult(0);
+    long bytes = whole.GetBytes();
+    found = new HttpAgent(base + "flaky", whole).FindResult(EmailReader.NAME_START, EmailReader.NAME_END);
+    Check("agent counts fields found in a cached page", line.IsOk() && NAME.equals(found.GetValue())
+        && whole.GetBytes() > bytes, found + ", " + bytes + " -> " + whole.GetBytes() + " bytes");
+
+    found = new HttpAgent(base + "nobody", checking).FindResult(EmailReader.NAME_START, EmailReader.NAME_END);
+    Check("agent reports a 404", found.GetError() == FetchError.HTTP_STATUS && found.GetDetail().contains("404"),
+        found);
+
+    long read = LookupMetrics.Shared().getBytesRead();
+    found = new HttpAgent(base + "padded", checking).FindResult(EmailReader.NAME_START, EmailReader.NAME_END);
+    read = LookupMetrics.Shared().getBytesRead() - read;
+    Check("agent stops reading once it has the name", NAME.equals(found.GetValue()) && read < PADDING / 16,
+        found + " after " + read + " bytes");
+
+    // Through a proxy it's the proxy that finds the server, so a host we can't look up ourselves is fine.
+    // The stub server stands in for the proxy.
+    ProxySelector usual = ProxySelector.getDefault();
+    ProxySelector.setDefault(ProxySelector.of(new InetSocketAddress("127.0.0.1", URI.create(base).getPort())));
+    try {
+      found = new HttpAgent("http://lookup-check.invalid/people/alice", new PageCache(1 << 20, Duration.ZERO, null))
+          .FindResult(EmailReader.NAME_START, EmailReader.NAME_END);
+    } finally {
+      ProxySelector.setDefault(usual);
+    }
+    Check("agent leaves finding the host to a proxy", NAME.equals(found.GetValue()), found);
+  }
+
+  private static void Check(String what, boolean ok, Object got) {
+    if (ok) {
+      System.out.println("ok " + what);
+    } else {
+      System.out.println("FAILED " + what + ": got " + got);
+      failures++;
+    }
+  }
+}
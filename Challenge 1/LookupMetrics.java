@@ -0,0 +1,274 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToLongFunction;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * How lookups are doing: how many worked, how many failed and why, and how long each phase of the
+ * requests behind them took (see LookupPhase). Readable over JMX once Register()ed, or as a log line.
+ * HttpAgent and BulkLookup both report to Shared(). Safe to use from any thread.
+ */
+public class LookupMetrics implements LookupMetricsMXBean {
+  private static final LookupMetrics shared = new LookupMetrics();
+
+  private final LatencyHistogram[] phases = new LatencyHistogram[LookupPhase.values().length];
+  private final AtomicLongArray failures = new AtomicLongArray(FetchError.values().length);
+  private final AtomicLong successes = new AtomicLong();
+  private final AtomicLong redirects = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+  private final AtomicLong cacheHits = new AtomicLong();
+  private ScheduledExecutorService logger;
+
+  /**
+   * Times the phases of one request. Call Mark() as each phase ends; they're timed back to back
+   * from when it was made. Only use it for one request, from one thread at a time.
+   */
+  public class Timer {
+    private final long started = System.nanoTime();
+    private long last = started;
+    private long extracting = 0; // Since the last Mark()
+
+    // The phase that's just ended
+    public void Mark(LookupPhase phase) {
+      long now = System.nanoTime();
+      long elapsed = now - last;
+      if (extracting > 0) {
+        phases[LookupPhase.EXTRACT.ordinal()].Record(extracting);
+        elapsed -= extracting;
+        extracting = 0;
+      }
+      phases[phase.ordinal()].Record(elapsed);
+      last = now;
+    }
+
+    // The time since the last Mark() wasn't part of any phase, say waiting out a rate limit
+    public void Skip() {
+      last = System.nanoTime();
+      extracting = 0;
+    }
+
+    /**
+     * Time spent extracting while reading the body, which the next Mark() takes out of its phase
+     * and counts as EXTRACT instead.
+     */
+    public void Extracted(long nanos) {
+      extracting += nanos;
+    }
+
+    // The request's done, one way or another
+    public void Finish() {
+      phases[LookupPhase.TOTAL.ordinal()].Record(System.nanoTime() - started);
+    }
+  }
+
+  public LookupMetrics() {
+    for (int i = 0; i < phases.length; i++) {
+      phases[i] = new LatencyHistogram();
+    }
+  }
+
+  public static LookupMetrics Shared() {
+    return shared;
+  }
+
+  public Timer Start() {
+    return new Timer();
+  }
+
+  // Counts what a lookup came to, and returns it
+  public FetchResult Count(FetchResult result) {
+    if (result.IsOk()) {
+      successes.incrementAndGet();
+    } else {
+      failures.incrementAndGet(result.GetError().ordinal());
+    }
+    return result;
+  }
+
+  public void Redirected() {
+    redirects.incrementAndGet();
+  }
+
+  public void Retried() {
+    retries.incrementAndGet();
+  }
+
+  public void BytesRead(long bytes) {
+    bytesRead.addAndGet(bytes);
+  }
+
+  public void CacheHit() {
+    cacheHits.incrementAndGet();
+  }
+
+  public LatencyHistogram GetHistogram(LookupPhase phase) {
+    return phases[phase.ordinal()];
+  }
+
+  public long GetFailures(FetchError error) {
+    return failures.get(error.ordinal());
+  }
+
+  public long GetRetries() {
+    return retries.get();
+  }
+
+  /**
+   * Makes these readable over JMX as EmailReader:type=LookupMetrics. Does nothing if something already is.
+   */
+  public void Register() {
+    try {
+      ObjectName name = new ObjectName("EmailReader:type=LookupMetrics");
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    } catch (InstanceAlreadyExistsException e) {
+      // Already there
+    } catch (JMException e) {
+      System.out.println("(WARN) Couldn't register lookup metrics with JMX: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Prints getSummary() to out every so often, from a background thread, until StopLogging().
+   */
+  public synchronized void StartLogging(Duration every, PrintStream out) {
+    StopLogging();
+    logger = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "lookup-metrics");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long millis = every.toMillis();
+    logger.scheduleAtFixedRate(() -> out.println("(INFO) " + getSummary()), millis, millis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void StopLogging() {
+    if (logger != null) {
+      logger.shutdownNow();
+      logger = null;
+    }
+  }
+
+  // Everything below is for LookupMetricsMXBean
+
+  @Override
+  public long getSuccesses() {
+    return successes.get();
+  }
+
+  @Override
+  public long getFailures() {
+    long total = 0;
+    for (int i = 0; i < failures.length(); i++) {
+      total += failures.get(i);
+    }
+    return total;
+  }
+
+  @Override
+  public Map<String, Long> getFailuresByType() {
+    Map<String, Long> byType = new LinkedHashMap<>();
+    for (FetchError error : FetchError.values()) {
+      byType.put(error.name(), failures.get(error.ordinal()));
+    }
+    return byType;
+  }
+
+  @Override
+  public long getRedirects() {
+    return redirects.get();
+  }
+
+  @Override
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  @Override
+  public long getCacheHits() {
+    return cacheHits.get();
+  }
+
+  @Override
+  public Map<String, Double> getMedianMillis() {
+    return ByPhase(histogram -> histogram.GetPercentile(50));
+  }
+
+  @Override
+  public Map<String, Double> getP99Millis() {
+    return ByPhase(histogram -> histogram.GetPercentile(99));
+  }
+
+  @Override
+  public Map<String, Double> getMaxMillis() {
+    return ByPhase(LatencyHistogram::GetMax);
+  }
+
+  /**
+   * One line: counts, then median/99th percentile for each phase that's been timed.
+   */
+  @Override
+  public String getSummary() {
+    StringBuilder line = new StringBuilder();
+    line.append(String.format("Lookups: %d ok, %d failed", getSuccesses(), getFailures()));
+
+    String separator = " (";
+    for (FetchError error : FetchError.values()) {
+      long count = failures.get(error.ordinal());
+      if (count > 0) {
+        line.append(separator).append(error.name()).append(' ').append(count);
+        separator = ", ";
+      }
+    }
+    if (!separator.equals(" (")) {
+      line.append(')');
+    }
+
+    line.append(String.format(", %d cached, %d redirects, %d retries, %d bytes read",
+        getCacheHits(), getRedirects(), retries.get(), getBytesRead()));
+
+    separator = " | p50/p99 ms: ";
+    for (LookupPhase phase : LookupPhase.values()) {
+      LatencyHistogram histogram = phases[phase.ordinal()];
+      if (histogram.GetCount() > 0) {
+        line.append(separator).append(phase.name().toLowerCase()).append(String.format(" %.1f/%.1f",
+            histogram.GetPercentile(50) / 1e6, histogram.GetPercentile(99) / 1e6));
+        separator = ", ";
+      }
+    }
+    return line.toString();
+  }
+
+  @Override
+  public void reset() {
+    for (LatencyHistogram histogram : phases) {
+      histogram.Reset();
+    }
+    for (int i = 0; i < failures.length(); i++) {
+      failures.set(i, 0);
+    }
+    successes.set(0);
+    redirects.set(0);
+    retries.set(0);
+    bytesRead.set(0);
+    cacheHits.set(0);
+  }
+
+  private Map<String, Double> ByPhase(ToLongFunction<LatencyHistogram> nanos) {
+    Map<String, Double> byPhase = new LinkedHashMap<>();
+    for (LookupPhase phase : LookupPhase.values()) {
+      byPhase.put(phase.name(), nanos.applyAsLong(phases[phase.ordinal()]) / 1e6);
+    }
+    return byPhase;
+  }
+}
@@ -0,0 +1,29 @@
+import java.util.Map;
+
+/**
+ * What LookupMetrics shows over JMX (in jconsole, under EmailReader). Maps are by FetchError
+ * or LookupPhase name; times are in milliseconds.
+ */
+public interface LookupMetricsMXBean {
+  long getSuccesses();
+
+  long getFailures();
+
+  Map<String, Long> getFailuresByType();
+
+  long getRedirects();
+
+  long getBytesRead();
+
+  long getCacheHits();
+
+  Map<String, Double> getMedianMillis();
+
+  Map<String, Double> getP99Millis();
+
+  Map<String, Double> getMaxMillis();
+
+  String getSummary();
+
+  void reset();
+}
@@ -0,0 +1,11 @@
+/**
+ * The parts of a lookup LookupMetrics times separately.
+ */
+public enum LookupPhase {
+  DNS, // Resolving the host
+  CONNECT, // TCP connect and TLS handshake; ~0 if the connection was reused
+  FIRST_BYTE, // Request sent to response headers back
+  BODY, // Reading the page, not counting EXTRACT
+  EXTRACT, // Finding what we wanted in it
+  TOTAL // The whole lookup, including ones answered from the cache and any retries
+}
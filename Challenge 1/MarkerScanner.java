@@ -0,0 +1,136 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Finds the text between pairs of start/end markers in a page as it streams in, so whoever's
+ * reading can stop (and hang up) as soon as everything it wants has turned up.
+ * Matching is plain substring matching on the raw bytes, and it doesn't care about lines.
+ *
+ * Only the bit of the page that could still be part of a match is kept, which is at most a marker's
+ * length unless a start marker has been found and its end hasn't yet. Pages are taken to be UTF-8.
+ */
+public class MarkerScanner {
+  // Give up on a field if its end marker hasn't turned up this far after the start
+  static final int MAX_FIELD = 64 * 1024;
+
+  // Markers and the window hold bytes as chars 0-255, so indexOf() matches bytes exactly
+  private final String[] starts;
+  private final String[] ends;
+  private final String[] found;
+  private final int[] from; // Per field: where in window to look next
+  private final int[] valueAt; // Per field: where the value starts in window, or -1 until the start marker is seen
+  private final StringBuilder window = new StringBuilder();
+  private int remaining;
+  private long scanned = 0;
+
+  public MarkerScanner(String[] starts, String[] ends) {
+    this.starts = new String[starts.length];
+    this.ends = new String[ends.length];
+    for (int i = 0; i < starts.length; i++) {
+      this.starts[i] = AsBytes(starts[i]);
+      this.ends[i] = AsBytes(ends[i]);
+    }
+    found = new String[starts.length];
+    from = new int[starts.length];
+    valueAt = new int[starts.length];
+    Arrays.fill(valueAt, -1);
+    remaining = starts.length;
+  }
+
+  public MarkerScanner(String start, String end) {
+    this(new String[] {start}, new String[] {end});
+  }
+
+  /**
+   * Scans the next part of the page. Returns true once every field has been found.
+   */
+  public boolean Feed(byte[] data, int offset, int length) {
+    scanned += length;
+    for (int i = offset; i < offset + length; i++) {
+      window.append((char) (data[i] & 0xff));
+    }
+    return Scan();
+  }
+
+  public boolean Feed(ByteBuffer data) {
+    scanned += data.remaining();
+    while (data.hasRemaining()) {
+      window.append((char) (data.get() & 0xff));
+    }
+    return Scan();
+  }
+
+  // Whether field (an index into the markers given) has been found
+  public boolean Found(int field) {
+    return found[field] != null;
+  }
+
+  // The text between field's markers, or null if it hasn't been found
+  public String Get(int field) {
+    return found[field];
+  }
+
+  public boolean Done() {
+    return remaining == 0;
+  }
+
+  // Bytes fed in so far
+  public long GetScanned() {
+    return scanned;
+  }
+
+  private boolean Scan() {
+    int keep = window.length();
+
+    for (int f = 0; f < found.length; f++) {
+      if (found[f] != null) {
+        continue;
+      }
+
+      if (valueAt[f] < 0) {
+        int start = window.indexOf(starts[f], from[f]);
+        if (start < 0) {
+          // A start marker could still begin in the last few bytes
+          from[f] = Math.max(from[f], window.length() - starts[f].length() + 1);
+          keep = Math.min(keep, from[f]);
+          continue;
+        }
+        valueAt[f] = start + starts[f].length();
+        from[f] = valueAt[f];
+      }
+
+      int end = window.indexOf(ends[f], from[f]);
+      if (end >= 0) {
+        found[f] = new String(window.substring(valueAt[f], end).getBytes(StandardCharsets.ISO_8859_1),
+            StandardCharsets.UTF_8);
+        remaining--;
+      } else if (window.length() - valueAt[f] > MAX_FIELD) {
+        // Probably not the right start marker after all, look for another
+        from[f] = valueAt[f];
+        valueAt[f] = -1;
+        keep = Math.min(keep, from[f]);
+      } else {
+        from[f] = Math.max(from[f], window.length() - ends[f].length() + 1);
+        keep = Math.min(keep, valueAt[f]);
+      }
+    }
+
+    // Drop what nothing can match any more
+    if (keep > 0) {
+      window.delete(0, keep);
+      for (int f = 0; f < found.length; f++) {
+        from[f] = Math.max(0, from[f] - keep);
+        if (valueAt[f] >= 0) {
+          valueAt[f] -= keep;
+        }
+      }
+    }
+    return remaining == 0;
+  }
+
+  // A marker as the UTF-8 bytes it'll appear as in the page, one char per byte
+  private static String AsBytes(String marker) {
+    return new String(marker.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,413 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers pages (or just the bits of them we wanted) between agents, so the same person isn't
+ * downloaded over and over. Entries are fresh for ttl after they were last fetched or checked; after that
+ * they're checked with the server using If-None-Match/If-Modified-Since, and a 304 makes them fresh again.
+ *
+ * In memory it's an LRU bounded by bytes. Given a directory, every entry is written there too, so
+ * lookups survive between runs; entries evicted from memory come back from disk when next asked for.
+ * Safe to share between threads.
+ */
+public class PageCache {
+  private static final int FORMAT = 2; // Files in any other format are ignored
+  private static final long ENTRY_OVERHEAD = 128; // Roughly, for the object, strings and map entry
+
+  private static PageCache shared = new PageCache(16 << 20, Duration.ofMinutes(10), null);
+
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final Path dir; // null to keep everything in memory
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+
+  // Stats
+  private long hits = 0;
+  private long revalidations = 0;
+  private long misses = 0;
+  private long bytesSaved = 0;
+  private long bytesFetched = 0;
+  private long evictions = 0;
+  private long diskLoads = 0;
+
+  /**
+   * What's known about one URL. body is the whole page if it was read whole, otherwise null and
+   * fields has whatever was found in it.
+   */
+  public static class Entry {
+    final String url;
+    final String etag; // Validators from the response, or null
+    final String lastModified;
+    final byte[] body;
+    final long pageBytes; // How many bytes it took to get this, which is what a hit saves
+    volatile long fetchedAt; // When it was last fetched or revalidated
+    // By Key(start, end). A null value means the whole page was looked through and it isn't there.
+    private final Map<String, String> fields;
+    private long accounted; // What it was counted as in bytes when it went in
+
+    public Entry(String url, String etag, String lastModified, byte[] body, Map<String, String> fields,
+        long pageBytes) {
+      this.url = url;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.body = body;
+      this.fields = new HashMap<>(fields);
+      this.pageBytes = pageBytes;
+      this.fetchedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * The fields between each starts[i] and ends[i] (null where the page doesn't have one), or null if this
+     * entry can't say. It can if it knows about every one of the first required fields, or knows that
+     * one of the fields after those is there (say a "moved" notice, which means the others don't matter).
+     * Goes through PageCache.Lookup(), which counts any fields this fills in.
+     */
+    private synchronized String[] Lookup(String[] starts, String[] ends, int required) {
+      if (body != null) {
+        ScanBody(starts, ends);
+      }
+
+      String[] values = new String[starts.length];
+      boolean known = true;
+      for (int i = 0; i < starts.length; i++) {
+        String key = Key(starts[i], ends[i]);
+        values[i] = fields.get(key);
+        if (i < required && !fields.containsKey(key)) {
+          known = false;
+        } else if (i >= required && values[i] != null) {
+          return values;
+        }
+      }
+      return known ? values : null;
+    }
+
+    public boolean HasBody() {
+      return body != null;
+    }
+
+    // Fills in any fields not looked for yet from the whole page
+    private void ScanBody(String[] starts, String[] ends) {
+      MarkerScanner scanner = new MarkerScanner(starts, ends);
+      scanner.Feed(body, 0, body.length);
+      for (int i = 0; i < starts.length; i++) {
+        fields.putIfAbsent(Key(starts[i], ends[i]), scanner.Get(i));
+      }
+    }
+
+    private synchronized long Size() {
+      long size = ENTRY_OVERHEAD + 2L * url.length() + (body == null ? 0 : body.length);
+      for (Map.Entry<String, String> field : fields.entrySet()) {
+        size += 2L * field.getKey().length() + (field.getValue() == null ? 0 : 2L * field.getValue().length());
+      }
+      return size;
+    }
+  }
+
+  /**
+   * maxBytes bounds the memory used by entries (roughly); ttl is how long they're used without checking
+   * with the server. dir may be null for no disk store; it's created if it doesn't exist.
+   */
+  public PageCache(long maxBytes, Duration ttl, Path dir) {
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttl.toMillis();
+    this.dir = dir;
+  }
+
+  // The cache agents use unless they're given another
+  public static synchronized PageCache Shared() {
+    return shared;
+  }
+
+  public static synchronized void SetShared(PageCache cache) {
+    shared = cache;
+  }
+
+  // How fields are named in an Entry
+  public static String Key(String start, String end) {
+    return start + '\0' + end;
+  }
+
+  /**
+   * What's known about url, fresh or not, or null if nothing is.
+   */
+  public Entry Get(String url) {
+    synchronized (this) {
+      Entry entry = entries.get(url);
+      if (entry != null || dir == null) {
+        return entry;
+      }
+    }
+
+    // Read without the lock, so other lookups don't wait on the disk
+    Entry loaded = Load(url);
+    if (loaded == null) {
+      return null;
+    }
+    synchronized (this) {
+      // Someone else may have stored or loaded it meanwhile, and theirs is as new or newer
+      Entry entry = entries.get(url);
+      if (entry != null) {
+        return entry;
+      }
+      diskLoads++;
+      Remember(loaded);
+      return loaded;
+    }
+  }
+
+  /**
+   * entry.Lookup(): the fields between each starts[i] and ends[i], or null if entry can't say. Fields found
+   * in a whole page are kept in the entry, so it's counted again at its new size.
+   */
+  public String[] Lookup(Entry entry, String[] starts, String[] ends, int required) {
+    String[] values = entry.Lookup(starts, ends, required);
+    if (entry.HasBody()) {
+      Resized(entry);
+    }
+    return values;
+  }
+
+  public boolean IsFresh(Entry entry) {
+    return System.currentTimeMillis() - entry.fetchedAt < ttlMillis;
+  }
+
+  /**
+   * Stores what was just downloaded (pageBytes of it) for url, replacing whatever was there.
+   */
+  public void Put(Entry entry) {
+    byte[] saved;
+    synchronized (this) {
+      misses++;
+      bytesFetched += entry.pageBytes;
+      Remember(entry);
+      saved = Encode(entry);
+    }
+    Save(entry.url, saved);
+  }
+
+  // entry was fresh and used as it is
+  public synchronized void Hit(Entry entry) {
+    hits++;
+    bytesSaved += entry.pageBytes;
+  }
+
+  // The server said entry hasn't changed, so it's good for another ttl
+  public void Revalidated(Entry entry) {
+    byte[] saved;
+    synchronized (this) {
+      revalidations++;
+      bytesSaved += entry.pageBytes;
+      entry.fetchedAt = System.currentTimeMillis();
+      saved = Encode(entry);
+    }
+    Save(entry.url, saved);
+  }
+
+  // A page that was downloaded but not stored (the server said not to)
+  public synchronized void Uncached(long pageBytes) {
+    misses++;
+    bytesFetched += pageBytes;
+  }
+
+  public synchronized long GetHits() {
+    return hits;
+  }
+
+  public synchronized long GetRevalidations() {
+    return revalidations;
+  }
+
+  public synchronized long GetMisses() {
+    return misses;
+  }
+
+  // Lookups that didn't need a page downloaded, as a fraction of all of them
+  public synchronized double GetHitRate() {
+    long total = hits + revalidations + misses;
+    return total == 0 ? 0 : (double) (hits + revalidations) / total;
+  }
+
+  public synchronized long GetBytesSaved() {
+    return bytesSaved;
+  }
+
+  public synchronized long GetBytesFetched() {
+    return bytesFetched;
+  }
+
+  public synchronized long GetEvictions() {
+    return evictions;
+  }
+
+  public synchronized long GetDiskLoads() {
+    return diskLoads;
+  }
+
+  // In memory, roughly
+  public synchronized long GetBytes() {
+    return bytes;
+  }
+
+  public synchronized String Stats() {
+    return String.format("%d hits, %d revalidated, %d fetched (%.0f%% hit rate), %d bytes saved, "
+        + "%d evicted, %d from disk", hits, revalidations, misses, GetHitRate() * 100, bytesSaved,
+        evictions, diskLoads);
+  }
+
+  private void Remember(Entry entry) {
+    Entry old = entries.put(entry.url, entry);
+    if (old != null) {
+      bytes -= old.accounted;
+    }
+    entry.accounted = entry.Size();
+    bytes += entry.accounted;
+    Evict();
+  }
+
+  // entry may have grown since it was counted
+  private synchronized void Resized(Entry entry) {
+    if (entries.get(entry.url) != entry) {
+      return; // Evicted or replaced, so not counted any more
+    }
+    long size = entry.Size();
+    bytes += size - entry.accounted;
+    entry.accounted = size;
+    Evict();
+  }
+
+  private void Evict() {
+    // Least recently used go first. Anything too big to keep at all goes straight away.
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().accounted;
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  // The disk store is one file per URL, named by its hash. Failures just mean it isn't stored.
+  private Path FileFor(String url) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+      return dir.resolve(HexFormat.of().formatHex(hash) + ".page");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // Every JVM has SHA-256
+    }
+  }
+
+  // entry as it's stored on disk, or null with no disk store. Quick, so it's done holding the lock.
+  private byte[] Encode(Entry entry) {
+    if (dir == null) {
+      return null;
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (DataOutputStream data = new DataOutputStream(out)) {
+      data.writeInt(FORMAT);
+      WriteString(data, entry.url);
+      WriteString(data, entry.etag == null ? "" : entry.etag);
+      WriteString(data, entry.lastModified == null ? "" : entry.lastModified);
+      data.writeLong(entry.fetchedAt);
+      data.writeLong(entry.pageBytes);
+      synchronized (entry) {
+        data.writeInt(entry.fields.size());
+        for (Map.Entry<String, String> field : entry.fields.entrySet()) {
+          WriteString(data, field.getKey());
+          data.writeBoolean(field.getValue() != null);
+          WriteString(data, field.getValue() == null ? "" : field.getValue());
+        }
+      }
+      data.writeInt(entry.body == null ? -1 : entry.body.length);
+      if (entry.body != null) {
+        data.write(entry.body);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Writing to memory doesn't fail
+    }
+    return out.toByteArray();
+  }
+
+  // Writes what Encode() made for url to its file. Done without holding the lock, so lookups don't wait on the disk.
+  private void Save(String url, byte[] saved) {
+    if (saved == null) {
+      return;
+    }
+
+    try {
+      Files.createDirectories(dir);
+      Path file = FileFor(url);
+      Path temp = Files.createTempFile(dir, "page", ".tmp");
+      Files.write(temp, saved);
+      // So a crash halfway through never leaves half an entry behind
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("(WARN) Couldn't save " + url + " to the cache: " + e.getMessage());
+    }
+  }
+
+  private Entry Load(String url) {
+    Path file = FileFor(url);
+    if (!Files.exists(file)) {
+      return null;
+    }
+
+    try (InputStream in = Files.newInputStream(file); DataInputStream data = new DataInputStream(in)) {
+      if (data.readInt() != FORMAT || !ReadString(data).equals(url)) {
+        return null;
+      }
+      String etag = ReadString(data);
+      String lastModified = ReadString(data);
+      long fetchedAt = data.readLong();
+      long pageBytes = data.readLong();
+      Map<String, String> fields = new HashMap<>();
+      for (int i = data.readInt(); i > 0; i--) {
+        String key = ReadString(data);
+        boolean present = data.readBoolean();
+        String value = ReadString(data);
+        fields.put(key, present ? value : null);
+      }
+      int length = data.readInt();
+      byte[] body = length < 0 ? null : data.readNBytes(length);
+
+      Entry entry = new Entry(url, etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified,
+          body, fields, pageBytes);
+      entry.fetchedAt = fetchedAt;
+      return entry;
+    } catch (IOException e) {
+      return null; // Treat a damaged file as not there; it'll be overwritten
+    }
+  }
+
+  // Strings are stored as their length then their UTF-8. writeUTF() can't take more than 64K, and pages can.
+  private static void WriteString(DataOutputStream data, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  private static String ReadString(DataInputStream data) throws IOException {
+    int length = data.readInt();
+    byte[] bytes = data.readNBytes(Math.max(length, 0));
+    if (length < 0 || bytes.length < length) {
+      throw new EOFException("Cut short");
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
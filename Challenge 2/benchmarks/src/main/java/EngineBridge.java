@@ -0,0 +1,138 @@
+import bench.Engine;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Default-package side of bench.Engine; see there for why this exists.
+ */
+public class EngineBridge implements Engine {
+  @Override
+  public Object compile(String source, int optLevel) throws SyntaxError {
+    return new AstCompiler(source, optLevel).compile();
+  }
+
+  @Override
+  public Object compileTreeWalker(String source) throws SyntaxError {
+    AstCompiler compiler = new AstCompiler(source);
+    compiler.setTreeWalker(true);
+    return compiler.compile();
+  }
+
+  @Override
+  public Object prepare(String source, String backend, int optLevel) throws SyntaxError {
+    AstCompiler compiler = new AstCompiler(source, optLevel);
+    AstNode root = compiler.compile();
+    SymbolTable symbols = compiler.getSymbols();
+
+    switch (RunOptions.Backend.valueOf(backend)) {
+      case BYTECODE -> {
+        return new BytecodeCompiler(symbols).compile(root).newRegisters();
+      }
+      case JIT -> {
+        try {
+          new JitCompiler(symbols).compile(root);
+        } catch (JitBailout e) {
+          // Falls back to the tree, which needs nothing more
+        }
+        return symbols.newRegisters();
+      }
+      default -> {
+        return symbols.newRegisters();
+      }
+    }
+  }
+
+  @Override
+  public Runnable runner(String source, String backend, int optLevel) throws SyntaxError {
+    AstCompiler compiler = new AstCompiler(source, optLevel);
+    AstNode root = compiler.compile();
+    SymbolTable symbols = compiler.getSymbols();
+
+    if (backend.equals("BYTECODE")) {
+      BytecodeProgram program = new BytecodeCompiler(symbols).compile(root);
+      VirtualMachine vm = new VirtualMachine(program);
+      long[] initial = program.newRegisters();
+      long[] regs = initial.clone();
+      return () -> {
+        System.arraycopy(initial, 0, regs, 0, initial.length);
+        vm.run(regs);
+      };
+    }
+
+    long[] regs = symbols.newRegisters();
+    if (backend.equals("JIT")) {
+      try {
+        JitProgram program = new JitCompiler(symbols).compile(root);
+        return () -> {
+          Arrays.fill(regs, 0);
+          program.run(regs);
+        };
+      } catch (JitBailout e) {
+        // Same fallback as the interpreter
+      }
+    }
+
+    TreeExecutor executor = new TreeExecutor(root);
+    return () -> {
+      Arrays.fill(regs, 0);
+      executor.run(regs);
+    };
+  }
+
+  @Override
+  public Runnable parallelRunner(String source, int threads) throws SyntaxError {
+    AstCompiler compiler = new AstCompiler(source);
+    compiler.setTreeWalker(true);
+    AstNode root = compiler.compile();
+    long[] regs = compiler.getSymbols().newRegisters();
+
+    TreeExecutor executor = new TreeExecutor(root);
+    // Its workers are daemon threads, so it doesn't need shutting down
+    executor.setPool(threads > 1 ? new ForkJoinPool(threads) : null);
+    return () -> {
+      Arrays.fill(regs, 0);
+      executor.run(regs);
+    };
+  }
+
+  @Override
+  public Editor editor(String source) {
+    IncrementalCompiler compiler = new IncrementalCompiler(source);
+    return (offset, length, replacement) -> {
+      compiler.edit(offset, length, replacement);
+      return compiler.getRoot();
+    };
+  }
+
+  @Override
+  public long countInstructions(String source) throws SyntaxError {
+    AstCompiler compiler = new AstCompiler(source, 0);
+    AstNode root = compiler.compile();
+    long[] regs = compiler.getSymbols().newRegisters();
+
+    long count = 0;
+    for (AstNode statement : root.getChildren()) {
+      count += count(statement, regs);
+    }
+    return count;
+  }
+
+  // Runs node like TreeExecutor, counting operators and condition tests.
+  private static long count(AstNode node, long[] regs) {
+    if (node.getCondition() == null) {
+      node.runOperator(regs);
+      return 1;
+    }
+
+    long count = 1;
+    AstNode[] children = node.getChildren();
+    while (node.testCondition(regs) == 1) {
+      for (AstNode child : children) {
+        count += count(child, regs);
+      }
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,60 @@
+package bench;
+
+/**
+ * What the benchmarks need from the interpreter. The interpreter lives in the default package,
+ * which named packages (and so JMH benchmarks) can't import, so EngineBridge implements this
+ * from the default package and the benchmarks only ever see the interface.
+ */
+public interface Engine {
+  /**
+   * Front end only: parse, optimise and resolve. Returns the tree, for the blackhole.
+   */
+  Object compile(String source, int optLevel) throws Exception;
+
+  /**
+   * compile(source, 0), but for the tree walker alone, as parallelRunner() runs: calls to bigger defs share one
+   * copy of the body instead of each getting their own.
+   */
+  Object compileTreeWalker(String source) throws Exception;
+
+  /**
+   * Everything needed before the first instruction can run on the given backend.
+   */
+  Object prepare(String source, String backend, int optLevel) throws Exception;
+
+  /**
+   * A compiled program that runs from a clean register file each time it's called.
+   */
+  Runnable runner(String source, String backend, int optLevel) throws Exception;
+
+  /**
+   * The tree walker, running par blocks' branches on threads threads at once. With 1 they're run one after another.
+   */
+  Runnable parallelRunner(String source, int threads) throws Exception;
+
+  /**
+   * Number of statements and condition tests one run executes, unoptimised.
+   * This is the "instruction" in instructions per second, so every backend is measured in the same unit.
+   */
+  long countInstructions(String source) throws Exception;
+
+  /**
+   * An incrementally compiled program (IncrementalCompiler, optLevel 0) that edits can be applied to.
+   */
+  Editor editor(String source) throws Exception;
+
+  interface Editor {
+    /**
+     * Replaces length characters from offset on and brings the compiled tree up to date. Returns the tree.
+     */
+    Object edit(int offset, int length, String replacement) throws Exception;
+  }
+
+  static Engine load() {
+    try {
+      return (Engine) Class.forName("EngineBridge").getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("EngineBridge is missing from the classpath", e);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recompiling after an edit in the middle of a large file (about 100k lines), incrementally and from scratch.
+ * Every edit benchmark undoes itself every other call, so the text doesn't drift between iterations.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IncrementalBenchmark {
+  @Param({"large-source"})
+  public String program;
+
+  private Engine engine;
+  private String source;
+  private Engine.Editor editor;
+
+  private int statementAt; // "incr Total", halfway through
+  private int headerAt; // A while's literal, halfway through
+  private int lineAt; // Start of a line, halfway through
+  private boolean edited;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws Exception {
+    engine = Engine.load();
+    source = Programs.get(program);
+    editor = engine.editor(source);
+    edited = false;
+
+    statementAt = source.indexOf("incr Total", source.length() / 2);
+    headerAt = source.indexOf(" not 0 do", source.length() / 2) + " not ".length();
+    lineAt = source.indexOf('\n', source.length() / 2) + 1;
+  }
+
+  /**
+   * The usual keystroke: one statement changes, nothing else does. incr Total <-> decr Total.
+   */
+  @Benchmark
+  public Object editStatement() throws Exception {
+    edited = !edited;
+    return editor.edit(statementAt, 4, edited ? "decr" : "incr");
+  }
+
+  /**
+   * A while's condition changes; its body stays where it is.
+   */
+  @Benchmark
+  public Object editLoopHeader() throws Exception {
+    edited = !edited;
+    return editor.edit(headerAt, 1, edited ? "1" : "0");
+  }
+
+  /**
+   * A whole loop typed (pasted) in and taken out again, which moves every statement after it.
+   */
+  @Benchmark
+  public Object insertLoop() throws Exception {
+    String loop = "while Total not 0 do;\ndecr Total;\nend;\n";
+    edited = !edited;
+    return edited ? editor.edit(lineAt, 0, loop) : editor.edit(lineAt, loop.length(), "");
+  }
+
+  /**
+   * What every edit would cost without IncrementalCompiler.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public Object fullCompile() throws Exception {
+    return engine.compile(source, 0);
+  }
+}
@@ -0,0 +1,96 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compile time, time to first instruction and steady-state speed of every backend,
+ * on the bundled programs and on generated ones (see Programs).
+ *
+ * Run with: java -jar benchmarks/target/benchmarks.jar [JMH options]
+ * BenchmarkMain adds the GC profiler, so allocation rates are reported alongside the timings.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InterpreterBenchmark {
+  @Param({"balancer", "multiply", "divide", "deep-nesting", "many-variables", "straight-line"})
+  public String program;
+
+  @Param({"TREE", "BYTECODE", "JIT"})
+  public String backend;
+
+  @Param({"0", "1"})
+  public int optLevel;
+
+  private Engine engine;
+  private String source;
+  private Runnable runner;
+  private long instructionsPerRun;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    engine = Engine.load();
+    source = Programs.get(program);
+    runner = engine.runner(source, backend, optLevel);
+    instructionsPerRun = engine.countInstructions(source);
+  }
+
+  /**
+   * Executed instructions, reported by JMH as a rate. Always counted as the unoptimised program
+   * would execute them, so --opt=1 shows up as more work done per second.
+   */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Instructions {
+    public long instructions;
+  }
+
+  /**
+   * Parsing, optimising and resolving. Doesn't depend on the backend.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Object compile() throws Exception {
+    return engine.compile(source, optLevel);
+  }
+
+  /**
+   * Everything from source text to being ready to run, in a freshly started JVM.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 10)
+  @Fork(3)
+  public Object timeToFirstInstruction() throws Exception {
+    return engine.prepare(source, backend, optLevel);
+  }
+
+  /**
+   * Steady-state execution of an already compiled program.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void execute(Instructions counter) {
+    runner.run();
+    counter.instructions += instructionsPerRun;
+  }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * par blocks on the tree walker: independent multiply/divide kernels (see Programs.parallelKernels)
+ * run one after another, then on more and more threads. Each run does the same work, so the speedup
+ * over threads=1 is just the ratio of the times, and should be close to the thread count until it
+ * passes the number of cores (or branches).
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelBenchmark {
+  @Param({"parallel-kernels"})
+  public String program;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  private Runnable runner;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    runner = Engine.load().parallelRunner(Programs.get(program), threads);
+  }
+
+  @Benchmark
+  public void execute() {
+    runner.run();
+  }
+}
@@ -0,0 +1,217 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Source for every program the benchmarks run: the bundled samples, plus generated ones
+ * that stress a single dimension of the interpreter each.
+ */
+public final class Programs {
+  private Programs() {
+  }
+
+  public static String get(String name) {
+    return switch (name) {
+      case "balancer", "multiply", "divide" -> bundled(name + ".bb");
+      case "deep-nesting" -> deepNesting(20);
+      case "many-variables" -> manyVariables(5000);
+      case "straight-line" -> straightLine(1_000_000);
+      case "large-source" -> manyVariables(13_500);
+      case "parallel-kernels" -> parallelKernels(8, 256);
+      case "pasted-calls" -> calls(31_250, true);
+      case "subroutine-calls" -> calls(31_250, false);
+      default -> throw new IllegalArgumentException("Unknown program " + name);
+    };
+  }
+
+  /**
+   * depth loops nested inside each other, each running twice, so the innermost body runs 2^depth times.
+   */
+  public static String deepNesting(int depth) {
+    StringBuilder out = new StringBuilder("clear Total;\n");
+    for (int i = 0; i < depth; i++) {
+      out.append("clear C").append(i).append(";\n");
+      out.append("incr C").append(i).append(";\n");
+      out.append("incr C").append(i).append(";\n");
+      out.append("while C").append(i).append(" not 0 do;\n");
+    }
+    out.append("incr Total;\n");
+    for (int i = depth - 1; i >= 0; i--) {
+      out.append("decr C").append(i).append(";\n");
+      out.append("end;\n");
+    }
+    return out.toString();
+  }
+
+  /**
+   * count independent variables, each set to a small value and then drained into a shared total.
+   */
+  public static String manyVariables(int count) {
+    StringBuilder out = new StringBuilder("clear Total;\n");
+    for (int i = 0; i < count; i++) {
+      String name = "V" + i;
+      out.append("clear ").append(name).append(";\n");
+      for (int j = 0; j <= i % 4; j++) {
+        out.append("incr ").append(name).append(";\n");
+      }
+      out.append("while ").append(name).append(" not 0 do;\n");
+      out.append("incr Total;\n");
+      out.append("decr ").append(name).append(";\n");
+      out.append("end;\n");
+    }
+    return out.toString();
+  }
+
+  /**
+   * statements lines with no loops at all, cycling over a handful of variables.
+   */
+  public static String straightLine(int statements) {
+    StringBuilder out = new StringBuilder(statements * 8);
+    for (int i = 0; i < 8; i++) {
+      out.append("clear S").append(i).append(";\n");
+    }
+    for (int i = 0; i < statements; i++) {
+      out.append(i % 3 == 2 ? "decr S" : "incr S").append(i % 8).append(";\n");
+    }
+    return out.toString();
+  }
+
+  /**
+   * A par block with branches branches, each multiplying two numbers near size together and dividing
+   * the product back down, on variables of its own. Nothing is shared, so they can all run at once.
+   */
+  public static String parallelKernels(int branches, int size) {
+    StringBuilder out = new StringBuilder("par;\n");
+    for (int i = 0; i < branches; i++) {
+      if (i > 0) {
+        out.append("and;\n");
+      }
+      String a = "A" + i;
+      String b = "B" + i;
+      String z = "Z" + i;
+      String w = "W" + i;
+      String x = "X" + i;
+      setTo(out, a, size + i);
+      setTo(out, b, size - i);
+
+      // Z = A * B, as in multiply.bb
+      out.append("clear ").append(z).append(";\n");
+      out.append("while ").append(a).append(" not 0 do;\n");
+      out.append("clear ").append(w).append(";\n");
+      transfer(out, b, z, w);
+      transfer(out, w, b, null);
+      out.append("decr ").append(a).append(";\n");
+      out.append("end;\n");
+
+      // A = Z / B, as in divide.bb
+      out.append("clear ").append(x).append(";\n");
+      transfer(out, z, x, null);
+      out.append("while ").append(x).append(" not 0 do;\n");
+      out.append("clear ").append(w).append(";\n");
+      out.append("while ").append(b).append(" not 0 do;\n");
+      out.append("incr ").append(w).append(";\n");
+      out.append("decr ").append(x).append(";\n");
+      out.append("decr ").append(b).append(";\n");
+      out.append("end;\n");
+      transfer(out, w, b, null);
+      out.append("incr ").append(a).append(";\n");
+      out.append("end;\n");
+    }
+    return out.append("end;\n").toString();
+  }
+
+  /**
+   * calls multiply-then-divide kernels, about 32 statements each, over a few variables: called from a def, or
+   * pasted out in full every time, as programs without def have to. Either way there are about a million
+   * statements once every call is expanded, and both leave V, P and Q with the same values.
+   */
+  public static String calls(int calls, boolean pasted) {
+    StringBuilder out = new StringBuilder();
+    if (!pasted) {
+      out.append("def muldiv(A, B, P, Q);\n");
+      mulDiv(out, "A", "B", "P", "Q");
+      out.append("end;\n");
+    }
+    for (int i = 0; i < 8; i++) {
+      out.append("clear V").append(i).append(";\n");
+      out.append(("incr V" + i + ";\n").repeat(1 + i % 3));
+    }
+    for (int i = 0; i < calls; i++) {
+      String a = "V" + i % 8;
+      String b = "V" + (i + 1) % 8;
+      String p = "P" + i % 4;
+      String q = "Q" + i % 4;
+      if (pasted) {
+        mulDiv(out, a, b, p, q);
+      } else {
+        out.append("call muldiv(").append(a).append(", ").append(b).append(", ").append(p).append(", ")
+            .append(q).append(");\n");
+      }
+    }
+    return out.toString();
+  }
+
+  // p = a * b, then a = p / b, with q counting down the product. Leaves b as it was.
+  private static void mulDiv(StringBuilder out, String a, String b, String p, String q) {
+    out.append("clear ").append(p).append(";\n");
+    out.append("while ").append(a).append(" not 0 do;\n");
+    out.append("clear W;\n");
+    transfer(out, b, p, "W");
+    transfer(out, "W", b, null);
+    out.append("decr ").append(a).append(";\n");
+    out.append("end;\n");
+
+    out.append("clear ").append(q).append(";\n");
+    out.append("clear X;\n");
+    transfer(out, p, q, "X");
+    transfer(out, "X", p, null);
+    out.append("while ").append(q).append(" not 0 do;\n");
+    out.append("clear W;\n");
+    out.append("while ").append(b).append(" not 0 do;\n");
+    out.append("incr W;\n");
+    out.append("decr ").append(q).append(";\n");
+    out.append("decr ").append(b).append(";\n");
+    out.append("end;\n");
+    transfer(out, "W", b, null);
+    out.append("incr ").append(a).append(";\n");
+    out.append("end;\n");
+  }
+
+  // name = value, in a few lines: a loop adding 16 at a time, then the rest one by one
+  private static void setTo(StringBuilder out, String name, int value) {
+    String count = name + "N";
+    out.append("clear ").append(name).append(";\n");
+    out.append("clear ").append(count).append(";\n");
+    out.append(("incr " + count + ";\n").repeat(value / 16));
+    out.append("while ").append(count).append(" not 0 do;\n");
+    out.append(("incr " + name + ";\n").repeat(16));
+    out.append("decr ").append(count).append(";\n");
+    out.append("end;\n");
+    out.append(("incr " + name + ";\n").repeat(value % 16));
+  }
+
+  // Empties from into to (and also into, if it isn't null)
+  private static void transfer(StringBuilder out, String from, String to, String also) {
+    out.append("while ").append(from).append(" not 0 do;\n");
+    out.append("incr ").append(to).append(";\n");
+    if (also != null) {
+      out.append("incr ").append(also).append(";\n");
+    }
+    out.append("decr ").append(from).append(";\n");
+    out.append("end;\n");
+  }
+
+  private static String bundled(String file) {
+    try (InputStream in = Programs.class.getResourceAsStream("/" + file)) {
+      if (in == null) {
+        throw new IllegalStateException(file + " is not on the classpath");
+      }
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiling about a million statements' worth of multiply/divide kernels, pasted out at every call or called
+ * from one def (see Programs.calls). compile copies the def's body into every call, like pasting does, while
+ * compileTreeWalker shares it between them. gc.alloc.rate.norm is how much each allocates doing it.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SubroutineBenchmark {
+  @Param({"pasted-calls", "subroutine-calls"})
+  public String program;
+
+  private Engine engine;
+  private String source;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    engine = Engine.load();
+    source = Programs.get(program);
+  }
+
+  @Benchmark
+  public Object compile() throws Exception {
+    return engine.compile(source, 0);
+  }
+
+  @Benchmark
+  public Object compileTreeWalker() throws Exception {
+    return engine.compileTreeWalker(source);
+  }
+}
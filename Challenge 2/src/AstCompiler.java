@@ -1,216 +1,283 @@
-import java.util.*;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Takes in a text file's content and compiles the AST for it, which can then be interpreted.
  * Since this language is relatively simple in syntax, lines are delimited with ;
- * and the only control statement is WHILE, this isn't too complex to manage.
+ * and the only control statements are WHILE, PAR and DEF, this isn't too complex to manage.
+ *
+ * Parsing is a single pass over the characters: Lexer hands over one token at a time,
+ * and each statement's tokens are run through the grammar table in CodeGrammars.
+ * Blocks are tracked with an explicit stack, so nesting depth doesn't matter either.
  */
 public class AstCompiler {
+  /**
+   * True if str is an int literal. Same rule the lexer uses, without throwing anything.
+   */
   public static boolean isNumeric(String str) {
-    try {
-      Integer.parseInt(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false;
+    Lexer lexer = new Lexer(str);
+    return lexer.next() == TokenTypes.LITERAL.ordinal() && lexer.next() == Lexer.EOF;
+  }
+
+  /**
+   * Reads a source file through a memory map, decoded in one go into a CharBuffer the lexer can walk directly.
+   */
+  public static CharBuffer readSource(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path)) {
+      MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return StandardCharsets.UTF_8.newDecoder().decode(bytes);
     }
   }
 
-  private final String[] lines;
+  private final CharSequence content;
+  private final SourceMap sourceMap;
+  private final SymbolTable symbols = new SymbolTable();
+  private final int optLevel;
+  private final NumericMode numericMode;
+  private final UnderflowPolicy underflow;
+  private int nodeCount = 0;
+  private final List<String> warnings = new ArrayList<>();
+  private boolean inputs = false; // Whether variables can start at something other than 0
+  private boolean treeWalker = false; // Whether the tree is only for TreeExecutor; see setTreeWalker()
+  private Subroutines subroutines;
+
+  public AstCompiler(CharSequence content) {
+    this(content, 0);
+  }
+
+  /**
+   * optLevel 0 compiles the program as written; 1 also folds counting loops into arithmetic (see LoopOptimizer)
+   * propagates constants (see DataflowPass) and collapses runs of arithmetic (see OperatorFuser).
+   */
+  public AstCompiler(CharSequence content, int optLevel) {
+    this(content, optLevel, NumericMode.WRAP, UnderflowPolicy.ALLOW);
+  }
+
+  /**
+   * Anything but WRAP/ALLOW is only run by the tree walker, and turns folding off,
+   * since a folded loop can't stop at the step that would have overflowed.
+   */
+  public AstCompiler(CharSequence content, int optLevel, NumericMode numericMode, UnderflowPolicy underflow) {
+    this.content = content;
+    this.sourceMap = new SourceMap(content);
+    this.optLevel = optLevel;
+    this.numericMode = numericMode;
+    this.underflow = underflow;
+  }
+
+  /**
+   * Compiles into a CompiledProgram, for embedding. Its variables can be set before it runs,
+   * so nothing assumes they start at 0 and reading one before clearing it isn't worth a warning.
+   */
+  public CompiledProgram compileProgram() throws SyntaxError {
+    inputs = true;
+    return new CompiledProgram(this, compile());
+  }
 
-  public AstCompiler(String content) {
-    lines = content.split(";");
+  /**
+   * Compiles for TreeExecutor alone, which is the only thing that understands two things a tree can otherwise
+   * be without. Par blocks stay in it, for an executor with a pool to run their branches at the same time, and
+   * calls to bigger defs all share one copy of the body (see Subroutines). Otherwise, and always at optLevel 1,
+   * since the passes don't know about either, each par is replaced by its branches one after another (which the
+   * check in compile() makes give the same answer) and every call gets its own copy.
+   */
+  public void setTreeWalker(boolean treeWalker) {
+    this.treeWalker = treeWalker;
   }
 
   public AstNode compile() throws SyntaxError {
     // The root node is a node with a single condition - ONCE;
     // so it does nothing but contain the entire rest of the tree.
     AstNode rootNode = new AstNode(0, new TruthCondition(TruthTypes.ONCE, 0, 0));
-    makeAst(rootNode, lines, 0);
+    boolean optimise = optLevel >= 1 && numericMode == NumericMode.WRAP && underflow == UnderflowPolicy.ALLOW;
+    subroutines = new Subroutines(treeWalker && !optimise, numericMode, underflow);
+    makeAst(rootNode);
+
+    ParallelBlocks.Conflict conflict = ParallelBlocks.check(rootNode);
+    if (conflict != null) {
+      throw syntaxError(sourceMap, conflict.statement(), sourceMap.columnOf(conflict.statement()),
+          " - " + Subroutines.describe(conflict.variable()) + " is changed in one branch of a par and used in another");
+    }
+
+    // Checked on the tree as written, so the line numbers are the ones the user knows
+    if (!inputs) {
+      for (DataflowPass.UnclearedRead read : DataflowPass.unclearedReads(rootNode)) {
+        warnings.add(String.format("Warning in line %d, column %d: '%s;' - %s is read before it's ever cleared, "
+                + "so it starts at 0", sourceMap.lineOf(read.statement()), sourceMap.columnOf(read.statement()),
+            sourceMap.text(read.statement()), Subroutines.describe(read.variable())));
+      }
+    }
+
+    if (!treeWalker || optimise) {
+      ParallelBlocks.lower(rootNode);
+    }
+    if (optimise) {
+      new LoopOptimizer().optimize(rootNode);
+      new DataflowPass(!inputs).optimize(rootNode);
+      new OperatorFuser().optimize(rootNode);
+    }
+
+    // Symbol resolution pass: give every variable a slot in the register file,
+    // so nothing has to look values up by name at runtime. Nodes get their ids here too.
+    nodeCount = rootNode.resolve(symbols);
 
     return rootNode;
   }
 
-  public String[] getLines() {
-    return lines;
+  public SourceMap getSourceMap() {
+    return sourceMap;
+  }
+
+  public SymbolTable getSymbols() {
+    return symbols;
+  }
+
+  public NumericMode getNumericMode() {
+    return numericMode;
+  }
+
+  public UnderflowPolicy getUnderflowPolicy() {
+    return underflow;
+  }
+
+  // Anything suspicious compile() noticed that isn't an error, one message each
+  public List<String> getWarnings() {
+    return warnings;
+  }
+
+  // Nodes in the compiled tree, root included; every AstNode.id is below this
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  // How many calls got their own copy of the def's body, and how many share one; see Subroutines
+  public int getInlinedCalls() {
+    return subroutines == null ? 0 : subroutines.getInlined();
+  }
+
+  public int getSharedCalls() {
+    return subroutines == null ? 0 : subroutines.getShared();
   }
 
   /**
-   * Recursive function to create the AST from a specific line number.
-   * Returns when it encounters "end;".
-   * Since it modifies the AST in-place, there is no need to return the AST.
-   * It instead returns the number of lines parsed, to allow for easy handling of moving on the pointer.
+   * Builds the whole tree under root, one statement at a time.
+   * WHILE pushes its node onto the block stack so the statements after it go inside, END pops it.
+   * PAR pushes the par block too, and its first branch is where statements go; AND starts the next branch.
+   * DEF's statements go into its body instead of the tree, and are only copied in by each CALL.
    */
-  private int makeAst(AstNode root, String[] lines, int position) throws SyntaxError {
-    int offset = position;
-
-    // We only need to initialise this once.
-    // List<TokenTypes[]> grammarList = Arrays.asList(CodeGrammars.acceptedGrammars);
-    // Maybe not even once.
-
-    for (int i = 0; i + offset < lines.length; i++) {
-      // Essentially; parse every line in turn, adding it to the root.
-      // If the line matches the signature of a WHILE
-      // (or any other control statements that may or may not be added lol haha ;) )
-      // then add the condition node to the tree and recurse into that node starting at line i,
-      // then add the number of lines handled inside the recursed function to offset.
-      //
-      int location = i + offset;
-      String line = lines[location];
-
-      // Split by every space to get each token, add to the token list
-      String[] tokens = line.split(" ");
-      List<TokenTypes> tokenTypes = new ArrayList<>(); // Used for syntax checking
-
-      // For all tokens in the list,
-      for (String token : tokens) {
-        // Try to select an operator or control statement first
-        boolean gotToken = false;
-        switch (token) {
-          case "clear", "incr", "decr" -> {
-            tokenTypes.add(TokenTypes.UOPERATOR);
-            gotToken = true;
-          }
-          case "while" -> {
-            tokenTypes.add(TokenTypes.CONTROL);
-            gotToken = true;
-          }
-          case "not" -> {
-            tokenTypes.add(TokenTypes.NOT);
-            gotToken = true;
+  private void makeAst(AstNode root) throws SyntaxError {
+    StatementParser parser = new StatementParser(new Lexer(content), numericMode, underflow);
+    ArrayDeque<AstNode> blocks = new ArrayDeque<>();
+    AstNode current = root;
+    int pars = 0; // Open par blocks
+
+    int kind;
+    while ((kind = parser.next()) != StatementParser.EOF) {
+      int statement = sourceMap.add(parser.start, parser.end, parser.line, parser.column);
+
+      switch (kind) {
+        case StatementParser.ERROR -> throw syntaxError(sourceMap, statement, parser.errorColumn, "");
+        case StatementParser.OPERATOR -> {
+          // Slots go in source order here, so optimisations that drop statements don't reorder the output.
+          // A def's variables are renamed once it's finished, so they're left until they're called.
+          if (subroutines.openBody() == null) {
+            symbols.slotOf(parser.name);
           }
-          case "do" -> {
-            tokenTypes.add(TokenTypes.DO);
-            gotToken = true;
+          current.addNode(parser.node(statement));
+        }
+        case StatementParser.WHILE -> {
+          // Add the node, then make it the block the following statements go into.
+          if (subroutines.openBody() == null) {
+            symbols.slotOf(parser.name);
           }
-          case "end" -> {
-            tokenTypes.add(TokenTypes.END);
-            gotToken = true;
+          AstNode newNode = parser.node(statement);
+          current.addNode(newNode);
+          blocks.push(current);
+          current = newNode;
+        }
+        case StatementParser.PAR -> {
+          AstNode par = new AstNode(statement, true);
+          current.addNode(par);
+          blocks.push(current);
+          blocks.push(par);
+          current = new AstNode(statement, false);
+          par.addNode(current);
+          pars++;
+        }
+        case StatementParser.AND -> {
+          // Only straight inside a branch, not in a while within one
+          if (blocks.isEmpty() || !blocks.peek().isParallel()) {
+            throw syntaxError(sourceMap, statement, parser.column, " - and outside a par");
           }
+          current = new AstNode(statement, false);
+          blocks.peek().addNode(current);
         }
-
-        // If none selected, it has to be either a variable or a literal
-        // We can tell by testing if the token is parseable as an int
-        if (!gotToken) {
-          if (isNumeric(token)) {
-            tokenTypes.add(TokenTypes.LITERAL);
-          } else {
-            tokenTypes.add(TokenTypes.VARIABLE);
+        case StatementParser.DEF -> {
+          if (current != root) {
+            throw syntaxError(sourceMap, statement, parser.column, " - defs can only go at the top level");
           }
+          blocks.push(current);
+          current = subroutine(() -> subroutines.begin(parser.name, parser.args, statement), statement, parser.column);
         }
-      }
-
-      if (tokens.length > 0) {
-        // Now that we have a token list, check on grammars to see if the list exists.
-        // If it doesn't, throw a SyntaxError.
-        // int gramIndex = grammarList.indexOf(tokenTypes.toArray(new TokenTypes[0]));
-        // Doesn't work because ??????? so I'm using a custom function that should do it for me
-
-        int gramIndex = findGrammarIndex(CodeGrammars.acceptedGrammars, tokenTypes);
-
-        if (gramIndex == -1) {
-          throw new SyntaxError(
-              String.format("SyntaxError in line %d: '%s;'", location + 1, line)
-          );
+        case StatementParser.CALL -> {
+          boolean inPar = pars > 0;
+          for (AstNode node : subroutine(() -> subroutines.call(parser.name, parser.args, statement, inPar), statement,
+              parser.column)) {
+            current.addNode(node);
+          }
+          if (subroutines.openBody() == null) {
+            for (String arg : parser.args) {
+              symbols.slotOf(arg);
+            }
+          }
         }
-
-        TokenTypes[] grammarArr = CodeGrammars.acceptedGrammars[gramIndex];
-
-        // OK FINALLY we get to take the tokens and build an actual statement.
-        // Every statement will contain one operator / condition - UOPERATOR, [BOPERATOR], CONTROL or END.
-        // Get it, then fill up the rest of the slots with the given grammar. Remember, we know exactly
-        // how the code will look, since we are known to conform to a specific grammar at this point.
-        TokenTypes mainToken = grammarArr[CodeGrammars.mainLocations[gramIndex]];
-        switch (mainToken) {
-          case UOPERATOR -> {
-            // Make the new node then continue.
-            // Unary operator so construct with only one value.
-            AstNode newNode = new AstNode(
-                location + 1, new Operator(CodeGrammars.operKeywords.get(tokens[0]), tokens[1])
-            );
-
-            root.addNode(newNode);
-            // System.out.println("Added UOPERATOR node at " + location + " - " + CodeGrammars.operKeywords.get(tokens[0]));
+        default -> {
+          // END means the control block is finished, so go back to the one outside it.
+          if (blocks.isEmpty()) {
+            throw syntaxError(sourceMap, statement, parser.column, " - end without a while");
           }
-          case CONTROL -> {
-            // Make the new node, then call makeAst() with that node as root and current position as location.
-            // Then, add the value returned from makeAst() to offset in this function.
-            AstNode newNode = new AstNode(
-                location + 1, new TruthCondition(
-                CodeGrammars.mainTruthTypes[gramIndex], tokens[1], tokens[3]
-            )
-            );
-
-            root.addNode(newNode);
-            // System.out.println("Added CONTROL node at " + location + " - " + CodeGrammars.mainTruthTypes[gramIndex]);
-
-            offset += makeAst(newNode, lines, location + 1) + 1;
+          if (blocks.peek().isParallel()) {
+            blocks.pop(); // The end of a branch is the end of the par
+            pars--;
           }
-          case END -> {
-            // END is a little different; it means we immediately jump out of the current function
-            // since the control block is finished.
-            // We also return the current value of i (the number of lines traversed)
-            // which the caller will add to its offset.
-            // System.out.println("Jumped out through END node at " + location);
-            return i;
+          if (current == subroutines.openBody()) {
+            subroutines.end();
           }
+          current = blocks.pop();
         }
       }
     }
 
-    // After it's done, we don't need to return anything.
-    return -1;
+    if (current != root) {
+      AstNode open = blocks.peek().isParallel() ? blocks.peek() : current;
+      String what = open.isParallel() ? "par" : open == subroutines.openBody() ? "def" : "while";
+      throw syntaxError(sourceMap, open.line, sourceMap.columnOf(open.line), " - " + what + " is never closed with end");
+    }
   }
 
-  private int findGrammarIndex(TokenTypes[][] arr, List<TokenTypes> gram) {
-    for (int i = 0; i < arr.length; i++) {
-      if (Arrays.equals(arr[i], gram.toArray())) {
-        return i;
-      }
+  // Runs a def or call, turning what Subroutines says is wrong with it into a SyntaxError
+  private <T> T subroutine(Supplier<T> action, int statement, int column) throws SyntaxError {
+    try {
+      return action.get();
+    } catch (IllegalArgumentException e) {
+      throw syntaxError(sourceMap, statement, column, " - " + e.getMessage());
     }
-
-    return -1;
   }
-}
 
-class SyntaxError extends Exception {
-  public SyntaxError(String errorMessage) {
-    super(errorMessage);
+  // Also used by IncrementalCompiler, so its errors read exactly like a full compile's
+  static SyntaxError syntaxError(SourceMap sourceMap, int statement, int column, String detail) {
+    int line = sourceMap.lineOf(statement);
+    return new SyntaxError(
+        String.format("SyntaxError in line %d, column %d: '%s;'%s", line, column, sourceMap.text(statement), detail),
+        line, column
+    );
   }
 }
-
-class CodeGrammars {
-  /**
-   * UOPERATOR VARIABLE                  incr x
-   * CONTROL VARIABLE NOT LITERAL DO     while x not 0 do
-   * END                                 end
-   */
-  static TokenTypes[][] acceptedGrammars = {
-      {TokenTypes.UOPERATOR, TokenTypes.VARIABLE},
-      {TokenTypes.CONTROL, TokenTypes.VARIABLE, TokenTypes.NOT, TokenTypes.LITERAL, TokenTypes.DO},
-      {TokenTypes.END}
-  };
-
-  // Shows where the main operator/control token will exist in each grammar.
-  static int[] mainLocations = {
-      0, 0, 0
-  };
-
-  // Shows which truth type is associated with each (control) grammar.
-  static TruthTypes[] mainTruthTypes = {
-      null, TruthTypes.NOT, null
-  };
-
-  static HashMap<String, OperatorTypes> operKeywords = new HashMap<String, OperatorTypes>() {
-    {
-      put("incr", OperatorTypes.INCR);
-      put("decr", OperatorTypes.DECR);
-      put("clear", OperatorTypes.CLEAR);
-    }
-  };
-}
-
-enum TokenTypes {
-  // UOPERATOR - Unary operator
-  // BOPERATOR - Binary operator
-  VARIABLE, LITERAL, CONTROL, UOPERATOR, BOPERATOR, NOT, DO, END
-}
\ No newline at end of file
@@ -1,17 +1,23 @@
+import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
- * Forms a single node of an AST. Can have arbitrarily many nodes, for which the interpreter
- * will recursively iterate through for as long as node.condition remains true.
+ * Forms a single node of an AST. Can have arbitrarily many nodes, which TreeExecutor
+ * runs through for as long as node.condition remains true.
  */
 public class AstNode {
-  // All nodes must contain either a condition or an operator.
-  // The constructor is overloaded to reflect this.
+  // All nodes must contain either a condition or an operator, except par blocks and their branches,
+  // which have neither. The constructor is overloaded to reflect this.
   private TruthCondition condition = null;
   private Operator operator = null;
+  private boolean parallel = false; // A par block, whose children are its branches
+  private boolean shared = false; // A def's body, which is a child of every call to it that wasn't inlined
   public int line;
+  public int id; // Position in a pre-order walk, root = 0; set by resolve(), for per-node arrays like Profiler's
 
   private List<AstNode> children = new ArrayList<>();
 
@@ -25,23 +31,136 @@ public class AstNode {
     operator = sOper;
   }
 
+  // A par block (parallel) or one of its branches. Only kept in trees compiled for TreeExecutor; see ParallelBlocks.
+  public AstNode(int line, boolean parallel) {
+    this.line = line;
+    this.parallel = parallel;
+  }
+
   // Returns an array of the node's children.
   public AstNode[] getChildren() {
     return children.toArray(new AstNode[0]);
   }
 
+  public int getChildCount() {
+    return children.size();
+  }
+
+  public AstNode getChild(int index) {
+    return children.get(index);
+  }
+
+  // Either of these may be null; a node has at most one of them.
+  public TruthCondition getCondition() {
+    return condition;
+  }
+
+  public Operator getOperator() {
+    return operator;
+  }
+
+  // A par block or a branch of one: no condition, no operator, and its children run once
+  public boolean isBlock() {
+    return condition == null && operator == null;
+  }
+
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * A block that's in the tree more than once, so the tree is really a DAG; see Subroutines.
+   * Anything that walks the whole tree should only go into one of these once.
+   */
+  public boolean isShared() {
+    return shared;
+  }
+
+  void share() {
+    shared = true;
+  }
+
+  // Replaces every child at once. Used by optimisation passes that rewrite the tree.
+  public void setChildren(List<AstNode> nodes) {
+    this.children = new ArrayList<>(nodes);
+  }
+
   public void addNode(AstNode node) {
     this.children.add(node);
   }
 
-  public void runOperator(Hashtable<String, Integer> vals) {
+  // The rest are for IncrementalCompiler, which patches a tree in place instead of rebuilding it.
+  void setChild(int index, AstNode node) {
+    children.set(index, node);
+  }
+
+  // Replaces count children from index on with nodes
+  void replaceChildren(int index, int count, List<AstNode> nodes) {
+    children.subList(index, index + count).clear();
+    children.addAll(index, nodes);
+  }
+
+  // Moves every child of from over to this node, without copying them
+  void takeChildren(AstNode from) {
+    children = from.children;
+    from.children = new ArrayList<>();
+  }
+
+  // Index of the first child on line or after it, or getChildCount() if there isn't one
+  int childIndexFrom(int line) {
+    int low = 0;
+    int high = children.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (children.get(mid).line < line) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Resolves variable names to register slots for this node and all of its children, and numbers them.
+   * Works through an explicit stack, so deeply nested loops can't overflow the Java stack.
+   * Returns how many nodes there are, which is one more than the highest id. A shared block only counts once.
+   */
+  public int resolve(SymbolTable symbols) {
+    int nextId = 0;
+    Set<AstNode> seen = new HashSet<>(); // Shared blocks already numbered
+    ArrayDeque<AstNode> pending = new ArrayDeque<>();
+    pending.push(this);
+    while (!pending.isEmpty()) {
+      AstNode node = pending.pop();
+      if (node.shared && !seen.add(node)) {
+        continue;
+      }
+      node.id = nextId++;
+      if (node.condition != null) {
+        node.condition.resolve(symbols);
+      }
+      if (node.operator != null) {
+        node.operator.resolve(symbols);
+      }
+
+      // Pushed in reverse so slots are still handed out in source order
+      for (int i = node.children.size() - 1; i >= 0; i--) {
+        pending.push(node.children.get(i));
+      }
+    }
+
+    return nextId;
+  }
+
+  public void runOperator(long[] vals) {
     // Does not run operator if operator is null.
     if (operator != null) {
       operator.runOperator(vals);
     }
   }
 
-  public int testCondition(Hashtable<String, Integer> vals) {
+  public int testCondition(long[] vals) {
     // Returns -1 (no condition) if condition is null.
     if (condition == null) {
       return -1;
@@ -50,4 +169,20 @@ public class AstNode {
       return condition.testTrue(vals) ? 1 : 0;
     }
   }
+
+  // Same as above for NumericMode.BIG; big may be null outside BIG mode
+  public void runOperator(long[] vals, BigInteger[] big) {
+    if (big == null) {
+      runOperator(vals);
+    } else if (operator != null) {
+      operator.runOperator(vals, big);
+    }
+  }
+
+  public int testCondition(long[] vals, BigInteger[] big) {
+    if (big == null || condition == null) {
+      return testCondition(vals);
+    }
+    return condition.testTrue(vals, big) ? 1 : 0;
+  }
 }
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs every program in a directory, or listed in a manifest file, across all cores.
+ * Each program is compiled once into a BytecodeProgram, which never changes after it's built,
+ * so every run of it shares the one copy; runs only get their own VirtualMachine and registers.
+ * Work goes on a ForkJoinPool, so threads that run out of work steal from busy ones.
+ *
+ * One JSON object per line is printed to stdout as each run ends, and a throughput summary goes
+ * to stderr at the end so stdout stays machine-readable. Exits with status 1 if anything failed to compile.
+ * Compiling goes through a ProgramCache, so identical sources are only compiled once, and with --cache
+ * the compiled forms are kept on disk for the next batch.
+ *
+ * With --slice, runs are time-sliced: each gets that many steps, is suspended, and goes to the back of
+ * the queue, so a few long or runaway programs can't hold every thread while short ones wait.
+ * --steps and --time-ms limit each run in total, over all its slices.
+ *
+ * Usage: BatchRunner [--threads=N] [--steps=N] [--time-ms=N] [--slice=N] [--opt=0|1] [--repeat=N]
+ *                    [--cache=dir] dir|manifest|file.bb
+ * A manifest is a text file with one path per line, relative to the manifest; blank lines and # comments are skipped.
+ */
+public class BatchRunner {
+  private final int optLevel;
+  private final long stepLimit;
+  private final long timeLimitNanos; // 0 = none
+  private final long slice; // Steps per slice; Long.MAX_VALUE = run to the end in one go
+  private final int repeat;
+  private final ProgramCache cache;
+
+  private final LongAdder steps = new LongAdder();
+  private final LongAdder runs = new LongAdder();
+  private final LongAdder outOfSteps = new LongAdder();
+  private final LongAdder outOfTime = new LongAdder();
+  private final LongAdder slices = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  // A program that compiled, or the reason it didn't
+  private record Job(Path path, BytecodeProgram program, String error) {
+  }
+
+  public BatchRunner(int optLevel, long stepLimit, long timeLimitNanos, long slice, int repeat, ProgramCache cache) {
+    this.optLevel = optLevel;
+    this.stepLimit = stepLimit;
+    this.timeLimitNanos = timeLimitNanos;
+    this.slice = slice;
+    this.repeat = repeat;
+    this.cache = cache;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int threads = Runtime.getRuntime().availableProcessors();
+    long stepLimit = Long.MAX_VALUE;
+    long timeLimitMs = 0;
+    long slice = Long.MAX_VALUE;
+    int optLevel = 0;
+    int repeat = 1;
+    Path cacheDir = null;
+    String target = null;
+
+    try {
+      for (String arg : args) {
+        if (arg.startsWith("--threads=")) {
+          threads = RunOptions.parseInt(arg, 1, 4096);
+        } else if (arg.startsWith("--steps=")) {
+          stepLimit = RunOptions.parseLong(arg, 1, Long.MAX_VALUE);
+        } else if (arg.startsWith("--time-ms=")) {
+          timeLimitMs = RunOptions.parseLong(arg, 1, Long.MAX_VALUE / 1_000_000);
+        } else if (arg.startsWith("--slice=")) {
+          slice = RunOptions.parseLong(arg, 1, Long.MAX_VALUE);
+        } else if (arg.startsWith("--opt=")) {
+          optLevel = RunOptions.parseInt(arg, 0, 1);
+        } else if (arg.startsWith("--repeat=")) {
+          repeat = RunOptions.parseInt(arg, 1, Integer.MAX_VALUE);
+        } else if (arg.startsWith("--cache=")) {
+          cacheDir = Path.of(arg.substring(arg.indexOf('=') + 1));
+        } else if (arg.startsWith("-")) {
+          throw new IllegalArgumentException("Unknown option " + arg);
+        } else {
+          target = arg;
+        }
+      }
+      if (target == null) {
+        throw new IllegalArgumentException("Usage: BatchRunner [--threads=N] [--steps=N] [--time-ms=N] "
+            + "[--slice=N] [--opt=0|1] [--repeat=N] [--cache=dir] dir|manifest|file.bb");
+      }
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      return;
+    }
+
+    List<Path> paths = listPrograms(Path.of(target));
+    ProgramCache cache = new ProgramCache(cacheDir, 1024);
+    BatchRunner runner = new BatchRunner(optLevel, stepLimit, timeLimitMs * 1_000_000, slice, repeat, cache);
+
+    // Async mode makes each worker's queue first in, first out, so a resubmitted slice waits its turn
+    ForkJoinPool pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    try {
+      runner.runAll(paths, pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    if (runner.failed.sum() > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Every .bb file under a directory, in a stable order, or every path in a manifest.
+   * A single .bb file is a batch of one.
+   */
+  static List<Path> listPrograms(Path target) throws IOException {
+    if (target.toString().endsWith(".bb")) {
+      return List.of(target);
+    }
+    if (Files.isDirectory(target)) {
+      try (Stream<Path> files = Files.walk(target)) {
+        return files.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".bb"))
+            .sorted()
+            .collect(Collectors.toList());
+      }
+    }
+
+    Path base = target.toAbsolutePath().getParent();
+    List<Path> paths = new ArrayList<>();
+    for (String line : Files.readAllLines(target)) {
+      line = line.trim();
+      if (!line.isEmpty() && !line.startsWith("#")) {
+        paths.add(base.resolve(line));
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Compiles all the programs, then runs each one repeat times, printing a line per run and a summary.
+   */
+  public void runAll(List<Path> paths, ForkJoinPool pool) throws InterruptedException {
+    long start = System.nanoTime();
+
+    List<Callable<Job>> compiles = new ArrayList<>();
+    for (Path path : paths) {
+      compiles.add(() -> compile(path));
+    }
+
+    List<Job> compiled = new ArrayList<>();
+    for (Future<Job> future : pool.invokeAll(compiles)) {
+      Job job = result(future);
+      if (job.program == null) {
+        failed.increment();
+        emit("{\"program\":" + quote(job.path.toString()) + ",\"status\":\"error\",\"error\":"
+            + quote(job.error) + "}");
+        continue;
+      }
+
+      compiled.add(job);
+    }
+
+    // Runs resubmit themselves until they're done, so wait for each to count down rather than on futures
+    CountDownLatch done = new CountDownLatch(compiled.size() * repeat);
+    for (Job job : compiled) {
+      for (int i = 0; i < repeat; i++) {
+        pool.execute(new Run(job, i, pool, done));
+      }
+    }
+    done.await();
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.printf("%d programs, %d runs on %d threads in %.3f s: %.1f programs/s, %.4g steps/s "
+            + "(%d slices, %d out of steps, %d out of time, %d failed to compile)%n",
+        paths.size(), runs.sum(), pool.getParallelism(), seconds, runs.sum() / seconds, steps.sum() / seconds,
+        slices.sum(), outOfSteps.sum(), outOfTime.sum(), failed.sum());
+    System.err.println(cache);
+  }
+
+  private Job compile(Path path) {
+    try {
+      return new Job(path, cache.get(AstCompiler.readSource(path), optLevel), null);
+    } catch (IOException e) {
+      return new Job(path, null, "Can't read file: " + e.getMessage());
+    } catch (SyntaxError e) {
+      return new Job(path, null, e.getMessage());
+    }
+  }
+
+  // One run of a program: its own machine and registers, which hold everything needed to carry on after a slice
+  private final class Run implements Runnable {
+    private final Job job;
+    private final int index;
+    private final VirtualMachine vm;
+    private final long[] regs;
+    private final ForkJoinPool pool;
+    private final CountDownLatch done;
+    private long used = 0; // Nanoseconds spent running, over all slices
+
+    Run(Job job, int index, ForkJoinPool pool, CountDownLatch done) {
+      this.job = job;
+      this.index = index;
+      this.vm = new VirtualMachine(job.program);
+      this.regs = job.program.newRegisters();
+      this.pool = pool;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      try {
+        long start = System.nanoTime();
+        long deadline = timeLimitNanos == 0 ? 0 : start + Math.max(1, timeLimitNanos - used);
+        RunStatus status = vm.run(regs, Math.min(slice, stepLimit - vm.getSteps()), deadline);
+        used += System.nanoTime() - start;
+        slices.increment();
+
+        if (status == RunStatus.OUT_OF_STEPS && vm.getSteps() < stepLimit) {
+          // Only the slice is used up; let everything else queued have a go first
+          pool.execute(this);
+          return;
+        }
+        finish(this, status);
+      } catch (RuntimeException e) {
+        emit("{\"program\":" + quote(job.path.toString()) + ",\"run\":" + index + ",\"status\":\"error\",\"error\":"
+            + quote(e.toString()) + "}");
+      }
+      done.countDown();
+    }
+  }
+
+  private void finish(Run run, RunStatus status) {
+    BytecodeProgram program = run.job.program;
+    runs.increment();
+    steps.add(run.vm.getSteps());
+    if (status == RunStatus.OUT_OF_STEPS) {
+      outOfSteps.increment();
+    } else if (status == RunStatus.OUT_OF_TIME) {
+      outOfTime.increment();
+    }
+
+    StringBuilder line = new StringBuilder();
+    line.append("{\"program\":").append(quote(run.job.path.toString()))
+        .append(",\"run\":").append(run.index)
+        .append(",\"status\":\"").append(status.name().toLowerCase(Locale.ROOT))
+        .append("\",\"steps\":").append(run.vm.getSteps())
+        .append(",\"ms\":").append(String.format(Locale.ROOT, "%.3f", run.used / 1e6))
+        .append(",\"vars\":{");
+    boolean first = true;
+    for (int i = 0; i < program.varCount(); i++) {
+      if (!SymbolTable.isHidden(program.names[i])) {
+        line.append(first ? "" : ",").append(quote(program.names[i])).append(':').append(run.regs[i]);
+        first = false;
+      }
+    }
+    emit(line.append("}}").toString());
+  }
+
+  // Whole lines only, so output from different threads never interleaves
+  private static void emit(String line) {
+    synchronized (System.out) {
+      System.out.println(line);
+    }
+  }
+
+  private static <T> T result(Future<T> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Batch task failed", e.getCause());
+    }
+  }
+
+  static String quote(String text) {
+    StringBuilder out = new StringBuilder("\"");
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.append('\\').append(c);
+      } else if (c < 0x20) {
+        out.append(String.format("\\u%04x", (int) c));
+      } else {
+        out.append(c);
+      }
+    }
+    return out.append('"').toString();
+  }
+}
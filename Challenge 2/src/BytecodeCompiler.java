@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Lowers a resolved AST (from AstCompiler.compile()) into a BytecodeProgram.
+ * Every WHILE becomes a rotated loop, so each iteration costs one conditional jump:
+ *
+ *       JMP test
+ * body: ...children...
+ * test: Jcc a b body
+ *
+ * Adjacent incr/decr pairs go out as one superinstruction (INCDEC, INCINC), so the usual
+ * "decr X; incr Y" loop body is a single dispatch. It takes the line of the first of the two.
+ */
+public class BytecodeCompiler {
+  private final SymbolTable symbols;
+
+  private int[] code = new int[64];
+  private int[] lines = new int[64];
+  private int size = 0;
+
+  private final List<Long> constants = new ArrayList<>();
+  private final HashMap<Long, Integer> constantSlots = new HashMap<>();
+
+  public BytecodeCompiler(SymbolTable symbols) {
+    this.symbols = symbols;
+  }
+
+  public BytecodeProgram compile(AstNode root) {
+    // The root node is the ONCE wrapper, so only its children produce code.
+    emitBlock(root);
+    emit(0, BytecodeProgram.HALT);
+
+    long[] consts = new long[constants.size()];
+    for (int i = 0; i < consts.length; i++) {
+      consts[i] = constants.get(i);
+    }
+
+    return new BytecodeProgram(
+        Arrays.copyOf(code, size), Arrays.copyOf(lines, size), consts, symbols.getNames()
+    );
+  }
+
+  private void emitNode(AstNode node) {
+    Operator oper = node.getOperator();
+    if (oper != null) {
+      emitOperator(node.line, oper);
+      return;
+    }
+
+    TruthCondition cond = node.getCondition();
+    int jump = emit(node.line, BytecodeProgram.JMP, -1);
+    int body = size;
+    emitBlock(node);
+    code[jump + 1] = size;
+    emitBranch(node.line, cond, body);
+  }
+
+  private void emitBlock(AstNode parent) {
+    for (int i = 0; i < parent.getChildCount(); i++) {
+      AstNode node = parent.getChild(i);
+      if (i + 1 < parent.getChildCount() && emitPair(node, parent.getChild(i + 1))) {
+        i++;
+      } else {
+        emitNode(node);
+      }
+    }
+  }
+
+  // Emits first and second as one superinstruction if there is one for them
+  private boolean emitPair(AstNode first, AstNode second) {
+    Operator a = first.getOperator();
+    Operator b = second.getOperator();
+    if (a == null || b == null) {
+      return false;
+    }
+
+    OperatorTypes x = a.getType();
+    OperatorTypes y = b.getType();
+    if (x == OperatorTypes.INCR && y == OperatorTypes.DECR) {
+      emit(first.line, BytecodeProgram.INCDEC, a.getSlot1(), b.getSlot1());
+    } else if (x == OperatorTypes.DECR && y == OperatorTypes.INCR) {
+      emit(first.line, BytecodeProgram.INCDEC, b.getSlot1(), a.getSlot1());
+    } else if (x == OperatorTypes.INCR && y == OperatorTypes.INCR) {
+      emit(first.line, BytecodeProgram.INCINC, a.getSlot1(), b.getSlot1());
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private void emitOperator(int line, Operator oper) {
+    switch (oper.getType()) {
+      case CLEAR -> emit(line, BytecodeProgram.CLEAR, oper.getSlot1());
+      case INCR -> emit(line, BytecodeProgram.INCR, oper.getSlot1());
+      case DECR -> emit(line, BytecodeProgram.DECR, oper.getSlot1());
+      case ADD -> emit(line, BytecodeProgram.ADD, oper.getSlot1(), operandSlot(oper.getSlot2(), oper.getOp2Lit()));
+      case SUB -> emit(line, BytecodeProgram.SUB, oper.getSlot1(), operandSlot(oper.getSlot2(), oper.getOp2Lit()));
+      case MUL -> emit(line, BytecodeProgram.MUL, oper.getSlot1(), operandSlot(oper.getSlot2(), oper.getOp2Lit()));
+      case DIV -> emit(line, BytecodeProgram.DIV, oper.getSlot1(), operandSlot(oper.getSlot2(), oper.getOp2Lit()));
+      default -> throw new IllegalStateException("No bytecode for operator " + oper.getType());
+    }
+  }
+
+  // Emits a jump to target taken while cond holds.
+  private void emitBranch(int line, TruthCondition cond, int target) {
+    int a = operandSlot(cond.getSlot1(), cond.getOp1Lit());
+    int b = operandSlot(cond.getSlot2(), cond.getOp2Lit());
+
+    switch (cond.getType()) {
+      case NOT -> {
+        // "not 0" is by far the most common condition, so it gets its own opcode.
+        if (cond.getSlot2() < 0 && cond.getOp2Lit() == 0) {
+          emit(line, BytecodeProgram.JNZ, a, target);
+        } else {
+          emit(line, BytecodeProgram.JNE, a, b, target);
+        }
+      }
+      case IS -> emit(line, BytecodeProgram.JEQ, a, b, target);
+      case GT -> emit(line, BytecodeProgram.JGT, a, b, target);
+      case LT -> emit(line, BytecodeProgram.JLT, a, b, target);
+      case DIVISIBLE -> emit(line, BytecodeProgram.JDV, a, b, target);
+      default -> throw new IllegalStateException("No bytecode for condition " + cond.getType());
+    }
+  }
+
+  // Returns the register holding an operand, allocating a constant register for literals.
+  private int operandSlot(int slot, long literal) {
+    if (slot >= 0) {
+      return slot;
+    }
+
+    Integer constSlot = constantSlots.get(literal);
+    if (constSlot == null) {
+      constSlot = symbols.size() + constants.size();
+      constants.add(literal);
+      constantSlots.put(literal, constSlot);
+    }
+
+    return constSlot;
+  }
+
+  // Appends one instruction and returns its pc.
+  private int emit(int line, int... instr) {
+    if (size + instr.length > code.length) {
+      code = Arrays.copyOf(code, Math.max(code.length * 2, size + instr.length));
+      lines = Arrays.copyOf(lines, code.length);
+    }
+
+    int pc = size;
+    System.arraycopy(instr, 0, code, size, instr.length);
+    lines[pc] = line;
+    size += instr.length;
+    return pc;
+  }
+}
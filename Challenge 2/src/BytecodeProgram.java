@@ -0,0 +1,170 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A flattened, int-encoded version of an AST, produced by BytecodeCompiler and run by VirtualMachine.
+ * Each instruction is an opcode followed by its operands, all stored inline in code[].
+ * Operands are register slots; literals live in extra registers after the variables,
+ * which newRegisters() preloads, so every comparison is register against register.
+ */
+public class BytecodeProgram {
+  //                           Operands      Meaning
+  public static final int HALT = 0;     //                 stop
+  public static final int CLEAR = 1;    // a               r[a] = 0
+  public static final int INCR = 2;     // a               r[a]++
+  public static final int DECR = 3;     // a               r[a]--
+  public static final int JMP = 4;      // t               goto t
+  public static final int JNZ = 5;      // a t             if r[a] != 0 goto t
+  public static final int JNE = 6;      // a b t           if r[a] != r[b] goto t
+  public static final int JEQ = 7;      // a b t           if r[a] == r[b] goto t
+  public static final int JGT = 8;      // a b t           if r[a] > r[b] goto t
+  public static final int JLT = 9;      // a b t           if r[a] < r[b] goto t
+  public static final int JDV = 10;     // a b t           if TruthCondition.divisible(r[a], r[b]) goto t
+  public static final int ADD = 11;     // a b             r[a] += r[b]
+  public static final int SUB = 12;     // a b             r[a] -= r[b]
+  public static final int MUL = 13;     // a b             r[a] *= r[b]
+  public static final int DIV = 14;     // a b             r[a] /= r[b]
+  // Superinstructions for the pairs loop bodies are made of; a and b may be the same register
+  public static final int INCDEC = 15;  // a b             r[a]++; r[b]--
+  public static final int INCINC = 16;  // a b             r[a]++; r[b]++
+
+  private static final String[] opNames = {
+      "HALT", "CLEAR", "INCR", "DECR", "JMP", "JNZ", "JNE", "JEQ", "JGT", "JLT", "JDV",
+      "ADD", "SUB", "MUL", "DIV", "INCDEC", "INCINC"
+  };
+
+  private static final int[] widths = {
+      1, 2, 2, 2, 2, 3, 4, 4, 4, 4, 4,
+      3, 3, 3, 3, 3, 3
+  };
+
+  public final int[] code;
+  public final int[] lines; // Source line (AstNode.line) of the instruction starting at each pc, 0 otherwise
+  public final long[] constants;
+  public final String[] names; // One per variable slot; constants have no name
+
+  public BytecodeProgram(int[] code, int[] lines, long[] constants, String[] names) {
+    this.code = code;
+    this.lines = lines;
+    this.constants = constants;
+    this.names = names;
+  }
+
+  private static final int MAGIC = 0x42424332; // "BBC2"; change the digit if the layout or opcodes change
+
+  public static int width(int opcode) {
+    return widths[opcode];
+  }
+
+  public static String opName(int opcode) {
+    return opNames[opcode];
+  }
+
+  public int varCount() {
+    return names.length;
+  }
+
+  /**
+   * A register file for this program: variables set to 0, followed by the constants.
+   */
+  public long[] newRegisters() {
+    long[] regs = new long[names.length + constants.length];
+    System.arraycopy(constants, 0, regs, names.length, constants.length);
+    return regs;
+  }
+
+  /**
+   * Human-readable listing, one instruction per line. Useful for debugging the compiler.
+   */
+  public String disassemble() {
+    StringBuilder out = new StringBuilder();
+    for (int pc = 0; pc < code.length; pc += width(code[pc])) {
+      out.append(String.format("%5d  %-6s", pc, opName(code[pc])));
+      for (int i = 1; i < width(code[pc]); i++) {
+        out.append(' ').append(code[pc + i]);
+      }
+      if (lines[pc] != 0) {
+        out.append("    ; line ").append(lines[pc]);
+      }
+      out.append('\n');
+    }
+
+    return out.toString();
+  }
+
+  /**
+   * The variables after a run, by name, in slot order. Hidden temporaries are left out.
+   */
+  public Map<String, Long> toMap(long[] regs) {
+    Map<String, Long> map = new LinkedHashMap<>();
+    for (int i = 0; i < names.length; i++) {
+      if (!SymbolTable.isHidden(names[i])) {
+        map.put(names[i], regs[i]);
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Compact binary form, read back by read(). Layout (big-endian):
+   * magic, code length, code[], lines[], constant count, constants[], name count, then each name
+   * as a byte length followed by its UTF-8 bytes.
+   */
+  public byte[] toBytes() {
+    byte[][] encoded = new byte[names.length][];
+    int size = 4 * 4 + code.length * 8 + constants.length * 8;
+    for (int i = 0; i < names.length; i++) {
+      encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+      size += 4 + encoded[i].length;
+    }
+
+    ByteBuffer out = ByteBuffer.allocate(size);
+    out.putInt(MAGIC).putInt(code.length);
+    out.asIntBuffer().put(code).put(lines);
+    out.position(out.position() + code.length * 8);
+    out.putInt(constants.length);
+    out.asLongBuffer().put(constants);
+    out.position(out.position() + constants.length * 8);
+    out.putInt(names.length);
+    for (byte[] name : encoded) {
+      out.putInt(name.length).put(name);
+    }
+
+    return out.array();
+  }
+
+  /**
+   * Reads a program written by toBytes(), e.g. straight out of a mapped file.
+   * Throws IllegalArgumentException if the data isn't one.
+   */
+  public static BytecodeProgram read(ByteBuffer in) {
+    try {
+      if (in.getInt() != MAGIC) {
+        throw new IllegalArgumentException("Not a compiled Bare Bones program");
+      }
+
+      int[] code = new int[in.getInt()];
+      int[] lines = new int[code.length];
+      in.asIntBuffer().get(code).get(lines);
+      in.position(in.position() + code.length * 8);
+
+      long[] constants = new long[in.getInt()];
+      in.asLongBuffer().get(constants);
+      in.position(in.position() + constants.length * 8);
+
+      String[] names = new String[in.getInt()];
+      for (int i = 0; i < names.length; i++) {
+        byte[] name = new byte[in.getInt()];
+        in.get(name);
+        names[i] = new String(name, StandardCharsets.UTF_8);
+      }
+
+      return new BytecodeProgram(code, lines, constants, names);
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IllegalArgumentException("Truncated compiled program", e);
+    }
+  }
+}
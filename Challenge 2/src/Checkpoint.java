@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A tree walker's run, stopped part way through: which program it was, where it had got to
+ * (TreeExecutor.getPosition()) and every variable, which is all another JVM needs to carry on
+ * and get the same answer. CheckpointWriter saves these as a run goes, and Interpreter --resume reads the last one.
+ */
+public final class Checkpoint {
+  private static final int MAGIC = 0x42424B31; // "BBK1"; change the digit if the layout changes
+
+  final String key; // ProgramCache.key() of the source
+  final int optLevel;
+  final NumericMode numbers;
+  final UnderflowPolicy underflow;
+  final boolean treeWalker; // See AstCompiler.setTreeWalker(); it changes the tree, so positions in it
+  final long steps;
+  final int[] position;
+  final long[] regs;
+  final BigInteger[] big; // null unless NumericMode.BIG
+
+  public Checkpoint(String key, int optLevel, NumericMode numbers, UnderflowPolicy underflow, boolean treeWalker,
+                    long steps, int[] position, long[] regs, BigInteger[] big) {
+    this.key = key;
+    this.optLevel = optLevel;
+    this.numbers = numbers;
+    this.underflow = underflow;
+    this.treeWalker = treeWalker;
+    this.steps = steps;
+    this.position = position;
+    this.regs = regs;
+    this.big = big;
+  }
+
+  /**
+   * Why this can't carry on a run of source compiled like this, or null if it can.
+   */
+  public String mismatch(CharSequence source, int optLevel, NumericMode numbers, UnderflowPolicy underflow,
+                         boolean treeWalker) {
+    if (!key.equals(ProgramCache.key(source, this.optLevel))) {
+      return "it's for a different program";
+    }
+    if (optLevel != this.optLevel || numbers != this.numbers || underflow != this.underflow) {
+      return String.format("it was run with --opt=%d --numbers=%s --underflow=%s", this.optLevel,
+          this.numbers.name().toLowerCase(), this.underflow.name().toLowerCase());
+    }
+    if (treeWalker != this.treeWalker) {
+      return "it was " + (this.treeWalker ? "" : "not ") + "a plain tree walker run";
+    }
+    return null;
+  }
+
+  /**
+   * Compact binary form, read back by read(). Layout (big-endian): magic, the key as 64 ASCII hex digits,
+   * opt level, numeric mode, underflow policy and treeWalker as a byte each, steps, the position's length
+   * and ints, the variable count and longs, then the number of variables held as BigIntegers and,
+   * for each, its slot and its two's-complement bytes with their length.
+   */
+  public byte[] toBytes() {
+    int bigCount = 0;
+    int size = 4 + 64 + 4 + 8 + 4 + position.length * 4 + 4 + regs.length * 8 + 4;
+    byte[][] encoded = new byte[regs.length][];
+    for (int slot = 0; big != null && slot < big.length; slot++) {
+      if (big[slot] != null) {
+        encoded[slot] = big[slot].toByteArray();
+        size += 8 + encoded[slot].length;
+        bigCount++;
+      }
+    }
+
+    ByteBuffer out = ByteBuffer.allocate(size);
+    out.putInt(MAGIC).put(key.getBytes(StandardCharsets.US_ASCII));
+    out.put((byte) optLevel).put((byte) numbers.ordinal()).put((byte) underflow.ordinal())
+        .put((byte) (treeWalker ? 1 : 0));
+    out.putLong(steps);
+    out.putInt(position.length);
+    out.asIntBuffer().put(position);
+    out.position(out.position() + position.length * 4);
+    out.putInt(regs.length);
+    out.asLongBuffer().put(regs);
+    out.position(out.position() + regs.length * 8);
+    out.putInt(bigCount);
+    for (int slot = 0; slot < encoded.length; slot++) {
+      if (encoded[slot] != null) {
+        out.putInt(slot).putInt(encoded[slot].length).put(encoded[slot]);
+      }
+    }
+
+    return out.array();
+  }
+
+  /**
+   * Reads a checkpoint written by toBytes(). Throws IllegalArgumentException if the data isn't one.
+   */
+  public static Checkpoint read(ByteBuffer in) {
+    try {
+      if (in.getInt() != MAGIC) {
+        throw new IllegalArgumentException("Not a Bare Bones checkpoint");
+      }
+
+      byte[] key = new byte[64];
+      in.get(key);
+      int optLevel = in.get();
+      NumericMode numbers = NumericMode.values()[in.get()];
+      UnderflowPolicy underflow = UnderflowPolicy.values()[in.get()];
+      boolean treeWalker = in.get() != 0;
+      long steps = in.getLong();
+
+      int[] position = new int[in.getInt()];
+      in.asIntBuffer().get(position);
+      in.position(in.position() + position.length * 4);
+
+      long[] regs = new long[in.getInt()];
+      in.asLongBuffer().get(regs);
+      in.position(in.position() + regs.length * 8);
+
+      int bigCount = in.getInt();
+      BigInteger[] big = numbers == NumericMode.BIG ? new BigInteger[regs.length] : null;
+      for (int i = 0; i < bigCount; i++) {
+        int slot = in.getInt();
+        byte[] value = new byte[in.getInt()];
+        in.get(value);
+        big[slot] = new BigInteger(value);
+      }
+
+      return new Checkpoint(new String(key, StandardCharsets.US_ASCII), optLevel, numbers, underflow, treeWalker,
+          steps, position, regs, big);
+    } catch (BufferUnderflowException | NegativeArraySizeException | IndexOutOfBoundsException
+             | NullPointerException e) {
+      throw new IllegalArgumentException("Truncated or damaged checkpoint", e);
+    }
+  }
+
+  /**
+   * Reads the checkpoint in file, through a memory map.
+   */
+  public static Checkpoint load(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return read(mapped);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Saves Checkpoints of a run to one file, from a background thread. The running program only pays for
+ * copying the variables; encoding and writing happen on the thread, through a FileChannel into a temporary
+ * file that then replaces the old checkpoint, so a crash part way through a write leaves the last one whole.
+ * If the disk falls behind, a checkpoint still waiting to be written is dropped for the newer one.
+ * A write that fails is reported by the next save(), or by close() if there isn't one.
+ */
+public class CheckpointWriter implements AutoCloseable {
+  private static final Checkpoint END = new Checkpoint("", 0, NumericMode.WRAP, UnderflowPolicy.ALLOW, false,
+      0, new int[0], new long[0], null); // Tells the writer to stop
+
+  private final Path file;
+  private final Path temp;
+  private final String key;
+  private final int optLevel;
+  private final NumericMode numbers;
+  private final UnderflowPolicy underflow;
+  private final boolean treeWalker;
+  private final BlockingQueue<Checkpoint> pending = new ArrayBlockingQueue<>(1);
+  private final Thread writer;
+  private volatile IOException writeError = null;
+  private volatile int written = 0;
+
+  // Checkpoints of source, compiled with these options, go to file
+  public CheckpointWriter(Path file, CharSequence source, int optLevel, NumericMode numbers,
+                          UnderflowPolicy underflow, boolean treeWalker) {
+    this.file = file;
+    this.temp = file.resolveSibling(file.getFileName() + ".tmp");
+    this.key = ProgramCache.key(source, optLevel);
+    this.optLevel = optLevel;
+    this.numbers = numbers;
+    this.underflow = underflow;
+    this.treeWalker = treeWalker;
+
+    writer = new Thread(this::writeLoop, "checkpoint-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues a checkpoint of a run suspended at position after steps, with these variables.
+   * They're copied, so the run can carry on as soon as this returns. Throws the error from the last write
+   * if it failed.
+   */
+  public void save(int[] position, long steps, long[] regs, BigInteger[] big) throws IOException {
+    IOException failed = writeError;
+    if (failed != null) {
+      writeError = null; // Reported now, so close() doesn't again
+      throw failed;
+    }
+
+    Checkpoint checkpoint = new Checkpoint(key, optLevel, numbers, underflow, treeWalker, steps, position,
+        regs.clone(), big == null ? null : big.clone());
+    // Only this thread adds, so after clearing there's always room
+    pending.clear();
+    pending.add(checkpoint);
+  }
+
+  /**
+   * Deletes the checkpoint, once anything queued has been written, for a run that's finished.
+   * It goes even if that write failed, as it'd only be resumed.
+   */
+  public void finished() throws IOException {
+    try {
+      close();
+    } finally {
+      Files.deleteIfExists(temp);
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      while (true) {
+        Checkpoint checkpoint = pending.take();
+        if (checkpoint == END) {
+          return;
+        }
+        try {
+          write(checkpoint);
+        } catch (IOException e) {
+          // save() or close() reports it; the run itself carries on
+          writeError = e;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void write(Checkpoint checkpoint) throws IOException {
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer bytes = ByteBuffer.wrap(checkpoint.toBytes());
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      // On the disk before it replaces the last one, or a power cut could leave neither
+      channel.force(false);
+    }
+    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    written++;
+  }
+
+  // How many checkpoints have been written so far
+  public int getWritten() {
+    return written;
+  }
+
+  /**
+   * Writes whatever is still queued and stops the thread. Closing again does nothing.
+   */
+  @Override
+  public void close() throws IOException {
+    if (writer.isAlive()) {
+      try {
+        pending.put(END);
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while saving a checkpoint", e);
+      }
+    }
+
+    IOException failed = writeError;
+    if (failed != null) {
+      writeError = null; // Reported now, so closing again doesn't
+      throw failed;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+import java.util.Arrays;
+
+class CodeGrammars {
+  /**
+   * UOPERATOR VARIABLE                  incr x
+   * CONTROL VARIABLE NOT LITERAL DO     while x not 0 do
+   * END                                 end
+   * PAR                                 par
+   * AND                                 and
+   * DEF VARIABLE ARGS                   def mul(X, Y, Z)
+   * CALL VARIABLE ARGS                  call mul(A, B, C)
+   */
+  static TokenTypes[][] acceptedGrammars = {
+      {TokenTypes.UOPERATOR, TokenTypes.VARIABLE},
+      {TokenTypes.CONTROL, TokenTypes.VARIABLE, TokenTypes.NOT, TokenTypes.LITERAL, TokenTypes.DO},
+      {TokenTypes.END},
+      {TokenTypes.PAR},
+      {TokenTypes.AND},
+      {TokenTypes.DEF, TokenTypes.VARIABLE, TokenTypes.ARGS},
+      {TokenTypes.CALL, TokenTypes.VARIABLE, TokenTypes.ARGS}
+  };
+
+  // Shows where the main operator/control token will exist in each grammar.
+  static int[] mainLocations = {
+      0, 0, 0, 0, 0, 0, 0
+  };
+
+  // Shows which truth type is associated with each (control) grammar.
+  static TruthTypes[] mainTruthTypes = {
+      null, TruthTypes.NOT, null, null, null, null, null
+  };
+
+  // Every keyword, with the token it lexes to and, for operators, which operator it is.
+  static String[] keywords = {
+      "incr", "decr", "clear", "while", "not", "do", "end", "par", "and", "def", "call"
+  };
+
+  static TokenTypes[] keywordTypes = {
+      TokenTypes.UOPERATOR, TokenTypes.UOPERATOR, TokenTypes.UOPERATOR,
+      TokenTypes.CONTROL, TokenTypes.NOT, TokenTypes.DO, TokenTypes.END, TokenTypes.PAR, TokenTypes.AND,
+      TokenTypes.DEF, TokenTypes.CALL
+  };
+
+  static OperatorTypes[] keywordOperators = {
+      OperatorTypes.INCR, OperatorTypes.DECR, OperatorTypes.CLEAR, null, null, null, null, null, null, null, null
+  };
+
+  /**
+   * acceptedGrammars as a state machine, so a statement is checked in one pass over its tokens.
+   * transitions[state][token ordinal] is the next state, or -1 if no grammar continues that way.
+   * accepting[state] is the grammar that ends in that state, or -1.
+   */
+  static int[][] transitions;
+  static int[] accepting;
+  static int maxGrammarLength;
+
+  static {
+    // A trie over the grammars; state 0 is the start of a statement.
+    int tokenCount = TokenTypes.values().length;
+    int[][] trans = new int[1][tokenCount];
+    int[] accept = {-1};
+    Arrays.fill(trans[0], -1);
+
+    for (int g = 0; g < acceptedGrammars.length; g++) {
+      int state = 0;
+      for (TokenTypes token : acceptedGrammars[g]) {
+        if (trans[state][token.ordinal()] < 0) {
+          trans = Arrays.copyOf(trans, trans.length + 1);
+          trans[trans.length - 1] = new int[tokenCount];
+          Arrays.fill(trans[trans.length - 1], -1);
+          accept = Arrays.copyOf(accept, accept.length + 1);
+          accept[accept.length - 1] = -1;
+          trans[state][token.ordinal()] = trans.length - 1;
+        }
+        state = trans[state][token.ordinal()];
+      }
+      accept[state] = g;
+      maxGrammarLength = Math.max(maxGrammarLength, acceptedGrammars[g].length);
+    }
+
+    transitions = trans;
+    accepting = accept;
+  }
+}
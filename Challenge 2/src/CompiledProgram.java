@@ -0,0 +1,137 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A compiled program for code that embeds the interpreter instead of running Interpreter.main.
+ * Nothing in it changes after it's built, so one instance can be shared by any number of threads,
+ * each running it through its own ExecutionContext:
+ *
+ *   CompiledProgram program = CompiledProgram.compile("while X not 0 do; decr X; incr Y; end;", 1);
+ *   ExecutionContext context = program.newContext();
+ *   context.set("X", 5);
+ *   context.run();
+ *   long y = context.get("Y");
+ *
+ * WRAP/ALLOW programs run on the bytecode VM; anything else on the tree walker, like Interpreter does.
+ * For the occasional call, run(inputs) does all of that with a context from a pool kept here.
+ */
+public final class CompiledProgram {
+  private final AstNode root;
+  private final BytecodeProgram bytecode; // null if it has to run on the tree
+  private final String[] names; // By slot
+  private final Map<String, Integer> slots = new HashMap<>();
+  private final List<String> variables; // Names that can be set and read, in slot order
+  private final NumericMode numericMode;
+  private final List<String> warnings;
+
+  private final ConcurrentLinkedQueue<ExecutionContext> idle = new ConcurrentLinkedQueue<>();
+
+  // Called by AstCompiler.compileProgram()
+  CompiledProgram(AstCompiler compiler, AstNode root) {
+    SymbolTable symbols = compiler.getSymbols();
+    boolean plain = compiler.getNumericMode() == NumericMode.WRAP
+        && compiler.getUnderflowPolicy() == UnderflowPolicy.ALLOW;
+
+    this.root = root;
+    this.bytecode = plain ? new BytecodeCompiler(symbols).compile(root) : null;
+    this.names = symbols.getNames();
+    this.numericMode = compiler.getNumericMode();
+    this.warnings = List.copyOf(compiler.getWarnings());
+
+    List<String> visible = new ArrayList<>();
+    for (int slot = 0; slot < names.length; slot++) {
+      slots.put(names[slot], slot);
+      if (!SymbolTable.isHidden(names[slot])) {
+        visible.add(names[slot]);
+      }
+    }
+    this.variables = Collections.unmodifiableList(visible);
+  }
+
+  public static CompiledProgram compile(CharSequence source, int optLevel) throws SyntaxError {
+    return new AstCompiler(source, optLevel).compileProgram();
+  }
+
+  /**
+   * A fresh context to run this program in, with every variable at 0. Keep it and reset() it between runs.
+   */
+  public ExecutionContext newContext() {
+    return new ExecutionContext(this);
+  }
+
+  /**
+   * Runs the program once with the given starting values (every other variable starts at 0) and returns
+   * every variable at the end, or the error that stopped it. Safe to call from any thread at once.
+   */
+  public Map<String, Number> run(Map<String, ? extends Number> inputs) {
+    ExecutionContext context = idle.poll();
+    if (context == null) {
+      context = newContext();
+    }
+
+    try {
+      for (Map.Entry<String, ? extends Number> input : inputs.entrySet()) {
+        context.set(slotOf(input.getKey()), input.getValue().longValue());
+      }
+      context.run();
+      return context.toMap();
+    } finally {
+      context.reset();
+      idle.offer(context);
+    }
+  }
+
+  /**
+   * The slot of a variable, for ExecutionContext's get/set by slot, which skip the name lookup.
+   * Throws IllegalArgumentException if the program has no such variable.
+   */
+  public int slotOf(String name) {
+    Integer slot = slots.get(name);
+    if (slot == null || SymbolTable.isHidden(name)) {
+      throw new IllegalArgumentException("The program has no variable " + name);
+    }
+    return slot;
+  }
+
+  // Every variable the program uses, in order of first appearance
+  public List<String> getVariables() {
+    return variables;
+  }
+
+  // See AstCompiler.getWarnings()
+  public List<String> getWarnings() {
+    return warnings;
+  }
+
+  AstNode getRoot() {
+    return root;
+  }
+
+  BytecodeProgram getBytecode() {
+    return bytecode;
+  }
+
+  NumericMode getNumericMode() {
+    return numericMode;
+  }
+
+  int slotCount() {
+    return names.length;
+  }
+
+  // The visible variables of a register file (and big, in BIG mode) by name
+  Map<String, Number> toMap(long[] regs, BigInteger[] big) {
+    Map<String, Number> map = new LinkedHashMap<>();
+    for (String name : variables) {
+      int slot = slots.get(name);
+      map.put(name, big != null && big[slot] != null ? big[slot] : (Number) regs[slot]);
+    }
+    return map;
+  }
+}
@@ -0,0 +1,328 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Constant propagation over the tree, run after LoopOptimizer so it also sees the arithmetic that
+ * folded loops turned into. Every variable starts at 0, so the start of most programs is fully known:
+ *
+ *   clear X; incr X; incr X; incr X;      ->  X = 3, written once as CLEAR X; ADD X 3
+ *
+ * For each variable it tracks the value it must have (if known) and the value its register really has
+ * in the code emitted so far (if known). Writes with a known result aren't emitted straight away;
+ * the value is only written out, as cheaply as possible, when something needs the register:
+ * a loop, an operator that reads it, or the end of a block. Loops whose condition is known to be false
+ * on entry are dropped. Works on names, so run it before resolve().
+ * When variables can be given values before the run (see CompiledProgram), only temporaries start known.
+ *
+ * Separately, unclearedReads() finds conditions that read a variable no clear has set yet.
+ * The original Bare Bones leaves those undefined; here they read as 0, which is usually not intended.
+ */
+public class DataflowPass {
+  private int removedLoops = 0;
+  private int removedStatements = 0;
+  private final boolean startAtZero;
+
+  // A condition reading a variable before any clear of it
+  public record UnclearedRead(int statement, String variable) {
+  }
+
+  // What's known about every variable at one point in the program
+  private static class State {
+    final Map<String, Long> value = new HashMap<>(); // Missing = unknown
+    final Map<String, Long> actual = new HashMap<>(); // What the register holds; missing = unknown
+    final Map<String, Integer> lineOf = new LinkedHashMap<>(); // Pending writes, by the line of the last one
+
+    State copy() {
+      State copy = new State();
+      copy.value.putAll(value);
+      copy.actual.putAll(actual);
+      copy.lineOf.putAll(lineOf);
+      return copy;
+    }
+
+    void forget(String name) {
+      value.remove(name);
+      actual.remove(name);
+      lineOf.remove(name);
+    }
+  }
+
+  public DataflowPass() {
+    this(true);
+  }
+
+  // startAtZero false = the program's variables may hold anything when it starts
+  public DataflowPass(boolean startAtZero) {
+    this.startAtZero = startAtZero;
+  }
+
+  public void optimize(AstNode root) {
+    int before = countBelow(root);
+    State state = new State();
+    for (String name : namesIn(root)) {
+      if (startAtZero || SymbolTable.isHidden(name)) {
+        state.value.put(name, 0L);
+        state.actual.put(name, 0L);
+      }
+    }
+
+    List<AstNode> out = block(root, state);
+    // Temporaries and defs' own variables are never read after the program ends, so their last values needn't be written
+    state.lineOf.keySet().removeIf(SymbolTable::isHidden);
+    flush(state, out);
+    root.setChildren(out);
+    removedStatements = before - countBelow(root);
+  }
+
+  public int getRemovedLoops() {
+    return removedLoops;
+  }
+
+  // How many fewer statements the tree has; negative if it grew
+  public int getRemovedStatements() {
+    return removedStatements;
+  }
+
+  private List<AstNode> block(AstNode parent, State state) {
+    List<AstNode> out = new ArrayList<>();
+
+    for (int i = 0; i < parent.getChildCount(); i++) {
+      AstNode node = parent.getChild(i);
+      if (node.getCondition() == null) {
+        operator(node, state, out);
+      } else {
+        loop(node, state, out);
+      }
+    }
+
+    return out;
+  }
+
+  private void operator(AstNode node, State state, List<AstNode> out) {
+    Operator operator = node.getOperator();
+    String target = operator.getOp1();
+    Long a = state.value.get(target);
+    Long b = operator.getOp2() == null ? Long.valueOf(operator.getOp2Lit()) : state.value.get(operator.getOp2());
+
+    Long result = a == null && operator.getType() != OperatorTypes.CLEAR ? null : apply(operator.getType(), a, b);
+    if (result != null) {
+      state.value.put(target, result);
+      state.lineOf.put(target, node.line);
+      return;
+    }
+
+    // Can't work it out, so the registers it reads have to be up to date
+    flushOne(state, target, out);
+    if (operator.getOp2() != null && b != null) {
+      // The source is known even though the target isn't
+      out.add(new AstNode(node.line, new Operator(operator.getType(), target, b)));
+    } else {
+      out.add(node);
+    }
+    state.forget(target);
+  }
+
+  // The operator's result, or null if it can't be known (or would throw)
+  private static Long apply(OperatorTypes type, Long a, Long b) {
+    return switch (type) {
+      case CLEAR -> 0L;
+      case INCR -> a + 1;
+      case DECR -> a - 1;
+      case ADD -> b == null ? null : a + b;
+      case SUB -> b == null ? null : a - b;
+      case MUL -> b == null ? null : a * b;
+      case DIV -> b == null || b == 0 ? null : a / b;
+      case NONE -> a;
+    };
+  }
+
+  private void loop(AstNode loop, State state, List<AstNode> out) {
+    TruthCondition condition = loop.getCondition();
+    if (isFalse(condition, state)) {
+      removedLoops++;
+      return;
+    }
+
+    // The registers the loop sees have to be right; everything it writes is unknown from here on
+    flush(state, out);
+    for (String name : writtenIn(loop)) {
+      state.forget(name);
+    }
+
+    State inside = state.copy();
+    List<AstNode> body = block(loop, inside);
+    flush(inside, body);
+    loop.setChildren(body);
+    out.add(loop);
+
+    // The loop only stops when its condition fails, and for "not L" that means the variable is L
+    if (condition.getType() == TruthTypes.NOT && condition.getOp1() != null && condition.getOp2() == null) {
+      state.value.put(condition.getOp1(), (long) condition.getOp2Lit());
+      state.actual.put(condition.getOp1(), (long) condition.getOp2Lit());
+    }
+  }
+
+  private static boolean isFalse(TruthCondition condition, State state) {
+    Long a = condition.getOp1() == null ? (Long) (long) condition.getOp1Lit() : state.value.get(condition.getOp1());
+    Long b = condition.getOp2() == null ? (Long) (long) condition.getOp2Lit() : state.value.get(condition.getOp2());
+    if (a == null || b == null) {
+      return false;
+    }
+
+    return switch (condition.getType()) {
+      case ONCE -> false;
+      case IS -> !a.equals(b);
+      case NOT -> a.equals(b);
+      case GT -> a <= b;
+      case LT -> a >= b;
+      case DIVISIBLE -> !TruthCondition.divisible(a, b);
+    };
+  }
+
+  // Writes out every pending value
+  private static void flush(State state, List<AstNode> out) {
+    for (String name : new ArrayList<>(state.lineOf.keySet())) {
+      flushOne(state, name, out);
+    }
+  }
+
+  // Makes the register hold the variable's known value, if it's pending
+  private static void flushOne(State state, String name, List<AstNode> out) {
+    Integer line = state.lineOf.remove(name);
+    if (line == null) {
+      return;
+    }
+
+    long value = state.value.get(name);
+    Long actual = state.actual.get(name);
+    if (actual != null && actual - value == 1) {
+      out.add(new AstNode(line, new Operator(OperatorTypes.DECR, name)));
+    } else if (actual != null && value - actual == 1) {
+      out.add(new AstNode(line, new Operator(OperatorTypes.INCR, name)));
+    } else if (actual != null && actual != value) {
+      out.add(new AstNode(line, new Operator(OperatorTypes.ADD, name, value - actual)));
+    } else if (actual == null) {
+      out.add(new AstNode(line, new Operator(OperatorTypes.CLEAR, name)));
+      if (value != 0) {
+        out.add(new AstNode(line, new Operator(OperatorTypes.ADD, name, value)));
+      }
+    }
+    state.actual.put(name, value);
+  }
+
+  // Every variable an operator below node writes to
+  private static Set<String> writtenIn(AstNode node) {
+    Set<String> names = new HashSet<>();
+    List<AstNode> pending = new ArrayList<>(List.of(node));
+    while (!pending.isEmpty()) {
+      AstNode next = pending.remove(pending.size() - 1);
+      if (next.getOperator() != null) {
+        names.add(next.getOperator().getOp1());
+      }
+      pending.addAll(List.of(next.getChildren()));
+    }
+    return names;
+  }
+
+  // Every variable anywhere below node
+  private static Set<String> namesIn(AstNode node) {
+    Set<String> names = new HashSet<>();
+    List<AstNode> pending = new ArrayList<>(List.of(node));
+    while (!pending.isEmpty()) {
+      AstNode next = pending.remove(pending.size() - 1);
+      Operator operator = next.getOperator();
+      if (operator != null) {
+        names.add(operator.getOp1());
+        if (operator.getOp2() != null) {
+          names.add(operator.getOp2());
+        }
+      }
+      TruthCondition condition = next.getCondition();
+      if (condition != null && condition.getOp1() != null) {
+        names.add(condition.getOp1());
+      }
+      if (condition != null && condition.getOp2() != null) {
+        names.add(condition.getOp2());
+      }
+      pending.addAll(List.of(next.getChildren()));
+    }
+    return names;
+  }
+
+  private static int countBelow(AstNode node) {
+    int count = 0;
+    List<AstNode> pending = new ArrayList<>(List.of(node.getChildren()));
+    while (!pending.isEmpty()) {
+      AstNode next = pending.remove(pending.size() - 1);
+      count++;
+      pending.addAll(List.of(next.getChildren()));
+    }
+    return count;
+  }
+
+  /**
+   * Conditions that read a variable before any clear of it has run, on some way through the program.
+   * A loop's body might not run, so clears inside it don't count after it. One report per variable.
+   * Runs on every program, so it walks with an explicit stack like TreeExecutor.
+   */
+  public static List<UnclearedRead> unclearedReads(AstNode root) {
+    List<UnclearedRead> reads = new ArrayList<>();
+    Set<String> cleared = new HashSet<>();
+    Set<String> reported = new HashSet<>();
+    Set<AstNode> shared = new HashSet<>(); // Def bodies already looked through, which every call to them shares
+
+    // One frame per open block: its node, the next child, and the clears it added (undone when it ends,
+    // unless it's a par or a branch of one, which always run)
+    ArrayDeque<AstNode> blocks = new ArrayDeque<>();
+    ArrayDeque<int[]> nextChild = new ArrayDeque<>();
+    ArrayDeque<List<String>> added = new ArrayDeque<>();
+    blocks.push(root);
+    nextChild.push(new int[1]);
+    added.push(new ArrayList<>());
+
+    while (!blocks.isEmpty()) {
+      AstNode block = blocks.peek();
+      int[] next = nextChild.peek();
+      if (next[0] == block.getChildCount()) {
+        blocks.pop();
+        nextChild.pop();
+        if (block.isBlock()) {
+          List<String> kept = added.pop();
+          added.peek().addAll(kept);
+        } else {
+          // One at a time: removeAll() with a list can go quadratic
+          added.pop().forEach(cleared::remove);
+        }
+        continue;
+      }
+
+      AstNode node = block.getChild(next[0]++);
+      Operator operator = node.getOperator();
+      if (operator != null) {
+        if (operator.getType() == OperatorTypes.CLEAR && cleared.add(operator.getOp1())) {
+          added.peek().add(operator.getOp1());
+        }
+        continue;
+      }
+
+      if (node.isShared() && !shared.add(node)) {
+        continue;
+      }
+      String read = node.isBlock() ? null : node.getCondition().getOp1();
+      if (read != null && !cleared.contains(read) && reported.add(read)) {
+        reads.add(new UnclearedRead(node.line, read));
+      }
+      blocks.push(node);
+      nextChild.push(new int[1]);
+      added.push(new ArrayList<>());
+    }
+
+    return reads;
+  }
+}
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs each given .bb file through the unoptimised tree interpreter and through every backend at every
+ * optimisation level, and compiled for the tree walker alone (par blocks on several threads, def bodies shared
+ * between calls), and checks they all finish with the same variables. The tree walker's run is also done
+ * a few steps at a time, each slice carried on from a Checkpoint of the last in a freshly compiled tree,
+ * the way --resume does in a new JVM. Then checks a checkpoint that can't be written is reported, once,
+ * and that cancel() and interrupts stop a run inside a par's branches on a pool.
+ * Exits with status 1 on any mismatch, so it can gate a build.
+ *
+ * Usage: DifferentialCheck file.bb [file.bb ...]
+ */
+public class DifferentialCheck {
+  private static final long RESUME_EVERY = 100; // Steps in each slice of a resumed run; it stops at a loop after
+
+  // A par whose first branch takes 216,000 passes round a loop, so well past the first check for a stop
+  private static final String LONG_PAR = "clear X; par; clear A; " + "incr A; ".repeat(60)
+      + "while A not 0 do; clear B; " + "incr B; ".repeat(60)
+      + "while B not 0 do; clear C; " + "incr C; ".repeat(60)
+      + "while C not 0 do; incr X; decr C; end; decr B; end; decr A; end; and; clear Y; incr Y; end;";
+
+  public static void main(String[] args) throws IOException {
+    int failures = 0;
+
+    for (String path : args) {
+      CharSequence source = AstCompiler.readSource(Path.of(path));
+
+      try {
+        Map<String, Long> expected = run(source, 0, RunOptions.Backend.TREE);
+
+        for (int optLevel = 0; optLevel <= 1; optLevel++) {
+          for (RunOptions.Backend backend : RunOptions.Backend.values()) {
+            Map<String, Long> actual = run(source, optLevel, backend);
+            if (!actual.equals(expected)) {
+              System.out.println("MISMATCH " + path + " --opt=" + optLevel + " --backend=" + backend
+                  + ": expected " + expected + ", got " + actual);
+              failures++;
+            }
+          }
+        }
+
+        Map<String, Long> parallel = runParallel(source);
+        if (!parallel.equals(expected)) {
+          System.out.println("MISMATCH " + path + " for the tree walker alone: expected " + expected
+              + ", got " + parallel);
+          failures++;
+        }
+
+        Map<String, Long> resumed = runResumed(source);
+        if (!resumed.equals(expected)) {
+          System.out.println("MISMATCH " + path + " resumed from checkpoints: expected " + expected
+              + ", got " + resumed);
+          failures++;
+        }
+
+        System.out.println("ok " + path + " " + expected);
+      } catch (SyntaxError e) {
+        System.out.println("Failed to compile " + path + " - " + e.getMessage());
+        failures++;
+      }
+    }
+    failures += checkFailedCheckpointWrite();
+    failures += checkStoppedPar();
+
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static Map<String, Long> run(CharSequence source, int optLevel, RunOptions.Backend backend) throws SyntaxError {
+    AstCompiler compiler = new AstCompiler(source, optLevel);
+    AstNode root = compiler.compile();
+    SymbolTable symbols = compiler.getSymbols();
+
+    long[] regs;
+    if (backend == RunOptions.Backend.BYTECODE) {
+      BytecodeProgram program = new BytecodeCompiler(symbols).compile(root);
+      regs = program.newRegisters();
+      new VirtualMachine(program).run(regs);
+    } else if (backend == RunOptions.Backend.JIT) {
+      regs = symbols.newRegisters();
+      try {
+        new JitCompiler(symbols).compile(root).run(regs);
+      } catch (JitBailout e) {
+        // Not a mismatch; the interpreter would fall back to the tree here too
+        new TreeExecutor(root).run(regs);
+      }
+    } else {
+      regs = symbols.newRegisters();
+      new TreeExecutor(root).run(regs);
+    }
+
+    return symbols.toMap(regs);
+  }
+
+  private static Map<String, Long> runParallel(CharSequence source) throws SyntaxError {
+    AstCompiler compiler = new AstCompiler(source);
+    compiler.setTreeWalker(true);
+    AstNode root = compiler.compile();
+    long[] regs = compiler.getSymbols().newRegisters();
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      TreeExecutor executor = new TreeExecutor(root);
+      executor.setPool(pool);
+      executor.run(regs);
+    } finally {
+      pool.shutdown();
+    }
+    return compiler.getSymbols().toMap(regs);
+  }
+
+  /**
+   * Closes a CheckpointWriter whose writes all fail the way runCheckpointed() does, after finished().
+   * The error should come out once, with the old checkpoint gone. Returns the number of failures.
+   */
+  private static int checkFailedCheckpointWrite() throws IOException {
+    Path dir = Files.createTempDirectory("checkpoint-check");
+    Path file = dir.resolve("run.bbk");
+    Files.writeString(file, "an older checkpoint");
+    Files.createDirectory(dir.resolve("run.bbk.tmp")); // Where it writes first, so it can't
+
+    String problem = null;
+    try (CheckpointWriter checkpoints = new CheckpointWriter(file, "clear X;", 0, NumericMode.WRAP,
+        UnderflowPolicy.ALLOW, true)) {
+      checkpoints.save(new int[] {1}, 1, new long[1], null);
+      checkpoints.finished();
+      problem = "finished() didn't say the write failed";
+    } catch (IOException e) {
+      if (e.getSuppressed().length > 0) {
+        problem = "the error was thrown again when closing: " + e.getSuppressed()[0];
+      }
+    } catch (RuntimeException e) {
+      problem = e.toString();
+    }
+    if (problem == null && Files.exists(file)) {
+      problem = "the old checkpoint was left behind";
+    }
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(dir.resolve("run.bbk.tmp"));
+    Files.delete(dir);
+
+    if (problem != null) {
+      System.out.println("FAILED a checkpoint that can't be written - " + problem);
+      return 1;
+    }
+    System.out.println("ok a checkpoint that can't be written");
+    return 0;
+  }
+
+  /**
+   * Runs LONG_PAR with its branches on a pool, after cancel() and then with the thread interrupted; either
+   * should stop it in the branch with CANCELLED, and running it again should then finish it properly.
+   * Returns the number of failures.
+   */
+  private static int checkStoppedPar() {
+    int failures = 0;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Map<String, Long> expected = run(LONG_PAR, 0, RunOptions.Backend.TREE);
+      for (boolean interrupt : new boolean[] {false, true}) {
+        AstCompiler compiler = new AstCompiler(LONG_PAR);
+        compiler.setTreeWalker(true);
+        TreeExecutor executor = new TreeExecutor(compiler.compile());
+        executor.setPool(pool);
+        long[] regs = compiler.getSymbols().newRegisters();
+
+        // Both are seen first at a branch's loop, as there's none before the par
+        if (interrupt) {
+          Thread.currentThread().interrupt();
+        } else {
+          executor.cancel();
+        }
+        RunStatus stopped = executor.run(regs);
+        boolean stillInterrupted = Thread.interrupted();
+        executor.run(regs);
+        Map<String, Long> carriedOn = compiler.getSymbols().toMap(regs);
+
+        String how = interrupt ? "an interrupt" : "cancel()";
+        if (stopped != RunStatus.CANCELLED || interrupt != stillInterrupted || !carriedOn.equals(expected)) {
+          System.out.println("FAILED stopping a par's branches with " + how + " - stopped " + stopped
+              + ", then got " + carriedOn + ", expected " + expected);
+          failures++;
+        } else {
+          System.out.println("ok stopping a par's branches with " + how);
+        }
+      }
+    } catch (SyntaxError e) {
+      throw new IllegalStateException(e);
+    } finally {
+      pool.shutdown();
+    }
+    return failures;
+  }
+
+  private static Map<String, Long> runResumed(CharSequence source) throws SyntaxError {
+    AstCompiler compiler = new AstCompiler(source);
+    compiler.setTreeWalker(true);
+    TreeExecutor executor = new TreeExecutor(compiler.compile());
+    long[] regs = compiler.getSymbols().newRegisters();
+
+    while (executor.run(regs, null, null, RESUME_EVERY, 0) != RunStatus.FINISHED) {
+      Checkpoint saved = Checkpoint.read(ByteBuffer.wrap(new Checkpoint(ProgramCache.key(source, 0), 0,
+          NumericMode.WRAP, UnderflowPolicy.ALLOW, true, executor.getSteps(), executor.getPosition(), regs, null)
+          .toBytes()));
+      String mismatch = saved.mismatch(source, 0, NumericMode.WRAP, UnderflowPolicy.ALLOW, true);
+      if (mismatch != null) {
+        throw new IllegalStateException("Can't resume a checkpoint of this run: " + mismatch);
+      }
+
+      compiler = new AstCompiler(source);
+      compiler.setTreeWalker(true);
+      executor = new TreeExecutor(compiler.compile());
+      regs = saved.regs;
+      executor.resumeAt(saved.position, saved.steps);
+    }
+    return compiler.getSymbols().toMap(regs);
+  }
+}
@@ -0,0 +1,122 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The variables of one run of a CompiledProgram, plus the machine that runs it.
+ * Everything is allocated once, when the context is made: run() and reset() allocate nothing
+ * (outside BIG mode), so a context can be reused for any number of runs. One thread at a time.
+ *
+ * Variables can be set before a run and read after it by name, or by the slot from
+ * CompiledProgram.slotOf() to skip the lookup. Budgets, cancel() and suspending work as in RunStatus.
+ */
+public final class ExecutionContext {
+  private final CompiledProgram program;
+  private final long[] regs;
+  private final long[] initial; // What reset() puts back: zeros, then the VM's constants
+  private final BigInteger[] big; // NumericMode.BIG only
+  private final VirtualMachine vm; // Exactly one of vm and tree is set
+  private final TreeExecutor tree;
+
+  ExecutionContext(CompiledProgram program) {
+    this.program = program;
+    BytecodeProgram bytecode = program.getBytecode();
+    if (bytecode != null) {
+      initial = bytecode.newRegisters();
+      vm = new VirtualMachine(bytecode);
+      tree = null;
+    } else {
+      initial = new long[program.slotCount()];
+      vm = null;
+      tree = new TreeExecutor(program.getRoot());
+    }
+    regs = initial.clone();
+    big = program.getNumericMode() == NumericMode.BIG ? new BigInteger[program.slotCount()] : null;
+  }
+
+  public CompiledProgram getProgram() {
+    return program;
+  }
+
+  public void set(String name, long value) {
+    set(program.slotOf(name), value);
+  }
+
+  public void set(int slot, long value) {
+    regs[slot] = value;
+    if (big != null) {
+      big[slot] = null;
+    }
+  }
+
+  /**
+   * A variable's value. In BIG mode, one too big for a long throws ArithmeticException; use getNumber.
+   */
+  public long get(String name) {
+    return get(program.slotOf(name));
+  }
+
+  public long get(int slot) {
+    return big != null && big[slot] != null ? big[slot].longValueExact() : regs[slot];
+  }
+
+  // A variable's value as a Long, or a BigInteger in BIG mode once it has outgrown a long
+  public Number getNumber(String name) {
+    int slot = program.slotOf(name);
+    return big != null && big[slot] != null ? big[slot] : (Number) regs[slot];
+  }
+
+  // Every variable by name. Allocates, so the slot getters are better in a hot path.
+  public Map<String, Number> toMap() {
+    return program.toMap(regs, big);
+  }
+
+  /**
+   * Runs the program to the end, or carries on with a suspended run.
+   * A NumericError (for the checked NumericModes) comes out as is.
+   */
+  public RunStatus run() {
+    return run(Long.MAX_VALUE, 0);
+  }
+
+  // Same, stopping after about stepLimit steps or at deadline (System.nanoTime(), 0 for none)
+  public RunStatus run(long stepLimit, long deadline) {
+    if (vm != null) {
+      return vm.run(regs, stepLimit, deadline);
+    }
+    return tree.run(regs, big, null, stepLimit, deadline);
+  }
+
+  // Stops the current run at its next check; safe from any thread
+  public void cancel() {
+    if (vm != null) {
+      vm.cancel();
+    } else {
+      tree.cancel();
+    }
+  }
+
+  public boolean isSuspended() {
+    return vm != null ? vm.isSuspended() : tree.isSuspended();
+  }
+
+  // Steps taken by the current (or last) run
+  public long getSteps() {
+    return vm != null ? vm.getSteps() : tree.getSteps();
+  }
+
+  /**
+   * Every variable back to 0 and any suspended run forgotten, ready for the next one.
+   */
+  public void reset() {
+    System.arraycopy(initial, 0, regs, 0, regs.length);
+    if (big != null) {
+      Arrays.fill(big, null);
+    }
+    if (vm != null) {
+      vm.reset();
+    } else {
+      tree.reset();
+    }
+  }
+}
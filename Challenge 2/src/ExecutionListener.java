@@ -0,0 +1,16 @@
+/**
+ * Gets told about each step TreeExecutor takes. Only used for tracing; when no listener is given,
+ * the executor never calls out at all.
+ */
+public interface ExecutionListener {
+  // A while's condition passed and its body is about to run (again).
+  void loopPassed(AstNode loop, long[] vals);
+
+  // An operator ran, or a while finished looping.
+  void statementDone(AstNode node, long[] vals);
+
+  // False to hear about whiles only, saving a call for every operator that runs.
+  default boolean wantsOperators() {
+    return true;
+  }
+}
@@ -0,0 +1,617 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a program compiled while it's being edited, for editors and anything else that recompiles
+ * after every keystroke. edit() takes one text change, re-lexes and re-parses only the statements it touched,
+ * and patches them into the tree from last time. Every other node is kept as it is, and only source positions
+ * and statement numbers after the edit move. Afterwards getRoot(), getSourceMap() and getSymbols() are
+ * exactly what AstCompiler would give for the new text at optLevel 0:
+ *
+ *   IncrementalCompiler compiler = new IncrementalCompiler(source);
+ *   compiler.edit(offset, removedLength, "incr Y");
+ *   AstNode root = compiler.getRoot(); // or the SyntaxError a full compile would throw
+ *
+ * An edit that only changes statements in place (the usual keystroke) swaps their nodes, and a while keeps its body.
+ * One that adds or removes whole blocks is spliced into the block around it. One that leaves
+ * while/end unbalanced makes getRoot() relink the tree from the parsed statements, which still re-lexes nothing.
+ * So does any edit while the program has a par block in it, since the tree has those lowered away (see ParallelBlocks).
+ * A program with def or call in it is just compiled again in full, once per edit, when something asks for it:
+ * every call copies its def's body, so there's no one node a statement's edit could be patched into.
+ * The optimisation passes restructure the tree, so there's no incremental optLevel 1.
+ * Node ids aren't kept up to date; call resolve() on the root for those, as AstCompiler does.
+ */
+public class IncrementalCompiler {
+  // What was parsed out of each statement
+  private static class Statement {
+    int kind; // One of StatementParser's
+    AstNode node; // OPERATOR and WHILE only
+    String name;
+    int errorColumn; // ERROR only
+    boolean errorRelative; // errorColumn counts from the statement's own column, since that can move
+  }
+
+  // How many statements use a variable, and the first one, which is what orders the slots.
+  // That always has a node, whose line is kept up to date, so nothing here has to move when statements do.
+  private static class Use {
+    int count = 0;
+    Statement first;
+
+    int firstIndex() {
+      return first == null ? Integer.MAX_VALUE : first.node.line - 1;
+    }
+  }
+
+  private final StringBuilder text;
+  private final NumericMode numericMode;
+  private final UnderflowPolicy underflow;
+  private final SourceMap sourceMap;
+  private final AstNode root = new AstNode(0, new TruthCondition(TruthTypes.ONCE, 0, 0));
+  private SymbolTable symbols = new SymbolTable();
+  private final Map<String, Use> uses = new HashMap<>();
+
+  private Statement[] statements = new Statement[256];
+  private int count = 0;
+  private boolean terminated = true; // Whether the last statement ends with ';' rather than the end of the text
+  private int errors = 0; // Statements that don't parse
+  private int pars = 0; // par and and statements; while there are any, patchTree() can't be used
+  private int defs = 0; // def and call statements; while there are any, everything comes from a full compile
+  private AstCompiler full = null; // That compile, until the next edit
+  private AstNode fullRoot;
+  private SyntaxError fullError;
+
+  // root holds every statement that parses, with balanced blocks; ones that don't parse are simply left out
+  private boolean treeValid = false;
+  // symbols has every variable in order of first use, and every node is resolved against it
+  private boolean symbolsValid = false;
+
+  // Where the last statement parse() read ended
+  private boolean lastTerminated;
+  private int lastEndLine;
+  private int lastEndColumn;
+
+  public IncrementalCompiler(CharSequence source) {
+    this(source, NumericMode.WRAP, UnderflowPolicy.ALLOW);
+  }
+
+  public IncrementalCompiler(CharSequence source, NumericMode numericMode, UnderflowPolicy underflow) {
+    this.text = new StringBuilder(source);
+    this.numericMode = numericMode;
+    this.underflow = underflow;
+    this.sourceMap = new SourceMap(text);
+
+    List<Statement> parsed = parse(0, text.length(), 1, 0, sourceMap, 0);
+    splice(0, 0, parsed);
+    terminated = parsed.isEmpty() || lastTerminated;
+    for (int k = 0; k < count; k++) {
+      Statement statement = statements[k];
+      if (statement.name != null) {
+        Use use = uses.computeIfAbsent(statement.name, name -> new Use());
+        use.count++;
+        if (use.first == null) {
+          use.first = statement;
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces length characters from offset on with replacement, and recompiles what that touched.
+   */
+  public void edit(int offset, int length, CharSequence replacement) {
+    if (offset < 0 || length < 0 || offset + length > text.length()) {
+      throw new IndexOutOfBoundsException(
+          "Edit of " + length + " at " + offset + " is outside the source (length " + text.length() + ")");
+    }
+
+    // The edit touches statements first to last (by index), and last's ';' survives it.
+    // Either can be count, meaning whatever follows the final ';'.
+    int first = sourceMap.statementEndingFrom(offset) - 1;
+    int last = sourceMap.statementEndingFrom(offset + length) - 1;
+    int removed = Math.min(last, count - 1) - first + 1;
+    int shift = replacement.length() - length;
+    boolean toEnd = last == count || (last == count - 1 && !terminated);
+
+    // Re-lex from just after the ';' before first, to last's ';' (or the end) - nothing before from moves
+    int from = 0;
+    int line = 1;
+    int lineStart = 0;
+    if (first > 0) {
+      lineStart = locateEnd(first - 1);
+      line = lastEndLine;
+      from = sourceMap.endOf(first) + 1;
+    }
+    int oldEndLine = 0;
+    int oldEndColumn = 0;
+    int to = text.length() + shift;
+    if (!toEnd) {
+      oldEndColumn = sourceMap.endOf(last + 1) - locateEnd(last) + 1;
+      oldEndLine = lastEndLine;
+      to = sourceMap.endOf(last + 1) + shift + 1;
+    }
+
+    text.replace(offset, offset + length, replacement.toString());
+    SourceMap added = new SourceMap(text);
+    List<Statement> parsed = parse(from, to, line, lineStart, added, first);
+
+    // Statements after the edit keep everything but their position
+    int lineShift = 0;
+    int columnShift = 0;
+    if (toEnd) {
+      terminated = parsed.isEmpty() || lastTerminated;
+    } else {
+      lineShift = lastEndLine - oldEndLine;
+      columnShift = lastEndColumn - oldEndColumn;
+    }
+
+    Statement[] old = Arrays.copyOfRange(statements, first, first + removed);
+    splice(first, removed, parsed);
+    sourceMap.splice(first + 1, removed, added, shift, lineShift, oldEndLine, columnShift);
+    if (parsed.size() != removed) {
+      for (int k = first + parsed.size(); k < count; k++) {
+        if (statements[k].node != null) {
+          statements[k].node.line = k + 1;
+        }
+      }
+    }
+
+    updateUses(first, old, parsed);
+    full = null;
+    if (treeValid) {
+      treeValid = pars == 0 && defs == 0 && patchTree(first, old, parsed);
+    }
+  }
+
+  /**
+   * The compiled tree, with every variable resolved to its slot, or the SyntaxError a full compile would throw.
+   */
+  public AstNode getRoot() throws SyntaxError {
+    SyntaxError error = getError();
+    if (error != null) {
+      throw error;
+    }
+    if (defs > 0) {
+      return fullRoot;
+    }
+    if (!symbolsValid) {
+      resolveAll();
+    }
+    return root;
+  }
+
+  // The error getRoot() would throw, or null if the program compiles
+  public SyntaxError getError() {
+    if (defs > 0) {
+      return compileFully();
+    }
+    if (!treeValid) {
+      SyntaxError error = relink();
+      if (error != null) {
+        return error;
+      }
+    }
+
+    if (errors > 0) {
+      for (int k = 0; k < count; k++) {
+        if (statements[k].kind == StatementParser.ERROR) {
+          return errorAt(k);
+        }
+      }
+    }
+    return null;
+  }
+
+  public SymbolTable getSymbols() {
+    if (defs > 0 && compileFully() == null) {
+      return full.getSymbols();
+    }
+    if (!symbolsValid) {
+      resolveAll();
+    }
+    return symbols;
+  }
+
+  public SourceMap getSourceMap() {
+    return sourceMap;
+  }
+
+  // The current text. Live, so it changes with the next edit.
+  public CharSequence getSource() {
+    return text;
+  }
+
+  // Parses every statement in text[from, to), which starts at line, and that line at lineStart
+  private List<Statement> parse(int from, int to, int line, int lineStart, SourceMap map, int before) {
+    StatementParser parser = new StatementParser(new Lexer(text, from, to, line, lineStart), numericMode, underflow);
+    List<Statement> parsed = new ArrayList<>();
+    int kind;
+    while ((kind = parser.next()) != StatementParser.EOF) {
+      int number = before + map.add(parser.start, parser.end, parser.line, parser.column);
+      Statement statement = new Statement();
+      statement.kind = kind;
+      if (kind == StatementParser.OPERATOR || kind == StatementParser.WHILE) {
+        statement.name = parser.name;
+        statement.node = parser.node(number);
+      } else if (kind == StatementParser.ERROR) {
+        statement.errorRelative = parser.errorLine == parser.line;
+        statement.errorColumn = statement.errorRelative ? parser.errorColumn - parser.column : parser.errorColumn;
+      }
+      parsed.add(statement);
+
+      lastTerminated = parser.terminated;
+      lastEndLine = parser.endLine;
+      lastEndColumn = parser.endColumn;
+    }
+    return parsed;
+  }
+
+  // Puts statement k's ';' line in lastEndLine and returns the offset that line starts at
+  private int locateEnd(int k) {
+    int start = sourceMap.startOf(k + 1);
+    int lineStart = start - sourceMap.columnOf(k + 1) + 1;
+    int line = sourceMap.lineOf(k + 1);
+    for (int i = start, end = sourceMap.endOf(k + 1); i < end; i++) {
+      if (text.charAt(i) == '\n') {
+        line++;
+        lineStart = i + 1;
+      }
+    }
+    lastEndLine = line;
+    return lineStart;
+  }
+
+  private void splice(int first, int removed, List<Statement> parsed) {
+    int size = count - removed + parsed.size();
+    if (size > statements.length) {
+      statements = Arrays.copyOf(statements, Math.max(size, statements.length * 2));
+    }
+
+    for (int k = first; k < first + removed; k++) {
+      if (statements[k].kind == StatementParser.ERROR) {
+        errors--;
+      } else if (statements[k].kind == StatementParser.PAR || statements[k].kind == StatementParser.AND) {
+        pars--;
+      } else if (statements[k].kind == StatementParser.DEF || statements[k].kind == StatementParser.CALL) {
+        defs--;
+      }
+    }
+    if (removed != parsed.size()) {
+      System.arraycopy(statements, first + removed, statements, first + parsed.size(), count - first - removed);
+    }
+    for (int i = 0; i < parsed.size(); i++) {
+      statements[first + i] = parsed.get(i);
+      if (parsed.get(i).kind == StatementParser.ERROR) {
+        errors++;
+      } else if (parsed.get(i).kind == StatementParser.PAR || parsed.get(i).kind == StatementParser.AND) {
+        pars++;
+      } else if (parsed.get(i).kind == StatementParser.DEF || parsed.get(i).kind == StatementParser.CALL) {
+        defs++;
+      }
+    }
+    if (size < count) {
+      Arrays.fill(statements, size, count, null);
+    }
+    count = size;
+  }
+
+  /**
+   * Keeps uses up to date across an edit that replaced old (from first on) with parsed, and the slots with them.
+   * The slots only need renumbering if a variable came or went, or its first use moved past another's.
+   */
+  private void updateUses(int first, Statement[] old, List<Statement> parsed) {
+    List<String> lost = new ArrayList<>();
+    for (Statement statement : old) {
+      if (statement.name != null) {
+        Use use = uses.get(statement.name);
+        use.count--;
+        if (use.first == statement) {
+          use.first = null;
+          lost.add(statement.name);
+        }
+      }
+    }
+
+    List<String> fresh = new ArrayList<>();
+    List<String> found = new ArrayList<>(); // Variables first used in the new statements, in order
+    for (int i = 0; i < parsed.size(); i++) {
+      String name = parsed.get(i).name;
+      if (name != null) {
+        Use use = uses.get(name);
+        if (use == null) {
+          use = new Use();
+          uses.put(name, use);
+          fresh.add(name);
+        }
+        use.count++;
+        if (first + i < use.firstIndex()) {
+          use.first = parsed.get(i);
+          found.add(name);
+        }
+      }
+    }
+
+    for (String name : lost) {
+      Use use = uses.get(name);
+      if (use.count == 0) {
+        uses.remove(name);
+      } else if (use.first == null) {
+        // Its first use is gone, so it's now the next one after the edit
+        for (int k = first + parsed.size(); use.first == null; k++) {
+          if (name.equals(statements[k].name)) {
+            use.first = statements[k];
+          }
+        }
+      }
+    }
+
+    // Usually the same variables are first used in the same order as before, so nothing else can have moved
+    if (symbolsValid && !found.equals(lost)) {
+      symbolsValid = inOrder(fresh);
+    }
+    if (symbolsValid) {
+      for (Statement statement : parsed) {
+        if (statement.node != null) {
+          resolve(statement.node);
+        }
+      }
+    }
+  }
+
+  // Whether the slots are still in order of first use, with any fresh variables going on the end
+  private boolean inOrder(List<String> fresh) {
+    if (symbols.size() + fresh.size() != uses.size()) {
+      return false;
+    }
+
+    int previous = -1;
+    for (int slot = 0; slot < symbols.size(); slot++) {
+      Use use = uses.get(symbols.nameOf(slot));
+      if (use == null || use.firstIndex() <= previous) {
+        return false;
+      }
+      previous = use.firstIndex();
+    }
+
+    fresh.sort(Comparator.comparingInt(name -> uses.get(name).firstIndex()));
+    if (!fresh.isEmpty() && uses.get(fresh.get(0)).firstIndex() <= previous) {
+      return false;
+    }
+    for (String name : fresh) {
+      symbols.slotOf(name);
+    }
+    return true;
+  }
+
+  // Hands out the slots again from scratch, and re-resolves every node against them
+  private void resolveAll() {
+    List<Map.Entry<String, Use>> ordered = new ArrayList<>(uses.entrySet());
+    ordered.sort(Comparator.comparingInt(entry -> entry.getValue().firstIndex()));
+    symbols = new SymbolTable();
+    for (Map.Entry<String, Use> entry : ordered) {
+      symbols.slotOf(entry.getKey());
+    }
+
+    for (int k = 0; k < count; k++) {
+      if (statements[k].node != null) {
+        resolve(statements[k].node);
+      }
+    }
+    symbolsValid = true;
+  }
+
+  // Just this node, not its children
+  private void resolve(AstNode node) {
+    if (node.getOperator() != null) {
+      node.getOperator().resolve(symbols);
+    } else {
+      node.getCondition().resolve(symbols);
+    }
+  }
+
+  /**
+   * Patches the statements that replaced old into the tree, and returns false if that can't be done locally.
+   * Same kinds of statement in the same order: each new node just takes its old one's place.
+   * Otherwise, if both sides open and close their own blocks, the new ones replace the old in the block around them.
+   */
+  private boolean patchTree(int first, Statement[] old, List<Statement> parsed) {
+    boolean sameShape = old.length == parsed.size();
+    for (int i = 0; sameShape && i < old.length; i++) {
+      sameShape = old[i].kind == parsed.get(i).kind;
+    }
+
+    if (sameShape) {
+      AstNode block = blockOf(first);
+      for (int i = 0; i < old.length; i++) {
+        Statement statement = parsed.get(i);
+        switch (statement.kind) {
+          case StatementParser.OPERATOR -> block.setChild(block.childIndexFrom(first + i + 1), statement.node);
+          case StatementParser.WHILE -> {
+            statement.node.takeChildren(old[i].node);
+            block.setChild(block.childIndexFrom(first + i + 1), statement.node);
+            block = statement.node;
+          }
+          case StatementParser.END -> block = blockOf(first + i + 1);
+          default -> {
+            // Didn't parse before or after, so it was never in the tree
+          }
+        }
+      }
+      return true;
+    }
+
+    List<Statement> oldList = Arrays.asList(old);
+    if (topLevel(oldList) < 0 || topLevel(parsed) < 0) {
+      return false;
+    }
+    AstNode block = blockOf(first);
+    block.replaceChildren(block.childIndexFrom(first + 1), topLevel(oldList), build(parsed));
+    return true;
+  }
+
+  /**
+   * The block statement k goes in. Walks down the tree to the last node before k, then back out past
+   * any ends between the two; only ends and statements that don't parse can be there. Lines are binary searched,
+   * so this costs the nesting depth, not the size of the file.
+   */
+  private AstNode blockOf(int k) {
+    List<AstNode> open = new ArrayList<>();
+    AstNode block = root;
+    int last = 0; // Line of the last node before k
+    while (true) {
+      int index = block.childIndexFrom(k + 1);
+      if (index == 0) {
+        break;
+      }
+      AstNode child = block.getChild(index - 1);
+      last = child.line;
+      if (child.getCondition() == null) {
+        break;
+      }
+      open.add(child);
+      block = child;
+    }
+
+    int depth = open.size();
+    for (int i = last; i < k && depth > 0; i++) {
+      if (statements[i].kind == StatementParser.END) {
+        depth--;
+      }
+    }
+    return depth == 0 ? root : open.get(depth - 1);
+  }
+
+  // How many nodes a run of statements puts straight into the block around it, or -1 if its blocks don't balance
+  private static int topLevel(List<Statement> run) {
+    int depth = 0;
+    int nodes = 0;
+    for (Statement statement : run) {
+      if (statement.node != null && depth == 0) {
+        nodes++;
+      }
+      if (statement.kind == StatementParser.WHILE) {
+        depth++;
+      } else if (statement.kind == StatementParser.END && --depth < 0) {
+        return -1;
+      }
+    }
+    return depth == 0 ? nodes : -1;
+  }
+
+  // The nodes of a balanced run of statements, with their blocks filled in
+  private static List<AstNode> build(List<Statement> run) {
+    List<AstNode> top = new ArrayList<>();
+    ArrayDeque<AstNode> blocks = new ArrayDeque<>();
+    for (Statement statement : run) {
+      if (statement.node != null) {
+        if (blocks.isEmpty()) {
+          top.add(statement.node);
+        } else {
+          blocks.peek().addNode(statement.node);
+        }
+        if (statement.kind == StatementParser.WHILE) {
+          blocks.push(statement.node);
+        }
+      } else if (statement.kind == StatementParser.END) {
+        blocks.pop();
+      }
+    }
+    return top;
+  }
+
+  /**
+   * Links the whole tree up again from the parsed statements, the way AstCompiler.makeAst() does but without
+   * re-lexing anything. Returns the error a full compile would stop at if the blocks don't balance, otherwise null.
+   */
+  private SyntaxError relink() {
+    ArrayDeque<AstNode> blocks = new ArrayDeque<>();
+    AstNode current = root;
+    root.setChildren(List.of());
+    int firstError = -1;
+
+    for (int k = 0; k < count; k++) {
+      Statement statement = statements[k];
+      switch (statement.kind) {
+        case StatementParser.ERROR -> firstError = firstError < 0 ? k : firstError;
+        case StatementParser.OPERATOR -> current.addNode(statement.node);
+        case StatementParser.WHILE -> {
+          statement.node.setChildren(List.of());
+          current.addNode(statement.node);
+          blocks.push(current);
+          current = statement.node;
+        }
+        case StatementParser.PAR -> {
+          AstNode par = new AstNode(k + 1, true);
+          current.addNode(par);
+          blocks.push(current);
+          blocks.push(par);
+          current = new AstNode(k + 1, false);
+          par.addNode(current);
+        }
+        case StatementParser.AND -> {
+          if (blocks.isEmpty() || !blocks.peek().isParallel()) {
+            return firstError >= 0 ? errorAt(firstError)
+                : AstCompiler.syntaxError(sourceMap, k + 1, sourceMap.columnOf(k + 1), " - and outside a par");
+          }
+          current = new AstNode(k + 1, false);
+          blocks.peek().addNode(current);
+        }
+        default -> {
+          if (blocks.isEmpty()) {
+            return firstError >= 0 ? errorAt(firstError)
+                : AstCompiler.syntaxError(sourceMap, k + 1, sourceMap.columnOf(k + 1), " - end without a while");
+          }
+          if (blocks.peek().isParallel()) {
+            blocks.pop();
+          }
+          current = blocks.pop();
+        }
+      }
+    }
+
+    if (current != root) {
+      AstNode open = blocks.peek().isParallel() ? blocks.peek() : current;
+      return firstError >= 0 ? errorAt(firstError) : AstCompiler.syntaxError(sourceMap, open.line,
+          sourceMap.columnOf(open.line),
+          open.isParallel() ? " - par is never closed with end" : " - while is never closed with end");
+    }
+
+    if (pars > 0) {
+      // Checked and lowered as in AstCompiler; parse errors come first there too
+      ParallelBlocks.Conflict conflict = errors > 0 ? null : ParallelBlocks.check(root);
+      if (conflict != null) {
+        return AstCompiler.syntaxError(sourceMap, conflict.statement(), sourceMap.columnOf(conflict.statement()),
+            " - " + conflict.variable() + " is changed in one branch of a par and used in another");
+      }
+      ParallelBlocks.lower(root);
+    }
+    treeValid = pars == 0;
+    return null;
+  }
+
+  // Compiles the current text in full, if it hasn't been since the last edit, and returns its error or null
+  private SyntaxError compileFully() {
+    if (full == null) {
+      full = new AstCompiler(text.toString(), 0, numericMode, underflow);
+      try {
+        fullRoot = full.compile();
+        fullError = null;
+      } catch (SyntaxError e) {
+        fullRoot = null;
+        fullError = e;
+      }
+      treeValid = false;
+    }
+    return fullError;
+  }
+
+  private SyntaxError errorAt(int k) {
+    Statement statement = statements[k];
+    int column = statement.errorRelative ? sourceMap.columnOf(k + 1) + statement.errorColumn : statement.errorColumn;
+    return AstCompiler.syntaxError(sourceMap, k + 1, column, "");
+  }
+}
@@ -1,95 +1,337 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Hashtable;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 
 public class Interpreter {
-  // Compile the tree from the file being read,
-  // then run a pre-order traversal on it.
-  // When branching down into a condition, run the child nodes until the condition is no longer true.
-  public static String[] lines; // Not technically needed but used for debugging purposes
-  public static Integer lineCur; // Same here
+  // Compile the tree from the file being read, then walk it with a TreeExecutor,
+  // or hand it to one of the other backends.
+  // Everything lives on the instance, so any number of Interpreters can run side by side.
+  private final RunOptions options;
+  private SymbolTable symbols; // Slot -> name, for printing
+
+  public Interpreter(RunOptions options) {
+    this.options = options;
+  }
 
   public static void main(String[] args) {
-    Hashtable<String, Integer> runVals = new Hashtable<>();
-    StringBuilder fileContentBuild = new StringBuilder();
+    RunOptions options;
+    try {
+      options = RunOptions.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      return;
+    }
 
-    System.out.print("Enter the path to a .bb file >> ");
-    Scanner scanner = new Scanner(System.in);
-    String filePath = scanner.nextLine();
+    // Only prompt for what wasn't passed on the command line
+    if (options.path == null) {
+      System.out.print("Enter the path to a .bb file >> ");
+      Scanner scanner = new Scanner(System.in);
+      options.path = scanner.nextLine();
 
-    System.out.print("Verbose mode? [y/N] ");
-    String verboseOpt = scanner.nextLine();
-    boolean verbose = verboseOpt.equals("y");
+      if (options.verbose == null) {
+        System.out.print("Verbose mode? [y/N] ");
+        String verboseOpt = scanner.nextLine();
+        options.verbose = verboseOpt.equals("y");
+      }
+    }
 
+    CharBuffer fileContent;
     try {
-      File fileObj = new File(filePath);
-      Scanner fileReadScanner = new Scanner(fileObj);
-      while (fileReadScanner.hasNextLine()) {
-        fileContentBuild.append(fileReadScanner.nextLine().replace("    ", ""));
-      }
-    } catch (FileNotFoundException e) {
+      fileContent = AstCompiler.readSource(Path.of(options.path));
+    } catch (IOException e) {
       System.out.println("Invalid file path :(");
       return;
     }
 
-    String fileContent = fileContentBuild.toString();
+    new Interpreter(options).run(fileContent);
+  }
+
+  /**
+   * Compiles and runs a program, printing the final variables (and every step, if verbose).
+   */
+  public void run(CharSequence source) {
+    boolean verbose = options.verbose != null && options.verbose;
+    // The other backends only do WRAP/ALLOW arithmetic
+    boolean treeOnly = verbose || options.numbers != NumericMode.WRAP || options.underflow != UnderflowPolicy.ALLOW;
+    // Generated JVM code can't be stopped part way, so a limited JIT run uses the bytecode VM
+    boolean limited = options.stepLimit != Long.MAX_VALUE || options.timeLimitMs != 0;
+    boolean vm = !treeOnly && (options.backend == RunOptions.Backend.BYTECODE
+        || options.backend == RunOptions.Backend.JIT && limited);
 
+    SourceMap lines = null;
     try {
-      AstCompiler compiler = new AstCompiler(fileContent);
+      // A cached program skips the front end entirely, but only the bytecode backend can use one
+      if (vm && options.cacheDir != null) {
+        runVm(new ProgramCache(Path.of(options.cacheDir), 1).get(source, options.optLevel));
+        return;
+      }
+
+      AstCompiler compiler = new AstCompiler(source, options.optLevel, options.numbers, options.underflow);
+      // Only a plain tree walk runs par blocks on threads and shares def bodies between calls
+      boolean plainTree = options.traceFile == null && !options.profile && !vm
+          && (options.backend != RunOptions.Backend.JIT || treeOnly) && !verbose;
+      compiler.setTreeWalker(plainTree);
       AstNode root = compiler.compile();
-      lines = compiler.getLines();
-      runNode(root, runVals, verbose);
+      // On stderr, so the program's own output stays the same
+      for (String warning : compiler.getWarnings()) {
+        System.err.println(warning);
+      }
+      lines = compiler.getSourceMap();
+      symbols = compiler.getSymbols();
+      BigInteger[] big = options.numbers == NumericMode.BIG ? new BigInteger[symbols.size()] : null;
+
+      // Only the tree walker can report every step, so traced and verbose runs always use it.
+      if (options.traceFile != null) {
+        runTraced(root, source, compiler);
+      } else if (options.profile) {
+        runProfiled(root, compiler, big);
+      } else if (vm) {
+        runVm(new BytecodeCompiler(symbols).compile(root));
+      } else if (options.backend == RunOptions.Backend.JIT && !treeOnly) {
+        runJit(root);
+      } else {
+        long[] regs = symbols.newRegisters();
+        TreeExecutor executor = new TreeExecutor(root);
+        if (verbose) {
+          // One flush at the end rather than one write per line
+          PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16));
+          RunStatus status;
+          try {
+            status = executor.run(regs, big, new VerbosePrinter(lines, symbols, out, big), options.stepLimit, deadline());
+          } finally {
+            out.flush();
+          }
+          // The variables after the last step have already been shown
+          printEnd(status, executor.getSteps(), Map.of());
+        } else {
+          // Summaries assume arithmetic wraps
+          LoopMemo memo = options.summarize && !treeOnly ? new LoopMemo(symbols, compiler.getNodeCount()) : null;
+          executor.setLoopMemo(memo);
+          ForkJoinPool pool = options.threads > 1 ? new ForkJoinPool(options.threads) : null;
+          executor.setPool(pool);
+          RunStatus status;
+          try {
+            if (options.checkpointFile == null) {
+              status = executor.run(regs, big, null, options.stepLimit, deadline());
+            } else if (!options.resume || resume(executor, regs, big, source, plainTree)) {
+              status = runCheckpointed(executor, regs, big, source, plainTree);
+            } else {
+              return;
+            }
+          } finally {
+            if (pool != null) {
+              pool.shutdown();
+            }
+          }
+          printEnd(status, executor.getSteps(), big != null ? symbols.toMap(regs, big) : symbols.toMap(regs));
+          if (memo != null) {
+            System.out.printf("(Summaries) %d loop runs summarised, %s iterations skipped%n",
+                memo.getSummarised(), Long.toUnsignedString(memo.getSkipped()));
+          }
+        }
+      }
     } catch (SyntaxError e) {
       System.out.println("Failed to compile - " + e.getMessage());
-      return;
+    } catch (NumericError e) {
+      System.out.println("\nStopped - NumericError in line " + lines.lineOf(e.getStatement()) + ": '"
+          + lines.text(e.getStatement()) + ";' " + e.getMessage());
+    }
+  }
+
+  /**
+   * Runs compiled bytecode within the step and time limits, then prints the variables.
+   */
+  private void runVm(BytecodeProgram program) {
+    long[] regs = program.newRegisters();
+    VirtualMachine machine = new VirtualMachine(program);
+    RunStatus status = machine.run(regs, options.stepLimit, deadline());
+    printEnd(status, machine.getSteps(), program.toMap(regs));
+  }
+
+  /**
+   * Sets executor and the registers up to carry on from options.checkpointFile, if there is one.
+   * Returns false, having said why, if there's one but it can't be used.
+   */
+  private boolean resume(TreeExecutor executor, long[] regs, BigInteger[] big, CharSequence source,
+                         boolean treeWalker) {
+    Path file = Path.of(options.checkpointFile);
+    if (!Files.exists(file)) {
+      System.out.println("(Checkpoint) Nothing to resume in " + file + ", so starting from the beginning");
+      return true;
+    }
+
+    Checkpoint saved;
+    try {
+      saved = Checkpoint.load(file);
+    } catch (IOException | IllegalArgumentException e) {
+      System.out.println("Can't resume - " + e.getMessage());
+      return false;
     }
+    String mismatch = saved.mismatch(source, options.optLevel, options.numbers, options.underflow, treeWalker);
+    if (mismatch != null) {
+      System.out.println("Can't resume from " + file + " - " + mismatch);
+      return false;
+    }
+
+    System.arraycopy(saved.regs, 0, regs, 0, regs.length);
+    if (big != null) {
+      System.arraycopy(saved.big, 0, big, 0, big.length);
+    }
+    executor.resumeAt(saved.position, saved.steps);
+    System.out.println("(Checkpoint) Resuming after " + saved.steps + " steps");
+    return true;
   }
 
-  public static void printInfo(Hashtable<String, Integer> vals, boolean inCondition, boolean vrb) {
-    // lineCur = 0 means that the code has ended
-    if (lineCur == 0) {
-      if (!inCondition) {
-        System.out.println("\nCode finished. Have a great day!");
+  /**
+   * Runs the tree a slice of options.checkpointEverySeconds at a time, saving a Checkpoint after each one and
+   * deleting it once the run finishes. A run a limit stops is saved too, so --resume can carry on with it.
+   * Slices end where any time limit would, when a loop goes round again, and the file's written in the
+   * background, so the program only stops for as long as copying its variables takes. Par blocks' branches
+   * run one after another, since a branch on another thread couldn't stop part way. If a checkpoint can't be
+   * written, that's said and the rest of the run goes without.
+   */
+  private RunStatus runCheckpointed(TreeExecutor executor, long[] regs, BigInteger[] big, CharSequence source,
+                                    boolean treeWalker) {
+    long every = options.checkpointEverySeconds * 1_000_000_000;
+    long deadline = deadline();
+    long stepsLeft = options.stepLimit;
+    RunStatus status = null;
+
+    try (CheckpointWriter checkpoints = new CheckpointWriter(Path.of(options.checkpointFile), source,
+        options.optLevel, options.numbers, options.underflow, treeWalker)) {
+      try {
+        while (status == null) {
+          long sliceEnd = System.nanoTime() + every;
+          long before = executor.getSteps();
+          RunStatus sliced = executor.run(regs, big, null, Math.max(1, stepsLeft),
+              deadline == 0 ? sliceEnd : Math.min(deadline, sliceEnd));
+          if (stepsLeft != Long.MAX_VALUE) {
+            stepsLeft -= executor.getSteps() - before;
+          }
 
-        if (!vrb) {
-          for (String key : vals.keySet()) {
-            System.out.println(key + ": " + vals.get(key).toString());
+          if (sliced == RunStatus.FINISHED) {
+            status = sliced;
+          } else {
+            checkpoints.save(executor.getPosition(), executor.getSteps(), regs, big);
+            // Out of time only counts if it's the run's time that's up, not just the slice's
+            if (sliced != RunStatus.OUT_OF_TIME || deadline != 0 && System.nanoTime() - deadline >= 0) {
+              status = sliced;
+            }
           }
         }
-      }
-    } else if (vrb) {
-      if (inCondition) {
-        System.out.println("\nLine " + (lineCur - 1) + " - " + lines[lineCur - 1] + ";  " +
-            "Control statement passed, so looping inside...\n");
-      } else {
-        System.out.println("\nLine " + (lineCur - 1) + " - " + lines[lineCur - 1] + ";\n");
+      } catch (IOException e) {
+        // The run's still good, it just can't be resumed any more
+        System.out.println("Couldn't save a checkpoint - " + e.getMessage());
+        System.out.println("(Checkpoint) Carrying on without them");
+        status = executor.run(regs, big, null, Math.max(1, stepsLeft), deadline);
       }
 
-      for (String key : vals.keySet()) {
-        System.out.println(key + ": " + vals.get(key).toString());
+      // An older checkpoint may still be there, which mustn't be resumed once it's done
+      if (status == RunStatus.FINISHED) {
+        checkpoints.finished();
       }
+    } catch (IOException e) {
+      System.out.println("Couldn't save a checkpoint - " + e.getMessage());
     }
+    return status;
   }
 
-  public static void runNode(AstNode node, Hashtable<String, Integer> vals, boolean verbose) {
-    // Run every node in this node's children. After this, run the node's operator, if it has one.
-    // Thanks to my "bulletproof" """code""" and """""futureproofing""""", this is very short.
-    // Test if condition is true before moving to children
-    // If no condition (-1), default to false
-    AstNode[] children = node.getChildren();
-    // While the condition is true, keep running children
-    while (node.testCondition(vals) == 1) {
-      lineCur = node.line;
-      printInfo(vals, true, verbose);
-      for (AstNode child : children) {
-        runNode(child, vals, verbose);
+  // The System.nanoTime() a run started now has to stop by, or 0 for no limit
+  private long deadline() {
+    return options.timeLimitMs == 0 ? 0 : System.nanoTime() + options.timeLimitMs * 1_000_000;
+  }
+
+  /**
+   * Walks the tree under a Profiler, then prints its report after the usual output.
+   */
+  private void runProfiled(AstNode root, AstCompiler compiler, BigInteger[] big) {
+    long[] regs = symbols.newRegisters();
+    Profiler profiler = new Profiler(root, compiler.getNodeCount(), compiler.getSourceMap());
+    profiler.run(new TreeExecutor(root), regs, big);
+    printFinished(big != null ? symbols.toMap(regs, big) : symbols.toMap(regs));
+
+    profiler.report(System.out, 30);
+    if (options.profileStacks != null) {
+      try {
+        profiler.writeCollapsedStacks(Path.of(options.profileStacks));
+      } catch (IOException e) {
+        System.out.println("Couldn't write the stacks - " + e.getMessage());
       }
     }
+  }
 
-    // Run operator
-    node.runOperator(vals);
-    lineCur = node.line;
-    printInfo(vals, false, verbose);
+  /**
+   * Walks the tree with a TraceWriter recording each step to options.traceFile, for TraceDecoder to read back.
+   */
+  private void runTraced(AstNode root, CharSequence source, AstCompiler compiler) {
+    long[] regs = symbols.newRegisters();
+    try (TraceWriter trace = new TraceWriter(Path.of(options.traceFile), source, options.optLevel, compiler,
+        options.traceFromLine, options.traceToLine, options.traceVars, options.traceSample)) {
+      new TreeExecutor(root).run(regs, trace);
+    } catch (IOException e) {
+      System.out.println("Couldn't write the trace - " + e.getMessage());
+    }
+    printFinished(symbols.toMap(regs));
   }
+
+  /**
+   * Compiles to a JVM class and runs it, reporting compile vs run time.
+   * Falls back to walking the tree if the program can't be compiled.
+   */
+  private void runJit(AstNode root) {
+    long[] regs = symbols.newRegisters();
+
+    long compileStart = System.nanoTime();
+    JitProgram program;
+    try {
+      program = new JitCompiler(symbols).compile(root);
+    } catch (JitBailout e) {
+      System.out.println("(JIT) Can't compile - " + e.getMessage() + ". Falling back to the tree interpreter.");
+      new TreeExecutor(root).run(regs);
+      printFinished(symbols.toMap(regs));
+      return;
+    }
+    long runStart = System.nanoTime();
+    program.run(regs);
+    long runEnd = System.nanoTime();
+
+    printFinished(symbols.toMap(regs));
+    System.out.printf("(JIT) Compiled in %.3f ms, ran in %.3f ms%n",
+        (runStart - compileStart) / 1e6, (runEnd - runStart) / 1e6);
+  }
+
+  // printFinished, or for a run that was stopped, why and where the variables got to
+  private void printEnd(RunStatus status, long steps, Map<String, ? extends Number> vars) {
+    if (status == RunStatus.FINISHED) {
+      printFinished(vars);
+      return;
+    }
+
+    String reason = switch (status) {
+      case OUT_OF_STEPS -> "ran out of steps";
+      case OUT_OF_TIME -> "ran out of time";
+      default -> "cancelled";
+    };
+    System.out.println("\nStopped - " + reason + " after " + steps + " steps");
+    for (Map.Entry<String, ? extends Number> entry : vars.entrySet()) {
+      System.out.println(entry.getKey() + ": " + entry.getValue());
+    }
+  }
+
+  private void printFinished(Map<String, ? extends Number> vars) {
+    System.out.println("\nCode finished. Have a great day!");
+    for (Map.Entry<String, ? extends Number> entry : vars.entrySet()) {
+      System.out.println(entry.getKey() + ": " + entry.getValue());
+    }
+  }
+
 }
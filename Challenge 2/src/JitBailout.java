@@ -0,0 +1,10 @@
+/**
+ * Thrown by JitCompiler for a program it won't compile, saying why; run it another way instead.
+ */
+class JitBailout extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  public JitBailout(String reason) {
+    super(reason);
+  }
+}
@@ -0,0 +1,403 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Compiles a resolved AST straight to JVM bytecode and loads it as a hidden class,
+ * so HotSpot's own JIT can take it from there. The generated class looks like:
+ *
+ * static void run(long[] r) {
+ *   long x = r[0], y = r[1], ...;
+ *   while (x != 0) { y++; x--; }      // every WHILE is a real loop
+ *   r[0] = x; r[1] = y; ...
+ * }
+ *
+ * Keeping variables in locals rather than the array is what lets C2 put them in registers.
+ * The class file is written by hand below; it only needs a tiny subset of the format.
+ */
+public class JitCompiler {
+  // HotSpot won't JIT methods bigger than this (-XX:-DontCompileHugeMethods aside),
+  // and interpreting our bytecode in the JVM interpreter is no faster than our own tree walk.
+  private static final int MAX_CODE_SIZE = 8000;
+  private static final String CLASS_NAME = "BareBonesJit";
+
+  // Opcodes we emit
+  private static final int ICONST_0 = 0x03;
+  private static final int LCONST_0 = 0x09;
+  private static final int LCONST_1 = 0x0a;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC_W = 0x13;
+  private static final int LDC2_W = 0x14;
+  private static final int LLOAD = 0x16;
+  private static final int ALOAD_0 = 0x2a;
+  private static final int LALOAD = 0x2f;
+  private static final int LSTORE = 0x37;
+  private static final int LASTORE = 0x50;
+  private static final int LADD = 0x61;
+  private static final int LSUB = 0x65;
+  private static final int LMUL = 0x69;
+  private static final int LDIV = 0x6d;
+  private static final int LCMP = 0x94;
+  private static final int IFEQ = 0x99;
+  private static final int IFNE = 0x9a;
+  private static final int IFLT = 0x9b;
+  private static final int IFGT = 0x9d;
+  private static final int GOTO = 0xa7;
+  private static final int RETURN = 0xb1;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int WIDE = 0xc4;
+
+  private final SymbolTable symbols;
+  private final ConstantPool pool = new ConstantPool();
+  private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+  private final TreeSet<Integer> branchTargets = new TreeSet<>();
+  private final List<int[]> branchFixups = new ArrayList<>(); // {instruction pc, target pc}
+
+  public JitCompiler(SymbolTable symbols) {
+    this.symbols = symbols;
+  }
+
+  /**
+   * Compiles root into a hidden class. Throws JitBailout if the program can't be compiled,
+   * in which case the caller should use one of the interpreters instead.
+   */
+  public JitProgram compile(AstNode root) throws JitBailout {
+    int varCount = symbols.size();
+    if (1 + 2 * varCount > 0xFFFF) {
+      throw new JitBailout(varCount + " variables don't fit in a JVM stack frame");
+    }
+
+    // Prologue: load every register into its local
+    for (int i = 0; i < varCount; i++) {
+      code.write(ALOAD_0);
+      pushInt(i);
+      code.write(LALOAD);
+      localOp(LSTORE, i);
+    }
+
+    for (int i = 0; i < root.getChildCount(); i++) {
+      emitNode(root.getChild(i));
+    }
+
+    // Epilogue: write every local back
+    for (int i = 0; i < varCount; i++) {
+      code.write(ALOAD_0);
+      pushInt(i);
+      localOp(LLOAD, i);
+      code.write(LASTORE);
+    }
+    code.write(RETURN);
+
+    if (code.size() > MAX_CODE_SIZE) {
+      throw new JitBailout("generated method is " + code.size() + " bytes, HotSpot won't compile over "
+          + MAX_CODE_SIZE);
+    }
+
+    byte[] bytecode = code.toByteArray();
+    for (int[] fixup : branchFixups) {
+      int offset = fixup[1] - fixup[0];
+      bytecode[fixup[0] + 1] = (byte) (offset >> 8);
+      bytecode[fixup[0] + 2] = (byte) offset;
+    }
+
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile(bytecode), true);
+      MethodHandle run = lookup.findStatic(
+          lookup.lookupClass(), "run", MethodType.methodType(void.class, long[].class)
+      );
+      return new JitProgram(run);
+    } catch (IllegalAccessException | NoSuchMethodException | IOException | LinkageError e) {
+      throw new JitBailout("class generation failed: " + e);
+    }
+  }
+
+  private void emitNode(AstNode node) throws JitBailout {
+    Operator oper = node.getOperator();
+    if (oper != null) {
+      emitOperator(oper);
+      return;
+    }
+
+    // Rotated loop, like BytecodeCompiler: goto test; body: ...; test: if (cond) goto body
+    int jump = emitBranch(GOTO);
+    int body = code.size();
+    for (int i = 0; i < node.getChildCount(); i++) {
+      emitNode(node.getChild(i));
+    }
+    patch(jump, code.size());
+
+    TruthCondition cond = node.getCondition();
+    loadOperand(cond.getSlot1(), cond.getOp1Lit());
+    loadOperand(cond.getSlot2(), cond.getOp2Lit());
+    switch (cond.getType()) {
+      case NOT -> {
+        code.write(LCMP);
+        patch(emitBranch(IFNE), body);
+      }
+      case IS -> {
+        code.write(LCMP);
+        patch(emitBranch(IFEQ), body);
+      }
+      case GT -> {
+        code.write(LCMP);
+        patch(emitBranch(IFGT), body);
+      }
+      case LT -> {
+        code.write(LCMP);
+        patch(emitBranch(IFLT), body);
+      }
+      case DIVISIBLE -> {
+        code.write(INVOKESTATIC);
+        writeShort(pool.methodRef("TruthCondition", "divisible", "(JJ)Z"));
+        patch(emitBranch(IFNE), body);
+      }
+      default -> throw new JitBailout("unsupported condition " + cond.getType());
+    }
+  }
+
+  private void emitOperator(Operator oper) throws JitBailout {
+    int slot = oper.getSlot1();
+
+    switch (oper.getType()) {
+      case CLEAR -> {
+        code.write(LCONST_0);
+        localOp(LSTORE, slot);
+        return;
+      }
+      case INCR, DECR -> {
+        localOp(LLOAD, slot);
+        code.write(LCONST_1);
+        code.write(oper.getType() == OperatorTypes.INCR ? LADD : LSUB);
+      }
+      case ADD, SUB, MUL, DIV -> {
+        localOp(LLOAD, slot);
+        loadOperand(oper.getSlot2(), oper.getOp2Lit());
+        code.write(switch (oper.getType()) {
+          case ADD -> LADD;
+          case SUB -> LSUB;
+          case MUL -> LMUL;
+          default -> LDIV;
+        });
+      }
+      default -> throw new JitBailout("unsupported operator " + oper.getType());
+    }
+
+    localOp(LSTORE, slot);
+  }
+
+  // Pushes a variable's local, or a literal if slot < 0.
+  private void loadOperand(int slot, long literal) {
+    if (slot >= 0) {
+      localOp(LLOAD, slot);
+    } else if (literal == 0) {
+      code.write(LCONST_0);
+    } else if (literal == 1) {
+      code.write(LCONST_1);
+    } else {
+      code.write(LDC2_W);
+      writeShort(pool.longConst(literal));
+    }
+  }
+
+  // lload / lstore for variable slot i, which lives in locals 1 + 2i (local 0 is the array).
+  private void localOp(int opcode, int slot) {
+    int local = 1 + 2 * slot;
+    if (local < 256) {
+      code.write(opcode);
+      code.write(local);
+    } else {
+      code.write(WIDE);
+      code.write(opcode);
+      writeShort(local);
+    }
+  }
+
+  private void pushInt(int value) {
+    if (value <= 5) {
+      code.write(ICONST_0 + value);
+    } else if (value < 128) {
+      code.write(BIPUSH);
+      code.write(value);
+    } else if (value < 32768) {
+      code.write(SIPUSH);
+      writeShort(value);
+    } else {
+      code.write(LDC_W);
+      writeShort(pool.intConst(value));
+    }
+  }
+
+  // Emits a branch with a placeholder offset and returns its pc, to be patched later.
+  private int emitBranch(int opcode) {
+    int pc = code.size();
+    code.write(opcode);
+    writeShort(0);
+    return pc;
+  }
+
+  private void patch(int branchPc, int target) throws JitBailout {
+    if (Math.abs(target - branchPc) > Short.MAX_VALUE) {
+      throw new JitBailout("loop too long for a 16-bit branch");
+    }
+    branchFixups.add(new int[] {branchPc, target});
+    branchTargets.add(target);
+  }
+
+  private void writeShort(int value) {
+    code.write(value >> 8);
+    code.write(value);
+  }
+
+  private byte[] classFile(byte[] bytecode) throws IOException {
+    int thisClass = pool.classRef(CLASS_NAME);
+    int superClass = pool.classRef("java/lang/Object");
+    int longArray = pool.classRef("[J");
+    int runName = pool.utf8("run");
+    int runDesc = pool.utf8("([J)V");
+    int codeAttr = pool.utf8("Code");
+    int frameAttr = pool.utf8("StackMapTable");
+
+    // Every branch target sees the same frame: the array, then every variable as a long.
+    ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    DataOutputStream frameOut = new DataOutputStream(frames);
+    frameOut.writeShort(branchTargets.size());
+    int previous = -1;
+    for (int target : branchTargets) {
+      frameOut.writeByte(255); // full_frame
+      frameOut.writeShort(target - previous - 1);
+      frameOut.writeShort(1 + symbols.size());
+      frameOut.writeByte(7); // Object
+      frameOut.writeShort(longArray);
+      for (int i = 0; i < symbols.size(); i++) {
+        frameOut.writeByte(4); // Long
+      }
+      frameOut.writeShort(0); // Empty stack
+      previous = target;
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataOutputStream file = new DataOutputStream(out);
+    file.writeInt(0xCAFEBABE);
+    file.writeShort(0);
+    file.writeShort(61); // Java 17
+    pool.write(file);
+    file.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+    file.writeShort(thisClass);
+    file.writeShort(superClass);
+    file.writeShort(0); // Interfaces
+    file.writeShort(0); // Fields
+
+    file.writeShort(1); // Methods
+    file.writeShort(0x0001 | 0x0008); // public static
+    file.writeShort(runName);
+    file.writeShort(runDesc);
+    file.writeShort(1); // Attributes: Code
+    file.writeShort(codeAttr);
+    file.writeInt(12 + bytecode.length + (branchTargets.isEmpty() ? 0 : 6 + frames.size()));
+    file.writeShort(4); // Max stack: array + index + long value
+    file.writeShort(1 + 2 * symbols.size());
+    file.writeInt(bytecode.length);
+    file.write(bytecode);
+    file.writeShort(0); // Exception table
+    if (branchTargets.isEmpty()) {
+      file.writeShort(0);
+    } else {
+      file.writeShort(1);
+      file.writeShort(frameAttr);
+      file.writeInt(frames.size());
+      file.write(frames.toByteArray());
+    }
+
+    file.writeShort(0); // Class attributes
+    return out.toByteArray();
+  }
+
+  /**
+   * Just enough of a class file constant pool. Entries are deduplicated by their encoded bytes.
+   */
+  private static class ConstantPool {
+    private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(entries);
+    private final HashMap<String, Integer> indexes = new HashMap<>();
+    private int count = 1;
+
+    int utf8(String value) {
+      return add("U" + value, 1, () -> {
+        out.writeByte(1);
+        out.writeUTF(value);
+      });
+    }
+
+    int classRef(String name) {
+      int nameIndex = utf8(name);
+      return add("C" + name, 1, () -> {
+        out.writeByte(7);
+        out.writeShort(nameIndex);
+      });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+      int ownerIndex = classRef(owner);
+      int nameIndex = utf8(name);
+      int descIndex = utf8(descriptor);
+      int nameAndType = add("N" + name + descriptor, 1, () -> {
+        out.writeByte(12);
+        out.writeShort(nameIndex);
+        out.writeShort(descIndex);
+      });
+      return add("M" + owner + "." + name + descriptor, 1, () -> {
+        out.writeByte(10);
+        out.writeShort(ownerIndex);
+        out.writeShort(nameAndType);
+      });
+    }
+
+    int intConst(int value) {
+      return add("I" + value, 1, () -> {
+        out.writeByte(3);
+        out.writeInt(value);
+      });
+    }
+
+    int longConst(long value) {
+      // Longs take up two pool entries
+      return add("J" + value, 2, () -> {
+        out.writeByte(5);
+        out.writeLong(value);
+      });
+    }
+
+    private int add(String key, int size, Entry writer) {
+      Integer index = indexes.get(key);
+      if (index == null) {
+        try {
+          writer.write();
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        index = count;
+        count += size;
+        indexes.put(key, index);
+      }
+
+      return index;
+    }
+
+    void write(DataOutputStream file) throws IOException {
+      file.writeShort(count);
+      file.write(entries.toByteArray());
+    }
+
+    private interface Entry {
+      void write() throws IOException;
+    }
+  }
+}
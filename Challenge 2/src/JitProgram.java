@@ -0,0 +1,25 @@
+import java.lang.invoke.MethodHandle;
+
+/**
+ * A compiled program from JitCompiler.
+ */
+class JitProgram {
+  private final MethodHandle run;
+
+  JitProgram(MethodHandle run) {
+    this.run = run;
+  }
+
+  /**
+   * Runs the program to completion against regs, which must come from SymbolTable.newRegisters().
+   */
+  public void run(long[] regs) {
+    try {
+      run.invokeExact(regs);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,295 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass, character-level tokenizer for Bare Bones source.
+ * Tokens are runs of characters other than whitespace and ';', exactly what splitting on ';' and ' ' used to give,
+ * but nothing is copied out of the source: keywords and literals are recognised in place,
+ * and variable names are interned, so each distinct name is only turned into a String once.
+ * The one exception is an argument list, "(X, Y, Z)", which is a single ARGS token (see args()).
+ */
+public class Lexer {
+  // Returned by next() instead of a TokenTypes ordinal
+  public static final int SEMICOLON = -1;
+  public static final int EOF = -2;
+
+  private final CharSequence src;
+  private final int length;
+  private int pos = 0;
+  private int line = 1;
+  private int lineStart = 0;
+
+  // The token next() last returned
+  private int tokenStart;
+  private int tokenEnd;
+  private int tokenLine;
+  private int tokenColumn;
+  private int literal;
+  private OperatorTypes operator;
+  private String[] args;
+
+  // Interned variable names; open addressing, always at most half full
+  private String[] names = new String[64];
+  private int nameCount = 0;
+
+  public Lexer(CharSequence src) {
+    this.src = src;
+    this.length = src.length();
+  }
+
+  /**
+   * Lexes just src[start, end), which begins on the given line, and that line begins at lineStart.
+   * For IncrementalCompiler, which re-lexes the statements an edit touched, so start has to be
+   * at a statement boundary. Positions still count from the start of src.
+   */
+  Lexer(CharSequence src, int start, int end, int line, int lineStart) {
+    this.src = src;
+    this.length = end;
+    this.pos = start;
+    this.line = line;
+    this.lineStart = lineStart;
+  }
+
+  /**
+   * Moves to the next token and returns its TokenTypes ordinal, or SEMICOLON / EOF.
+   */
+  public int next() {
+    // Skip whitespace, keeping track of lines for error messages
+    char c = 0;
+    while (pos < length) {
+      c = src.charAt(pos);
+      if (c == '\n') {
+        line++;
+        lineStart = pos + 1;
+      } else if (c != ' ' && c != '\t' && c != '\r') {
+        break;
+      }
+      pos++;
+    }
+
+    tokenStart = pos;
+    tokenLine = line;
+    tokenColumn = pos - lineStart + 1;
+    if (pos >= length) {
+      tokenEnd = pos;
+      return EOF;
+    }
+    if (c == ';') {
+      tokenEnd = ++pos;
+      return SEMICOLON;
+    }
+    if (c == '(') {
+      return argumentList();
+    }
+
+    while (pos < length && !isDelimiter(src.charAt(pos))) {
+      pos++;
+    }
+    tokenEnd = pos;
+
+    return classify();
+  }
+
+  private static boolean isDelimiter(char c) {
+    return c == ';' || c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '(';
+  }
+
+  /**
+   * Lexes "(A, B, C)", or "()", into args. Anything else comes back as a VARIABLE, which no grammar takes
+   * in its place, so the error points at the '('.
+   */
+  private int argumentList() {
+    int start = pos;
+    int startLine = line;
+    int startColumn = tokenColumn;
+    List<String> found = new ArrayList<>();
+    boolean wantName = true; // Nothing but a name (or the ')' of an empty list) can come next
+    boolean ok = false;
+
+    pos++;
+    while (pos < length) {
+      char c = src.charAt(pos);
+      if (c == ')') {
+        ok = !wantName || found.isEmpty();
+        pos++;
+        break;
+      } else if (c == ',') {
+        if (wantName) {
+          break;
+        }
+        wantName = true;
+        pos++;
+      } else if (c == '\n') {
+        line++;
+        lineStart = ++pos;
+      } else if (c == ' ' || c == '\t' || c == '\r') {
+        pos++;
+      } else if (c == ';' || c == '(' || !wantName) {
+        break;
+      } else {
+        tokenStart = pos;
+        while (pos < length && !isDelimiter(src.charAt(pos)) && src.charAt(pos) != ',' && src.charAt(pos) != ')') {
+          pos++;
+        }
+        tokenEnd = pos;
+        if (classify() != TokenTypes.VARIABLE.ordinal()) {
+          break;
+        }
+        found.add(name());
+        wantName = false;
+      }
+    }
+
+    tokenStart = start;
+    tokenLine = startLine;
+    tokenColumn = startColumn;
+    if (!ok) {
+      // Skip to the end of the statement, so the next token is the ';' after it
+      while (pos < length && src.charAt(pos) != ';') {
+        if (src.charAt(pos) == '\n') {
+          line++;
+          lineStart = pos + 1;
+        }
+        pos++;
+      }
+      tokenEnd = pos;
+      return TokenTypes.VARIABLE.ordinal();
+    }
+    tokenEnd = pos;
+    args = found.toArray(new String[0]);
+    return TokenTypes.ARGS.ordinal();
+  }
+
+  private int classify() {
+    for (int i = 0; i < CodeGrammars.keywords.length; i++) {
+      if (tokenEquals(CodeGrammars.keywords[i])) {
+        operator = CodeGrammars.keywordOperators[i];
+        return CodeGrammars.keywordTypes[i].ordinal();
+      }
+    }
+
+    return isLiteral() ? TokenTypes.LITERAL.ordinal() : TokenTypes.VARIABLE.ordinal();
+  }
+
+  private boolean tokenEquals(String keyword) {
+    if (tokenEnd - tokenStart != keyword.length()) {
+      return false;
+    }
+    for (int i = 0; i < keyword.length(); i++) {
+      if (src.charAt(tokenStart + i) != keyword.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Same rule as Integer.parseInt: optional sign, digits, must fit in an int. Sets literal if so.
+  private boolean isLiteral() {
+    int i = tokenStart;
+    boolean negative = false;
+    char first = src.charAt(i);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      i++;
+    }
+    if (i == tokenEnd) {
+      return false;
+    }
+
+    long value = 0;
+    for (; i < tokenEnd; i++) {
+      char c = src.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+      value = value * 10 + (c - '0');
+      if (value > (long) Integer.MAX_VALUE + 1) {
+        return false;
+      }
+    }
+
+    value = negative ? -value : value;
+    if (value > Integer.MAX_VALUE) {
+      return false;
+    }
+    literal = (int) value;
+    return true;
+  }
+
+  /**
+   * The current token as a variable name. The same name always gives back the same String.
+   */
+  public String name() {
+    int hash = 0;
+    for (int i = tokenStart; i < tokenEnd; i++) {
+      hash = 31 * hash + src.charAt(i);
+    }
+
+    int mask = names.length - 1;
+    int index = hash & mask;
+    while (names[index] != null) {
+      if (tokenEquals(names[index])) {
+        return names[index];
+      }
+      index = (index + 1) & mask;
+    }
+
+    String name = src.subSequence(tokenStart, tokenEnd).toString();
+    names[index] = name;
+    if (++nameCount * 2 > names.length) {
+      rehash();
+    }
+    return name;
+  }
+
+  private void rehash() {
+    String[] old = names;
+    names = new String[old.length * 2];
+    int mask = names.length - 1;
+    for (String name : old) {
+      if (name != null) {
+        // String.hashCode() is the same 31 * h + c as above
+        int index = name.hashCode() & mask;
+        while (names[index] != null) {
+          index = (index + 1) & mask;
+        }
+        names[index] = name;
+      }
+    }
+  }
+
+  public int literal() {
+    return literal;
+  }
+
+  // Which operator a UOPERATOR token is
+  public OperatorTypes operator() {
+    return operator;
+  }
+
+  // The names in an ARGS token, in order
+  public String[] args() {
+    return args;
+  }
+
+  public int tokenStart() {
+    return tokenStart;
+  }
+
+  public int tokenEnd() {
+    return tokenEnd;
+  }
+
+  public int tokenLine() {
+    return tokenLine;
+  }
+
+  public int tokenColumn() {
+    return tokenColumn;
+  }
+
+  public CharSequence source() {
+    return src;
+  }
+}
@@ -0,0 +1,101 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An immutable affine expression over variable names: c + a1*v1 + a2*v2 + ...
+ * Used to symbolically execute loop bodies. All arithmetic wraps like the interpreter does,
+ * so an expression always agrees with what running the code would have produced.
+ */
+public class LinearExpr {
+  private final TreeMap<String, Long> coefs; // Never holds a 0 coefficient
+  private final long constant;
+
+  private LinearExpr(TreeMap<String, Long> coefs, long constant) {
+    this.coefs = coefs;
+    this.constant = constant;
+  }
+
+  public static LinearExpr constant(long value) {
+    return new LinearExpr(new TreeMap<>(), value);
+  }
+
+  public static LinearExpr var(String name) {
+    TreeMap<String, Long> coefs = new TreeMap<>();
+    coefs.put(name, 1L);
+    return new LinearExpr(coefs, 0);
+  }
+
+  public LinearExpr plus(LinearExpr other) {
+    TreeMap<String, Long> sum = new TreeMap<>(coefs);
+    for (Map.Entry<String, Long> term : other.coefs.entrySet()) {
+      long coef = sum.getOrDefault(term.getKey(), 0L) + term.getValue();
+      if (coef == 0) {
+        sum.remove(term.getKey());
+      } else {
+        sum.put(term.getKey(), coef);
+      }
+    }
+
+    return new LinearExpr(sum, constant + other.constant);
+  }
+
+  public LinearExpr minus(LinearExpr other) {
+    return plus(other.times(-1));
+  }
+
+  public LinearExpr plus(long value) {
+    return new LinearExpr(coefs, constant + value);
+  }
+
+  public LinearExpr times(long factor) {
+    TreeMap<String, Long> scaled = new TreeMap<>();
+    if (factor != 0) {
+      for (Map.Entry<String, Long> term : coefs.entrySet()) {
+        long coef = term.getValue() * factor;
+        if (coef != 0) {
+          scaled.put(term.getKey(), coef);
+        }
+      }
+    }
+
+    return new LinearExpr(scaled, constant * factor);
+  }
+
+  public boolean isConstant() {
+    return coefs.isEmpty();
+  }
+
+  public long getConstant() {
+    return constant;
+  }
+
+  public long coef(String name) {
+    return coefs.getOrDefault(name, 0L);
+  }
+
+  // Variable -> coefficient, in name order.
+  public Map<String, Long> terms() {
+    return coefs;
+  }
+
+  // True if this is exactly the given variable, nothing added.
+  public boolean isVar(String name) {
+    return constant == 0 && coefs.size() == 1 && coef(name) == 1;
+  }
+
+  // True if every variable this refers to is in the given set.
+  public boolean onlyUses(Set<String> names) {
+    return names.containsAll(coefs.keySet());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder(Long.toString(constant));
+    for (Map.Entry<String, Long> term : coefs.entrySet()) {
+      out.append(" + ").append(term.getValue()).append('*').append(term.getKey());
+    }
+
+    return out.toString();
+  }
+}
@@ -0,0 +1,166 @@
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runtime loop summaries for TreeExecutor. The first time a loop is entered, its body is executed
+ * symbolically (see LoopSummary); if every variable it writes changes linearly, the summary is kept,
+ * resolved to register slots, and every entry from then on runs all of the loop's iterations at once:
+ *
+ *   while W not 0 do; incr Y; decr W; end;   ->  n = W; Y += n; W = 0
+ *
+ * That's the inner loops of multiply.bb and divide.bb, which otherwise run all over again on
+ * every iteration of the outer loop. Loops that can't be summarised are remembered too and just run.
+ *
+ * LoopOptimizer does the same thing ahead of time at --opt=1; this does it for programs run as written.
+ * Arithmetic wraps like repeated incr/decr do, so only use it for NumericMode.WRAP with UnderflowPolicy.ALLOW,
+ * and not while anything is listening to individual steps.
+ */
+public class LoopMemo {
+  // In cache, for a loop that was looked at and can't be summarised
+  private static final Summary NONE = new Summary();
+
+  private final SymbolTable symbols;
+  private final Summary[] cache; // By AstNode.id; null until the loop is first entered
+  private long summarised = 0;
+  private long skipped = 0;
+
+  // A linear expression over register slots
+  private static final class Affine {
+    final int[] slots;
+    final long[] coefs;
+    final long constant;
+
+    Affine(LinearExpr expr, SymbolTable symbols) {
+      slots = new int[expr.terms().size()];
+      coefs = new long[slots.length];
+      int i = 0;
+      for (Map.Entry<String, Long> term : expr.terms().entrySet()) {
+        slots[i] = symbols.slotOf(term.getKey());
+        coefs[i++] = term.getValue();
+      }
+      constant = expr.getConstant();
+    }
+
+    long eval(long[] vals) {
+      long value = constant;
+      for (int i = 0; i < slots.length; i++) {
+        value += coefs[i] * vals[slots[i]];
+      }
+      return value;
+    }
+  }
+
+  // A LoopSummary with every name resolved
+  private static final class Summary {
+    int counter;
+    long bound;
+    Affine step;
+    int[] targets; // Accumulators first, then resets
+    Affine[] values; // What each target gains per iteration, or is reset to
+    int accumulators;
+  }
+
+  /**
+   * nodeCount is AstCompiler.getNodeCount(): one more than the highest node id.
+   */
+  public LoopMemo(SymbolTable symbols, int nodeCount) {
+    this.symbols = symbols;
+    this.cache = new Summary[nodeCount];
+  }
+
+  /**
+   * Runs every iteration of a loop whose condition has just been found true, and returns true;
+   * or returns false, without changing anything, if the loop has to be run normally.
+   */
+  public boolean runLoop(AstNode loop, long[] vals) {
+    Summary summary = cache[loop.id];
+    if (summary == null) {
+      summary = summarise(loop);
+      cache[loop.id] = summary;
+    }
+    if (summary == NONE) {
+      return false;
+    }
+
+    long trips = trips(vals[summary.counter] - summary.bound, summary.step.eval(vals));
+    if (trips == 0) {
+      // The counter never lands on the bound, so the loop never ends; leave that to the budgets
+      return false;
+    }
+
+    // Every value only reads variables the loop doesn't write, so the order doesn't matter
+    for (int i = 0; i < summary.targets.length; i++) {
+      long value = summary.values[i].eval(vals);
+      vals[summary.targets[i]] = i < summary.accumulators ? vals[summary.targets[i]] + trips * value : value;
+    }
+    vals[summary.counter] = summary.bound;
+
+    summarised++;
+    skipped += trips;
+    return true;
+  }
+
+  // Loop runs done by runLoop() instead of iterating
+  public long getSummarised() {
+    return summarised;
+  }
+
+  // Iterations those would have taken; counted unsigned, like everything that wraps
+  public long getSkipped() {
+    return skipped;
+  }
+
+  private Summary summarise(AstNode loop) {
+    LoopSummary found = LoopSummary.analyze(loop);
+    if (found == null) {
+      return NONE;
+    }
+
+    Summary summary = new Summary();
+    summary.counter = symbols.slotOf(found.counter);
+    summary.bound = found.bound;
+    summary.step = new Affine(found.step, symbols);
+    summary.accumulators = found.accumulators.size();
+    summary.targets = new int[found.accumulators.size() + found.resets.size()];
+    summary.values = new Affine[summary.targets.length];
+
+    int i = 0;
+    for (Map<String, LinearExpr> group : List.of(found.accumulators, found.resets)) {
+      for (Map.Entry<String, LinearExpr> entry : group.entrySet()) {
+        summary.targets[i] = symbols.slotOf(entry.getKey());
+        summary.values[i++] = new Affine(entry.getValue(), symbols);
+      }
+    }
+    return summary;
+  }
+
+  /**
+   * How many iterations it takes a counter distance away from the bound, moving step towards it each time,
+   * to land on it: the smallest n > 0 with n * step = distance, mod 2^64. That's exactly what repeated
+   * wrapping arithmetic does. Returns 0 if there's no such n. distance is never 0 here.
+   */
+  static long trips(long distance, long step) {
+    if (step == 0) {
+      return 0;
+    }
+
+    // Take out the factors of 2 step and distance share; if distance has fewer, it's never reached
+    int shift = Long.numberOfTrailingZeros(step);
+    if (Long.numberOfTrailingZeros(distance) < shift) {
+      return 0;
+    }
+    long odd = step >> shift;
+    long trips = (distance >> shift) * inverse(odd);
+    // Only the low 64 - shift bits are determined; the smallest solution has the rest clear
+    return trips & (-1L >>> shift);
+  }
+
+  // The inverse of an odd number mod 2^64, by Newton's method: each round doubles the correct bits
+  private static long inverse(long odd) {
+    long inverse = odd; // Right in the low 3 bits already
+    for (int i = 0; i < 5; i++) {
+      inverse *= 2 - odd * inverse;
+    }
+    return inverse;
+  }
+}
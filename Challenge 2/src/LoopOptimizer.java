@@ -0,0 +1,225 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optimisation pass that replaces counting loops with O(1) arithmetic.
+ * Bare Bones can only add or subtract one at a time, so transfers, copies, clears, multiplies
+ * and divides are all written as loops that take time proportional to the values involved:
+ *
+ *   while X not 0 do; incr Y; decr X; end;      ->  Y += X; X = 0
+ *
+ * Loops are folded innermost first, so once the inner transfer loops of multiply.bb have become
+ * ADDs, the outer loop is straight-line too and folds into a MUL. Which loops can be folded,
+ * and what they turn into, is worked out by LoopSummary.
+ *
+ * Every fold gives the same final values as running the loop. Arithmetic wraps just like
+ * repeated incr/decr does, so "n iterations" is exact even when the counter starts below L.
+ * When that can't be guaranteed (a step other than one that doesn't divide the distance to L),
+ * the folded code is guarded and the original loop is kept behind it.
+ */
+public class LoopOptimizer {
+  private int tempCount = 0;
+  private int foldCount = 0;
+
+  /**
+   * Folds every loop it can in the tree below root. Works on names, so run it before resolve().
+   */
+  public void optimize(AstNode root) {
+    optimizeChildren(root);
+  }
+
+  public int getFoldCount() {
+    return foldCount;
+  }
+
+  private void optimizeChildren(AstNode node) {
+    List<AstNode> newChildren = new ArrayList<>();
+
+    for (int i = 0; i < node.getChildCount(); i++) {
+      AstNode child = node.getChild(i);
+      if (child.getCondition() == null) {
+        newChildren.add(child);
+        continue;
+      }
+
+      // Innermost first, so this loop's body might become straight-line
+      optimizeChildren(child);
+
+      LoopSummary summary = LoopSummary.analyze(child);
+      if (summary == null) {
+        newChildren.add(child);
+      } else {
+        newChildren.addAll(fold(child, summary));
+        foldCount++;
+      }
+    }
+
+    node.setChildren(newChildren);
+  }
+
+  private List<AstNode> fold(AstNode loop, LoopSummary summary) {
+    int line = loop.line;
+    String counter = summary.counter;
+    long bound = summary.bound;
+    List<AstNode> body = new ArrayList<>();
+
+    if (summary.hasUnitStep()) {
+      // Trip count n = X - L (or L - X if X counts up). Compute it in X itself, since X = L afterwards.
+      if (summary.step.getConstant() == 1) {
+        addLiteral(body, line, counter, -bound);
+      } else {
+        body.add(op(line, OperatorTypes.MUL, counter, -1));
+        addLiteral(body, line, counter, bound);
+      }
+
+      emitIterations(body, line, summary, counter);
+      body.add(op(line, OperatorTypes.CLEAR, counter));
+      addLiteral(body, line, counter, bound);
+
+      if (summary.resets.isEmpty()) {
+        // Running all of that with n = 0 changes nothing, so it needs no guard.
+        return body;
+      }
+
+      // Resets only happen if the loop runs at all. A loop that ends with X = L runs exactly once if X != L.
+      AstNode guard = new AstNode(line, new TruthCondition(TruthTypes.NOT, counter, Long.toString(bound)));
+      guard.setChildren(body);
+      return List.of(guard);
+    }
+
+    // Otherwise n = (X - L) / step, but only if that's a whole, positive number.
+    // If it isn't, the loop overshoots L and we leave it to the original code.
+    List<AstNode> out = new ArrayList<>();
+    String trips = newTemp();
+    String divisor = operand(out, line, summary.step);
+
+    out.add(op(line, OperatorTypes.CLEAR, trips));
+    out.add(op(line, OperatorTypes.ADD, trips, counter));
+    addLiteral(out, line, trips, -bound);
+
+    body.add(new AstNode(line, divide(trips, divisor)));
+    emitIterations(body, line, summary, trips);
+    body.add(op(line, OperatorTypes.CLEAR, counter));
+    addLiteral(body, line, counter, bound);
+    body.add(op(line, OperatorTypes.CLEAR, trips)); // Ends the guard loop
+
+    AstNode guard = new AstNode(line, new TruthCondition(TruthTypes.DIVISIBLE, trips, divisor));
+    guard.setChildren(body);
+    out.add(guard);
+    out.add(loop);
+    return out;
+  }
+
+  // Emits the effect of `trips` iterations: accumulators gain trips * delta, resets get their value.
+  private void emitIterations(List<AstNode> out, int line, LoopSummary summary, String trips) {
+    for (Map.Entry<String, LinearExpr> acc : summary.accumulators.entrySet()) {
+      String target = acc.getKey();
+      LinearExpr delta = acc.getValue();
+
+      for (Map.Entry<String, Long> term : delta.terms().entrySet()) {
+        String temp = newTemp();
+        out.add(op(line, OperatorTypes.CLEAR, temp));
+        out.add(op(line, OperatorTypes.ADD, temp, term.getKey()));
+        out.add(op(line, OperatorTypes.MUL, temp, trips));
+        if (term.getValue() != 1) {
+          out.add(op(line, OperatorTypes.MUL, temp, term.getValue()));
+        }
+        out.add(op(line, OperatorTypes.ADD, target, temp));
+      }
+
+      long constant = delta.getConstant();
+      if (constant == 1) {
+        out.add(op(line, OperatorTypes.ADD, target, trips));
+      } else if (constant == -1) {
+        out.add(op(line, OperatorTypes.SUB, target, trips));
+      } else if (constant != 0) {
+        String temp = newTemp();
+        out.add(op(line, OperatorTypes.CLEAR, temp));
+        out.add(op(line, OperatorTypes.ADD, temp, trips));
+        out.add(op(line, OperatorTypes.MUL, temp, constant));
+        out.add(op(line, OperatorTypes.ADD, target, temp));
+      }
+    }
+
+    for (Map.Entry<String, LinearExpr> reset : summary.resets.entrySet()) {
+      assign(out, line, reset.getKey(), reset.getValue());
+    }
+  }
+
+  // Emits target = expr. expr must not refer to target.
+  private void assign(List<AstNode> out, int line, String target, LinearExpr expr) {
+    out.add(op(line, OperatorTypes.CLEAR, target));
+
+    for (Map.Entry<String, Long> term : expr.terms().entrySet()) {
+      long coef = term.getValue();
+      if (coef == 1) {
+        out.add(op(line, OperatorTypes.ADD, target, term.getKey()));
+      } else if (coef == -1) {
+        out.add(op(line, OperatorTypes.SUB, target, term.getKey()));
+      } else {
+        String temp = newTemp();
+        out.add(op(line, OperatorTypes.CLEAR, temp));
+        out.add(op(line, OperatorTypes.ADD, temp, term.getKey()));
+        out.add(op(line, OperatorTypes.MUL, temp, coef));
+        out.add(op(line, OperatorTypes.ADD, target, temp));
+      }
+    }
+
+    addLiteral(out, line, target, expr.getConstant());
+  }
+
+  // Returns something usable as an operand for expr: a literal, a variable, or a temp holding it.
+  private String operand(List<AstNode> out, int line, LinearExpr expr) {
+    long value = expr.getConstant();
+    if (expr.isConstant() && value == (int) value) {
+      // Literals in conditions are ints
+      return Long.toString(value);
+    }
+    for (String name : expr.terms().keySet()) {
+      if (expr.isVar(name)) {
+        return name;
+      }
+    }
+
+    String temp = newTemp();
+    assign(out, line, temp, expr);
+    return temp;
+  }
+
+  private void addLiteral(List<AstNode> out, int line, String target, long value) {
+    if (value != 0) {
+      out.add(op(line, OperatorTypes.ADD, target, value));
+    }
+  }
+
+  // DIV by a variable or a literal, whichever operand() handed back.
+  private static Operator divide(String target, String divisor) {
+    if (AstCompiler.isNumeric(divisor)) {
+      return new Operator(OperatorTypes.DIV, target, Integer.parseInt(divisor));
+    }
+
+    return new Operator(OperatorTypes.DIV, target, divisor);
+  }
+
+  private String newTemp() {
+    return "tmp " + tempCount++;
+  }
+
+  // Whether name is one of newTemp()'s. Other hidden variables, like a def's own, can hold values between loops.
+  static boolean isTemporary(String name) {
+    return name.startsWith("tmp ") && AstCompiler.isNumeric(name.substring(4));
+  }
+
+  private static AstNode op(int line, OperatorTypes type, String target) {
+    return new AstNode(line, new Operator(type, target));
+  }
+
+  private static AstNode op(int line, OperatorTypes type, String target, String source) {
+    return new AstNode(line, new Operator(type, target, source));
+  }
+
+  private static AstNode op(int line, OperatorTypes type, String target, long literal) {
+    return new AstNode(line, new Operator(type, target, literal));
+  }
+}
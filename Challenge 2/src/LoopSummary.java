@@ -0,0 +1,147 @@
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The net effect of one iteration of a "while X not L do" loop whose body is straight-line code,
+ * found by executing the body symbolically. A loop is summarisable when every variable it writes is:
+ *
+ * - the counter X, which moves by a fixed step each time (X' = X - step),
+ * - an accumulator, which gains a fixed amount each time (V' = V + delta),
+ * - reset to a fixed value each time (V' = value), or
+ * - left unchanged (an invariant),
+ *
+ * where step, delta and value only depend on invariants. Then n iterations can be done at once:
+ * accumulators gain n * delta, resets take their value if n > 0, and X ends up at L.
+ */
+public class LoopSummary {
+  public final String counter;
+  public final long bound;
+  public final LinearExpr step;
+  public final Map<String, LinearExpr> accumulators;
+  public final Map<String, LinearExpr> resets;
+
+  private LoopSummary(String counter, long bound, LinearExpr step,
+                      Map<String, LinearExpr> accumulators, Map<String, LinearExpr> resets) {
+    this.counter = counter;
+    this.bound = bound;
+    this.step = step;
+    this.accumulators = accumulators;
+    this.resets = resets;
+  }
+
+  /**
+   * Summarises a loop node, or returns null if it doesn't have the shape described above.
+   */
+  public static LoopSummary analyze(AstNode loop) {
+    TruthCondition cond = loop.getCondition();
+    if (cond == null || cond.getType() != TruthTypes.NOT || cond.getOp1() == null || cond.getOp2() != null) {
+      return null;
+    }
+    String counter = cond.getOp1();
+
+    // Symbolically execute one pass of the body. Anything not in state still has its entry value.
+    LinkedHashMap<String, LinearExpr> state = new LinkedHashMap<>();
+    for (int i = 0; i < loop.getChildCount(); i++) {
+      Operator oper = loop.getChild(i).getOperator();
+      if (oper == null || !execute(oper, state)) {
+        return null;
+      }
+    }
+
+    // Variables an iteration may read from: ones it leaves as they were, and ones it never writes.
+    Set<String> readable = new HashSet<>();
+    for (Map.Entry<String, LinearExpr> entry : state.entrySet()) {
+      if (entry.getValue().isVar(entry.getKey())) {
+        readable.add(entry.getKey());
+      }
+      for (String name : entry.getValue().terms().keySet()) {
+        if (!state.containsKey(name)) {
+          readable.add(name);
+        }
+      }
+    }
+
+    LinearExpr step = null;
+    LinkedHashMap<String, LinearExpr> accumulators = new LinkedHashMap<>();
+    LinkedHashMap<String, LinearExpr> resets = new LinkedHashMap<>();
+
+    for (Map.Entry<String, LinearExpr> entry : state.entrySet()) {
+      String name = entry.getKey();
+      LinearExpr expr = entry.getValue();
+      LinearExpr delta = expr.minus(LinearExpr.var(name));
+
+      if (expr.isVar(name)) {
+        continue;
+      }
+
+      if (name.equals(counter)) {
+        // X' = X - step
+        step = delta.times(-1);
+        if (!step.onlyUses(readable) || (step.isConstant() && step.getConstant() == 0)) {
+          return null;
+        }
+      } else if (LoopOptimizer.isTemporary(name)) {
+        // Temporaries from inner folds are always written before they are read, so their
+        // values don't carry between iterations and nothing outside the loop can see them.
+        continue;
+      } else if (expr.coef(name) == 1 && delta.onlyUses(readable)) {
+        accumulators.put(name, delta);
+      } else if (expr.onlyUses(readable)) {
+        resets.put(name, expr);
+      } else {
+        return null;
+      }
+    }
+
+    if (step == null) {
+      // The counter never moves, so the loop either doesn't run or never stops.
+      return null;
+    }
+
+    return new LoopSummary(counter, cond.getOp2Lit(), step, accumulators, resets);
+  }
+
+  // Applies one operator to the symbolic state. Returns false if the result isn't linear.
+  private static boolean execute(Operator oper, Map<String, LinearExpr> state) {
+    String name = oper.getOp1();
+    LinearExpr value = valueOf(name, state);
+    LinearExpr operand = oper.getOp2() != null
+        ? valueOf(oper.getOp2(), state)
+        : LinearExpr.constant(oper.getOp2Lit());
+
+    switch (oper.getType()) {
+      case CLEAR -> value = LinearExpr.constant(0);
+      case INCR -> value = value.plus(1);
+      case DECR -> value = value.plus(-1);
+      case ADD -> value = value.plus(operand);
+      case SUB -> value = value.minus(operand);
+      case MUL -> {
+        if (operand.isConstant()) {
+          value = value.times(operand.getConstant());
+        } else if (value.isConstant()) {
+          value = operand.times(value.getConstant());
+        } else {
+          return false;
+        }
+      }
+      default -> {
+        return false;
+      }
+    }
+
+    state.put(name, value);
+    return true;
+  }
+
+  private static LinearExpr valueOf(String name, Map<String, LinearExpr> state) {
+    LinearExpr value = state.get(name);
+    return value != null ? value : LinearExpr.var(name);
+  }
+
+  // True if the counter moves by exactly one each iteration, so the trip count is just a subtraction.
+  public boolean hasUnitStep() {
+    return step.isConstant() && (step.getConstant() == 1 || step.getConstant() == -1);
+  }
+}
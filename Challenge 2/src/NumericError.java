@@ -0,0 +1,23 @@
+/**
+ * A variable overflowed or went below zero, with a NumericMode / UnderflowPolicy that doesn't allow it.
+ * TreeExecutor fills in which statement it happened at.
+ */
+class NumericError extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  private int statement = 0;
+
+  public NumericError(String message) {
+    super(message);
+  }
+
+  // Statement number (AstNode.line) it happened at, or 0 if unknown
+  public int getStatement() {
+    return statement;
+  }
+
+  NumericError at(int statement) {
+    this.statement = statement;
+    return this;
+  }
+}
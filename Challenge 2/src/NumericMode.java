@@ -0,0 +1,8 @@
+/**
+ * What a variable does when it goes past the top of a long. Picked when compiling; see AstCompiler.
+ */
+public enum NumericMode {
+  WRAP, // Wraps around, like Java's long. The default, and the only mode LoopOptimizer folds loops in.
+  LONG, // Stops the program with a NumericError
+  BIG   // Carries on as a BigInteger; small values still live in the long registers
+}
@@ -1,4 +1,4 @@
-import java.util.Hashtable;
+import java.math.BigInteger;
 
 /**
  * Applies a specific function to op1 (with op2 included if necessary)
@@ -7,7 +7,16 @@ public class Operator {
   private final OperatorTypes typ;
   private final String op1;
   private final String op2;
-  private final int op2Lit;
+  private final long op2Lit;
+
+  // Register slots, filled in by resolve() once the compiler has numbered every variable.
+  private int slot1 = -1;
+  private int slot2 = -1;
+
+  // Anything but WRAP/ALLOW goes through runChecked(); set by AstCompiler before the tree is run
+  private NumericMode mode = NumericMode.WRAP;
+  private UnderflowPolicy underflow = UnderflowPolicy.ALLOW;
+  private boolean checked = false;
 
   public Operator(OperatorTypes s_typ, String s_op1) {
     typ = s_typ;
@@ -23,54 +32,200 @@ public class Operator {
     op2Lit = -1;
   }
 
-  public Operator(OperatorTypes s_typ, String s_op1, int l_op2) {
+  public Operator(OperatorTypes s_typ, String s_op1, long l_op2) {
     typ = s_typ;
     op1 = s_op1;
     op2Lit = l_op2;
     op2 = null;
   }
 
+  public OperatorTypes getType() {
+    return typ;
+  }
+
+  public String getOp1() {
+    return op1;
+  }
+
+  // Null if op2 is a literal (or unused)
+  public String getOp2() {
+    return op2;
+  }
+
+  public long getOp2Lit() {
+    return op2Lit;
+  }
+
+  public int getSlot1() {
+    return slot1;
+  }
+
+  public int getSlot2() {
+    return slot2;
+  }
+
   /**
-   * Always modifies op1 in-place.
+   * Swaps variable names for register slots. Must be called before runOperator().
    */
-  public void runOperator(Hashtable<String, Integer> vals) {
-    // Get from vals if a variable else use literal value (only for op2 as op1 must be a variable)
-    // op2 may never be used, but setting it to -1 means no conditional required
+  public void resolve(SymbolTable symbols) {
+    slot1 = symbols.slotOf(op1);
+    if (op2 != null) {
+      slot2 = symbols.slotOf(op2);
+    }
+  }
 
-    int op1Got = -1;
-    int op2Got = -1;
+  public void setNumerics(NumericMode mode, UnderflowPolicy underflow) {
+    this.mode = mode;
+    this.underflow = underflow;
+    this.checked = mode != NumericMode.WRAP || underflow != UnderflowPolicy.ALLOW;
+  }
 
-    // If CLEAR, op1, op2 may not exist - so don't try to fetch it
-    if (typ != OperatorTypes.CLEAR) {
-      op1Got = vals.get(op1);
-      op2Got = op2 == null ? op2Lit : vals.get(op2);
+  /**
+   * Always modifies op1 in-place.
+   */
+  public void runOperator(long[] vals) {
+    if (checked) {
+      runChecked(vals);
+      return;
     }
 
     switch (typ) {
       case CLEAR -> {
-        // Make a new entry with value 0
-        vals.put(op1, 0);
+        // Set to 0
+        vals[slot1] = 0;
       }
       case INCR -> {
         // Add 1
-        vals.put(op1, vals.get(op1) + 1);
+        vals[slot1]++;
       }
       case DECR -> {
         // Take away 1
-        vals.put(op1, vals.get(op1) - 1);
+        vals[slot1]--;
       }
+      // The arithmetic operators aren't part of the language; LoopOptimizer produces them
+      // when it folds a counting loop, so they have to match what the loop would have done.
+      // Like the loops, they wrap around on overflow.
       case ADD -> {
-        // TODO write inbuilt function that implements ADD using a looped INCR
+        // op1 += op2
+        vals[slot1] += operand2(vals);
       }
       case SUB -> {
-        // TODO write inbuilt function that implements SUB using a looped DECR
+        // op1 -= op2
+        vals[slot1] -= operand2(vals);
       }
       case MUL -> {
-        // TODO write inbuilt function that implements MUL using a looped ADD
+        // op1 *= op2
+        vals[slot1] *= operand2(vals);
       }
       case DIV -> {
-        // TODO write inbuilt function that implements DIV... somehow
+        // op1 /= op2. Only ever emitted behind a DIVISIBLE check, so this divides exactly.
+        vals[slot1] /= operand2(vals);
       }
     }
   }
+
+  // Value of op2, whether it's a variable or a literal
+  private long operand2(long[] vals) {
+    return slot2 < 0 ? op2Lit : vals[slot2];
+  }
+
+  /**
+   * runOperator for any mode but WRAP/ALLOW. Without a BigInteger array to promote into,
+   * BIG overflows stop the program just like LONG.
+   */
+  private void runChecked(long[] vals) {
+    long result;
+    try {
+      result = exact(vals[slot1], operand2(vals));
+    } catch (ArithmeticException e) {
+      if (mode != NumericMode.WRAP) {
+        throw new NumericError(op1 + " doesn't fit in 64 bits any more");
+      }
+      result = wrapped(vals[slot1], operand2(vals));
+    }
+
+    vals[slot1] = result < 0 ? underflow(result) : result;
+  }
+
+  // The operator applied to a and b, throwing ArithmeticException on overflow
+  private long exact(long a, long b) {
+    return switch (typ) {
+      case CLEAR -> 0;
+      case INCR -> Math.incrementExact(a);
+      case DECR -> Math.decrementExact(a);
+      case ADD -> Math.addExact(a, b);
+      case SUB -> Math.subtractExact(a, b);
+      case MUL -> Math.multiplyExact(a, b);
+      case DIV -> {
+        if (a == Long.MIN_VALUE && b == -1) {
+          throw new ArithmeticException("long overflow");
+        }
+        yield a / b;
+      }
+      case NONE -> a;
+    };
+  }
+
+  private long wrapped(long a, long b) {
+    return switch (typ) {
+      case INCR -> a + 1;
+      case DECR -> a - 1;
+      case ADD -> a + b;
+      case SUB -> a - b;
+      case MUL -> a * b;
+      default -> a / b; // Only DIV can overflow otherwise
+    };
+  }
+
+  private long underflow(long result) {
+    if (underflow == UnderflowPolicy.ERROR) {
+      throw new NumericError(op1 + " went below zero");
+    }
+    return underflow == UnderflowPolicy.SATURATE ? 0 : result;
+  }
+
+  /**
+   * runOperator for BIG mode. A variable whose slot in big is null holds its value in vals as usual,
+   * so this only allocates once a value no longer fits in a long; it goes back to vals when it fits again.
+   */
+  public void runOperator(long[] vals, BigInteger[] big) {
+    boolean small = big[slot1] == null && (slot2 < 0 || big[slot2] == null);
+    if (small) {
+      try {
+        long result = exact(vals[slot1], operand2(vals));
+        vals[slot1] = result < 0 ? underflow(result) : result;
+        return;
+      } catch (ArithmeticException e) {
+        // Doesn't fit; redo it below with BigIntegers
+      }
+    }
+
+    BigInteger a = value(vals, big, slot1);
+    BigInteger b = slot2 < 0 ? BigInteger.valueOf(op2Lit) : value(vals, big, slot2);
+    BigInteger result = switch (typ) {
+      case CLEAR -> BigInteger.ZERO;
+      case INCR -> a.add(BigInteger.ONE);
+      case DECR -> a.subtract(BigInteger.ONE);
+      case ADD -> a.add(b);
+      case SUB -> a.subtract(b);
+      case MUL -> a.multiply(b);
+      case DIV -> a.divide(b);
+      case NONE -> a;
+    };
+    if (result.signum() < 0 && underflow != UnderflowPolicy.ALLOW) {
+      result = BigInteger.valueOf(underflow(-1)); // Throws unless saturating, which gives 0
+    }
+
+    if (result.bitLength() < 64) {
+      big[slot1] = null;
+      vals[slot1] = result.longValue();
+    } else {
+      big[slot1] = result;
+    }
+  }
+
+  // Value of a slot in BIG mode
+  static BigInteger value(long[] vals, BigInteger[] big, int slot) {
+    return big[slot] != null ? big[slot] : BigInteger.valueOf(vals[slot]);
+  }
 }
@@ -0,0 +1,120 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Run-length encodes straight-line arithmetic. Source programs are mostly long runs like
+ *
+ *   incr X; incr X; incr X; decr Y; incr X;   ->  ADD X 4; DECR Y
+ *
+ * and each of those statements would otherwise be its own node to walk or instruction to dispatch.
+ * Within a run of operators that only add constants (incr, decr, clear, and ADD/SUB of a literal),
+ * writes to different variables don't affect each other, so the run is collapsed to at most
+ * a CLEAR and one add per variable, in order of first appearance.
+ * A loop, or an operator that reads another variable, ends the run.
+ *
+ * A fused statement keeps the line of the last statement it replaced, so errors and traces still
+ * point at real source. Works on names, so run it before resolve().
+ */
+public class OperatorFuser {
+  private int removed = 0;
+
+  // The net effect of a run on one variable
+  private static class Effect {
+    AstNode only; // The one statement behind it, if there was only one, so it can be kept as is
+    int statements = 0;
+    int clearLine = 0; // Line of the last clear in the run; 0 = not cleared
+    long delta = 0; // Added after the clear, if any
+    int line = 0;
+  }
+
+  public void optimize(AstNode root) {
+    ArrayDeque<AstNode> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      AstNode block = pending.pop();
+      if (block.getChildCount() == 0) {
+        continue;
+      }
+
+      List<AstNode> out = new ArrayList<>();
+      Map<String, Effect> run = new LinkedHashMap<>();
+      for (AstNode child : block.getChildren()) {
+        Operator operator = child.getOperator();
+        if (operator != null && addsConstant(operator)) {
+          add(run.computeIfAbsent(operator.getOp1(), name -> new Effect()), child);
+          continue;
+        }
+
+        flush(run, out);
+        out.add(child);
+        if (child.getCondition() != null) {
+          pending.push(child);
+        }
+      }
+      flush(run, out);
+
+      removed += block.getChildCount() - out.size();
+      block.setChildren(out);
+    }
+  }
+
+  // Statements taken out of the tree
+  public int getRemoved() {
+    return removed;
+  }
+
+  private static boolean addsConstant(Operator operator) {
+    return switch (operator.getType()) {
+      case CLEAR, INCR, DECR -> true;
+      case ADD, SUB -> operator.getOp2() == null;
+      default -> false;
+    };
+  }
+
+  private static void add(Effect effect, AstNode node) {
+    Operator operator = node.getOperator();
+    effect.only = effect.statements == 0 ? node : null;
+    effect.statements++;
+    effect.line = node.line;
+
+    switch (operator.getType()) {
+      case CLEAR -> {
+        // Anything added before it is lost anyway
+        effect.clearLine = node.line;
+        effect.delta = 0;
+      }
+      case INCR -> effect.delta++;
+      case DECR -> effect.delta--;
+      case ADD -> effect.delta += operator.getOp2Lit();
+      case SUB -> effect.delta -= operator.getOp2Lit();
+      default -> throw new IllegalStateException("Can't fuse " + operator.getType());
+    }
+  }
+
+  // Writes out the run so far, as few statements as it takes
+  private static void flush(Map<String, Effect> run, List<AstNode> out) {
+    for (Map.Entry<String, Effect> entry : run.entrySet()) {
+      String name = entry.getKey();
+      Effect effect = entry.getValue();
+      if (effect.only != null) {
+        out.add(effect.only);
+        continue;
+      }
+
+      if (effect.clearLine != 0) {
+        out.add(new AstNode(effect.delta == 0 ? effect.line : effect.clearLine, new Operator(OperatorTypes.CLEAR, name)));
+      }
+      if (effect.delta == 1) {
+        out.add(new AstNode(effect.line, new Operator(OperatorTypes.INCR, name)));
+      } else if (effect.delta == -1) {
+        out.add(new AstNode(effect.line, new Operator(OperatorTypes.DECR, name)));
+      } else if (effect.delta != 0) {
+        out.add(new AstNode(effect.line, new Operator(OperatorTypes.ADD, name, effect.delta)));
+      }
+    }
+    run.clear();
+  }
+}
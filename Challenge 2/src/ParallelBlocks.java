@@ -0,0 +1,210 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * par blocks run their branches at the same time, over the same variables:
+ *
+ *   par; <multiply A by B> and; <divide C by D> end;
+ *
+ * That's only safe, and only gives the same answer every time, if no branch changes a variable another
+ * branch uses, so check() rejects programs where one does. Variables no branch changes (a shared loop
+ * bound, say) can be read by all of them. The branches then never touch each other's variables, so nothing
+ * has to be locked while they run.
+ *
+ * The same rule means running the branches one after another gives exactly the same values as running them
+ * at once. So only TreeExecutor ever sees a par; everything else gets lower()'s tree, where each par is
+ * replaced by its branches in order. Both work on names, so run them before resolve().
+ */
+public final class ParallelBlocks {
+  // A statement using variable, when another branch of the same par changes it (or this one does, and another uses it)
+  public record Conflict(int statement, String variable) {
+  }
+
+  // How one branch uses a variable
+  private static class Use {
+    int statement; // The first one that does
+    boolean changed = false;
+  }
+
+  private ParallelBlocks() {
+  }
+
+  /**
+   * The first conflict between the branches of a par in the tree below root, or null if there isn't one.
+   */
+  public static Conflict check(AstNode root) {
+    Conflict first = null;
+    for (AstNode par : parsBelow(root)) {
+      Map<String, Integer> owner = new HashMap<>(); // The branch that used it first
+      Map<String, Boolean> changed = new HashMap<>(); // Whether any branch so far changes it
+
+      for (int branch = 0; branch < par.getChildCount(); branch++) {
+        Map<String, Use> uses = usesIn(par.getChild(branch));
+        for (Map.Entry<String, Use> entry : uses.entrySet()) {
+          String name = entry.getKey();
+          Use use = entry.getValue();
+          Integer other = owner.putIfAbsent(name, branch);
+          if (other != null && other != branch && (use.changed || changed.get(name))) {
+            // Branches come in source order, so the first found in a par is its earliest
+            if (first == null || use.statement < first.statement()) {
+              first = new Conflict(use.statement, name);
+            }
+            break;
+          }
+          changed.merge(name, use.changed, Boolean::logicalOr);
+        }
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Replaces every par below root with the statements of its branches, one branch after another.
+   */
+  public static void lower(AstNode root) {
+    ArrayDeque<AstNode> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      AstNode node = pending.pop();
+      if (!containsBlock(node)) {
+        pushLoops(node, pending);
+        continue;
+      }
+
+      // Pars and branches are just opened up, and whatever's inside them takes their place
+      List<AstNode> children = new ArrayList<>();
+      ArrayDeque<AstNode> open = new ArrayDeque<>();
+      for (int i = node.getChildCount() - 1; i >= 0; i--) {
+        open.push(node.getChild(i));
+      }
+      while (!open.isEmpty()) {
+        AstNode child = open.pop();
+        if (child.isBlock()) {
+          for (int i = child.getChildCount() - 1; i >= 0; i--) {
+            open.push(child.getChild(i));
+          }
+        } else {
+          children.add(child);
+        }
+      }
+      node.setChildren(children);
+      pushLoops(node, pending);
+    }
+  }
+
+  /**
+   * The register slots a resolved branch uses, in order; only the ones it changes if changedOnly.
+   */
+  public static int[] slotsUsed(AstNode branch, boolean changedOnly) {
+    TreeSet<Integer> slots = new TreeSet<>();
+    Set<AstNode> shared = new HashSet<>();
+    ArrayDeque<AstNode> pending = new ArrayDeque<>();
+    pending.push(branch);
+    while (!pending.isEmpty()) {
+      AstNode node = pending.pop();
+      if (node.isShared() && !shared.add(node)) {
+        continue;
+      }
+      Operator operator = node.getOperator();
+      TruthCondition condition = node.getCondition();
+      if (operator != null) {
+        slots.add(operator.getSlot1());
+        if (operator.getOp2() != null && !changedOnly) {
+          slots.add(operator.getSlot2());
+        }
+      } else if (condition != null && !changedOnly) {
+        if (condition.getOp1() != null) {
+          slots.add(condition.getSlot1());
+        }
+        if (condition.getOp2() != null) {
+          slots.add(condition.getSlot2());
+        }
+      }
+      for (int i = 0; i < node.getChildCount(); i++) {
+        pending.push(node.getChild(i));
+      }
+    }
+    return slots.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  // Every variable used anywhere below branch, in the order they're first used
+  private static Map<String, Use> usesIn(AstNode branch) {
+    Map<String, Use> uses = new LinkedHashMap<>();
+    Set<AstNode> shared = new HashSet<>(); // Def bodies every call shares, which only need looking at once
+    ArrayDeque<AstNode> pending = new ArrayDeque<>();
+    pending.push(branch);
+    while (!pending.isEmpty()) {
+      AstNode node = pending.pop();
+      if (node.isShared() && !shared.add(node)) {
+        continue;
+      }
+      Operator operator = node.getOperator();
+      TruthCondition condition = node.getCondition();
+      if (operator != null) {
+        use(uses, operator.getOp1(), node.line).changed = true;
+        use(uses, operator.getOp2(), node.line);
+      } else if (condition != null) {
+        use(uses, condition.getOp1(), node.line);
+        use(uses, condition.getOp2(), node.line);
+      }
+      // Pushed in reverse so they come off in source order
+      for (int i = node.getChildCount() - 1; i >= 0; i--) {
+        pending.push(node.getChild(i));
+      }
+    }
+    uses.remove(null);
+    return uses;
+  }
+
+  private static Use use(Map<String, Use> uses, String name, int statement) {
+    return uses.computeIfAbsent(name, key -> {
+      Use use = new Use();
+      use.statement = statement;
+      return use;
+    });
+  }
+
+  private static List<AstNode> parsBelow(AstNode root) {
+    List<AstNode> pars = new ArrayList<>();
+    Set<AstNode> shared = new HashSet<>();
+    ArrayDeque<AstNode> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      AstNode node = pending.pop();
+      if (node.isShared() && !shared.add(node)) {
+        continue;
+      }
+      if (node.isParallel()) {
+        pars.add(node);
+      }
+      for (int i = 0; i < node.getChildCount(); i++) {
+        pending.push(node.getChild(i));
+      }
+    }
+    return pars;
+  }
+
+  private static boolean containsBlock(AstNode node) {
+    for (int i = 0; i < node.getChildCount(); i++) {
+      if (node.getChild(i).isBlock()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void pushLoops(AstNode node, ArrayDeque<AstNode> pending) {
+    for (int i = 0; i < node.getChildCount(); i++) {
+      if (node.getChild(i).getCondition() != null) {
+        pending.push(node.getChild(i));
+      }
+    }
+  }
+}
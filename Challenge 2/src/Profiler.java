@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Counts how often each node runs and times each loop, while a TreeExecutor walks the tree.
+ * Everything is kept in long arrays indexed by AstNode.id, and only loops are watched: a statement
+ * always runs exactly once per pass of the loop it's in, so its count comes from that loop's.
+ * The clock is only read when a loop is entered or left, never per statement, which keeps the
+ * overhead down; the price is that plain statements get counts but no times of their own.
+ * Their time shows up as the self time of the loop (or program) they're in.
+ *
+ * After a run, report() prints the hot spots and writeCollapsedStacks() writes the loop nesting
+ * in the folded format flamegraph.pl and speedscope read.
+ */
+public class Profiler implements ExecutionListener {
+  private final SourceMap lines;
+  private final AstNode[] nodes; // By id
+  private final int[] parents; // Id of the enclosing loop; the root (0) for top-level nodes
+
+  private final long[] counts; // Loops: times the test passed. Statements: filled in by count().
+  private final long[] entries; // Loops: times entered
+  private final long[] inclusive; // Loops: nanoseconds from entering to leaving, summed
+  private final long[] inChildren; // Loops: the part of inclusive spent in loops directly inside
+
+  // The loops currently running, innermost last
+  private final int[] openIds;
+  private final long[] openSince;
+  private int open = 0;
+
+  public Profiler(AstNode root, int nodeCount, SourceMap lines) {
+    this.lines = lines;
+    nodes = new AstNode[nodeCount];
+    parents = new int[nodeCount];
+    counts = new long[nodeCount];
+    entries = new long[nodeCount];
+    inclusive = new long[nodeCount];
+    inChildren = new long[nodeCount];
+
+    int deepest = 0;
+    ArrayDeque<AstNode> pending = new ArrayDeque<>();
+    ArrayDeque<Integer> depths = new ArrayDeque<>();
+    pending.push(root);
+    depths.push(0);
+    while (!pending.isEmpty()) {
+      AstNode node = pending.pop();
+      int depth = depths.pop();
+      nodes[node.id] = node;
+      deepest = Math.max(deepest, depth);
+      for (int i = 0; i < node.getChildCount(); i++) {
+        AstNode child = node.getChild(i);
+        parents[child.id] = node.id;
+        pending.push(child);
+        depths.push(depth + 1);
+      }
+    }
+
+    openIds = new int[deepest + 1];
+    openSince = new long[deepest + 1];
+  }
+
+  /**
+   * Runs the tree once under the profiler. The root's times cover the whole run.
+   * big is as for TreeExecutor.run.
+   */
+  public void run(TreeExecutor executor, long[] vals, BigInteger[] big) {
+    openIds[0] = 0;
+    openSince[0] = System.nanoTime();
+    open = 1;
+    entries[0]++;
+
+    executor.run(vals, big, this);
+
+    inclusive[0] += System.nanoTime() - openSince[0];
+    open = 0;
+  }
+
+  @Override
+  public void loopPassed(AstNode loop, long[] vals) {
+    counts[loop.id]++;
+    if (openIds[open - 1] != loop.id) {
+      entries[loop.id]++;
+      openIds[open] = loop.id;
+      openSince[open] = System.nanoTime();
+      open++;
+    }
+  }
+
+  @Override
+  public boolean wantsOperators() {
+    return false;
+  }
+
+  @Override
+  public void statementDone(AstNode node, long[] vals) {
+    if (openIds[open - 1] == node.id) {
+      // Leaving a loop that was entered; one that never passed its test has nothing to time
+      open--;
+      long elapsed = System.nanoTime() - openSince[open];
+      inclusive[node.id] += elapsed;
+      inChildren[openIds[open - 1]] += elapsed;
+    }
+  }
+
+  // Times a node ran: passes for a loop, its enclosing loop's passes for anything else
+  private long count(int id) {
+    if (nodes[id].getCondition() != null) {
+      return counts[id];
+    }
+    return parents[id] == 0 ? entries[0] : counts[parents[id]];
+  }
+
+  private long self(int id) {
+    return inclusive[id] - inChildren[id];
+  }
+
+  /**
+   * Prints the nodes that ran, hottest first: loops by self time, then statements by count.
+   * At most limit rows.
+   */
+  public void report(PrintStream out, int limit) {
+    List<Integer> ran = new ArrayList<>();
+    for (int id = 1; id < nodes.length; id++) {
+      if (count(id) > 0) {
+        ran.add(id);
+      }
+    }
+    ran.sort(Comparator.<Integer>comparingLong(id -> -self(id)).thenComparingLong(id -> -count(id)));
+
+    out.printf("%nProfile: %.3f ms in total, %.3f ms outside any loop%n", inclusive[0] / 1e6, self(0) / 1e6);
+    out.printf("%12s %10s %10s %10s %6s  %s%n", "Count", "Entered", "Self ms", "Incl ms", "Line", "Statement");
+    for (int id : ran.subList(0, Math.min(limit, ran.size()))) {
+      AstNode node = nodes[id];
+      if (node.getCondition() == null) {
+        out.printf("%12d %10s %10s %10s %6d  %s%n", count(id), "", "", "",
+            lines.lineOf(node.line), lines.text(node.line));
+      } else {
+        out.printf("%12d %10d %10.3f %10.3f %6d  %s%n", count(id), entries[id], self(id) / 1e6,
+            inclusive[id] / 1e6, lines.lineOf(node.line), lines.text(node.line));
+      }
+    }
+    if (ran.size() > limit) {
+      out.println("... " + (ran.size() - limit) + " more");
+    }
+  }
+
+  /**
+   * One line per loop that ran: the chain of loops from the program down to it, then its self time
+   * in microseconds. The program's own line holds the time spent outside every loop.
+   */
+  public void writeCollapsedStacks(Path file) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+      out.println("program " + self(0) / 1000);
+      for (int id = 1; id < nodes.length; id++) {
+        if (nodes[id].getCondition() != null && entries[id] > 0 && inclusive[id] > 0) {
+          out.println(stackOf(id) + " " + self(id) / 1000);
+        }
+      }
+    }
+  }
+
+  private String stackOf(int id) {
+    ArrayDeque<String> frames = new ArrayDeque<>();
+    for (int at = id; at != 0; at = parents[at]) {
+      AstNode node = nodes[at];
+      frames.push("line " + lines.lineOf(node.line) + ": " + lines.text(node.line));
+    }
+    frames.push("program");
+    return String.join(";", frames);
+  }
+}
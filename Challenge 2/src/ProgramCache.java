@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps compiled programs so the same source is only lexed and parsed once.
+ * Programs are keyed by a SHA-256 of the source and the optimisation level. Lookups go to a small
+ * in-memory LRU first, then to a directory of .bbc files (BytecodeProgram.toBytes()), which are
+ * memory mapped to load. Only a miss in both runs the compilers, and the result goes into both.
+ *
+ * Safe to share between threads. Two threads missing on the same source at once may both compile it,
+ * which is wasted work but gives the same answer.
+ */
+public class ProgramCache {
+  private final Path directory; // null = memory only
+  private final Map<String, BytecodeProgram> memory;
+
+  private final LongAdder memoryHits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public ProgramCache(Path directory, int capacity) {
+    this.directory = directory;
+    // Access order makes the eldest entry the least recently used one
+    this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, BytecodeProgram> eldest) {
+        if (size() > capacity) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * The compiled form of source, from the cache if possible.
+   */
+  public BytecodeProgram get(CharSequence source, int optLevel) throws SyntaxError {
+    String key = key(source, optLevel);
+
+    synchronized (memory) {
+      BytecodeProgram program = memory.get(key);
+      if (program != null) {
+        memoryHits.increment();
+        return program;
+      }
+    }
+
+    BytecodeProgram program = load(key);
+    if (program != null) {
+      diskHits.increment();
+    } else {
+      misses.increment();
+      AstCompiler compiler = new AstCompiler(source, optLevel);
+      AstNode root = compiler.compile();
+      program = new BytecodeCompiler(compiler.getSymbols()).compile(root);
+      store(key, program);
+    }
+
+    synchronized (memory) {
+      memory.put(key, program);
+    }
+    return program;
+  }
+
+  // Hex SHA-256 of the opt level and the source's UTF-8 bytes
+  static String key(CharSequence source, int optLevel) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Every JVM has SHA-256", e);
+    }
+
+    digest.update((byte) optLevel);
+    digest.update(StandardCharsets.UTF_8.encode(CharBuffer.wrap(source)));
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  private BytecodeProgram load(String key) {
+    if (directory == null) {
+      return null;
+    }
+
+    Path file = directory.resolve(key + ".bbc");
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return BytecodeProgram.read(mapped);
+    } catch (IOException | IllegalArgumentException e) {
+      // Unreadable or from an older format; compiling again will overwrite it
+      return null;
+    }
+  }
+
+  private void store(String key, BytecodeProgram program) {
+    if (directory == null) {
+      return;
+    }
+
+    // Written to a temporary file first, so a reader never maps a half-written program
+    Path temp = null;
+    try {
+      Files.createDirectories(directory);
+      temp = Files.createTempFile(directory, key, ".tmp");
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        ByteBuffer bytes = ByteBuffer.wrap(program.toBytes());
+        while (bytes.hasRemaining()) {
+          channel.write(bytes);
+        }
+      }
+      Files.move(temp, directory.resolve(key + ".bbc"),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // The cache is only an optimisation; carry on without the disk copy
+      try {
+        if (temp != null) {
+          Files.deleteIfExists(temp);
+        }
+      } catch (IOException ignored) {
+        // Nothing more to do
+      }
+    }
+  }
+
+  public long getMemoryHits() {
+    return memoryHits.sum();
+  }
+
+  public long getDiskHits() {
+    return diskHits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("cache: %d memory hits, %d disk hits, %d misses, %d evictions",
+        getMemoryHits(), getDiskHits(), getMisses(), getEvictions());
+  }
+}
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Command line options for Interpreter. Anything not given on the command line
+ * is asked for interactively, like before.
+ *
+ * Usage: Interpreter [--backend=tree|bytecode|jit] [--opt=0|1] [--cache=dir] [--verbose] [file.bb]
+ *                    [--trace=file.bbt [--trace-lines=from-to] [--trace-vars=X,Y] [--trace-sample=N]]
+ *                    [--profile[=stacks.txt]] [--numbers=wrap|long|big] [--underflow=allow|error|saturate]
+ *                    [--steps=N] [--time-ms=N] [--summarize] [--threads=N]
+ *                    [--checkpoint=file.bbk [--checkpoint-every=SECONDS] [--resume]]
+ */
+public class RunOptions {
+  public enum Backend {
+    TREE, BYTECODE, JIT
+  }
+
+  public String path = null; // null = ask
+  public Boolean verbose = null; // null = ask
+  public Backend backend = Backend.TREE;
+  public int optLevel = 0; // See AstCompiler
+  public String cacheDir = null; // Where ProgramCache keeps compiled programs; null = don't cache
+
+  // Binary tracing instead of verbose printing; see TraceWriter
+  public String traceFile = null;
+  public int traceFromLine = 0;
+  public int traceToLine = Integer.MAX_VALUE;
+  public Set<String> traceVars = null; // null = all
+  public int traceSample = 1;
+
+  // Per-node counts and loop times; see Profiler
+  public boolean profile = false;
+  public String profileStacks = null; // Collapsed stacks for a flame graph go here if set
+
+  // Anything but the defaults runs on the tree walker; see AstCompiler
+  public NumericMode numbers = NumericMode.WRAP;
+  public UnderflowPolicy underflow = UnderflowPolicy.ALLOW;
+
+  // Stops a run that goes on too long; see RunStatus. Not for traced or profiled runs, and JIT runs use bytecode instead.
+  public long stepLimit = Long.MAX_VALUE;
+  public long timeLimitMs = 0; // 0 = none
+
+  // Tree walker only: run loops it can summarise all at once; see LoopMemo
+  public boolean summarize = false;
+
+  // Tree walker only: how many threads run the branches of par blocks; 1 runs them one after another
+  public int threads = Runtime.getRuntime().availableProcessors();
+
+  // Tree walker only: save the run's state to checkpointFile every so often, and/or carry on from it; see Checkpoint
+  public String checkpointFile = null;
+  public long checkpointEverySeconds = 60;
+  public boolean resume = false;
+
+  public static RunOptions parse(String[] args) {
+    RunOptions options = new RunOptions();
+
+    for (String arg : args) {
+      if (arg.equals("-v") || arg.equals("--verbose")) {
+        options.verbose = true;
+      } else if (arg.startsWith("--backend=")) {
+        options.backend = parseEnum(Backend.class, arg);
+      } else if (arg.startsWith("--opt=")) {
+        options.optLevel = parseInt(arg, 0, 1);
+      } else if (arg.startsWith("--cache=")) {
+        options.cacheDir = arg.substring(arg.indexOf('=') + 1);
+      } else if (arg.startsWith("--trace=")) {
+        options.traceFile = arg.substring(arg.indexOf('=') + 1);
+      } else if (arg.startsWith("--trace-lines=")) {
+        String[] range = arg.substring(arg.indexOf('=') + 1).split("-", 2);
+        if (range.length != 2) {
+          throw new IllegalArgumentException("Bad value for --trace-lines: expected from-to");
+        }
+        options.traceFromLine = parseInt("--trace-lines=" + range[0], 1, Integer.MAX_VALUE);
+        options.traceToLine = parseInt("--trace-lines=" + range[1], options.traceFromLine, Integer.MAX_VALUE);
+      } else if (arg.startsWith("--trace-vars=")) {
+        options.traceVars = new HashSet<>(Arrays.asList(arg.substring(arg.indexOf('=') + 1).split(",")));
+      } else if (arg.startsWith("--trace-sample=")) {
+        options.traceSample = parseInt(arg, 1, Integer.MAX_VALUE);
+      } else if (arg.equals("--profile")) {
+        options.profile = true;
+      } else if (arg.startsWith("--profile=")) {
+        options.profile = true;
+        options.profileStacks = arg.substring(arg.indexOf('=') + 1);
+      } else if (arg.startsWith("--numbers=")) {
+        options.numbers = parseEnum(NumericMode.class, arg);
+      } else if (arg.startsWith("--underflow=")) {
+        options.underflow = parseEnum(UnderflowPolicy.class, arg);
+      } else if (arg.startsWith("--steps=")) {
+        options.stepLimit = parseLong(arg, 1, Long.MAX_VALUE);
+      } else if (arg.startsWith("--time-ms=")) {
+        options.timeLimitMs = parseLong(arg, 1, Long.MAX_VALUE / 1_000_000);
+      } else if (arg.equals("--summarize")) {
+        options.summarize = true;
+      } else if (arg.startsWith("--threads=")) {
+        options.threads = parseInt(arg, 1, Short.MAX_VALUE);
+      } else if (arg.startsWith("--checkpoint=")) {
+        options.checkpointFile = arg.substring(arg.indexOf('=') + 1);
+      } else if (arg.startsWith("--checkpoint-every=")) {
+        options.checkpointEverySeconds = parseLong(arg, 1, Long.MAX_VALUE / 1_000_000_000);
+      } else if (arg.equals("--resume")) {
+        options.resume = true;
+      } else if (arg.startsWith("-")) {
+        throw new IllegalArgumentException("Unknown option " + arg);
+      } else {
+        options.path = arg;
+      }
+    }
+
+    if (options.traceFile != null && options.numbers == NumericMode.BIG) {
+      // Trace records hold a long per step
+      throw new IllegalArgumentException("--trace can't be used with --numbers=big");
+    }
+
+    if (options.resume && options.checkpointFile == null) {
+      throw new IllegalArgumentException("--resume needs --checkpoint=file to carry on from");
+    }
+    if (options.checkpointFile != null && (options.backend != Backend.TREE || options.traceFile != null
+        || options.profile || options.verbose != null && options.verbose)) {
+      // Only the tree walker can stop part way and say where it got to
+      throw new IllegalArgumentException("--checkpoint only works with the plain tree walker");
+    }
+
+    return options;
+  }
+
+  // Parses the value of a --key=value option as an int between min and max.
+  static int parseInt(String arg, int min, int max) {
+    return (int) parseLong(arg, min, max);
+  }
+
+  static long parseLong(String arg, long min, long max) {
+    String value = arg.substring(arg.indexOf('=') + 1);
+    try {
+      long parsed = Long.parseLong(value);
+      if (parsed >= min && parsed <= max) {
+        return parsed;
+      }
+    } catch (NumberFormatException ignored) {
+      // Same message as out of range
+    }
+
+    throw new IllegalArgumentException(
+        "Bad value for " + arg.substring(0, arg.indexOf('=')) + ": " + value + " (expected " + min + "-" + max + ")"
+    );
+  }
+
+  // Parses the value of a --key=value option into one of the enum's constants.
+  static <T extends Enum<T>> T parseEnum(Class<T> type, String arg) {
+    String value = arg.substring(arg.indexOf('=') + 1);
+    try {
+      return Enum.valueOf(type, value.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Bad value for " + arg.substring(0, arg.indexOf('=')) + ": " + value);
+    }
+  }
+}
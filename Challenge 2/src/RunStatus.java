@@ -0,0 +1,33 @@
+/**
+ * How a run ended. Anything but FINISHED leaves the executor (VirtualMachine or TreeExecutor) suspended
+ * where it stopped, so calling run() again with the same registers carries on from there.
+ */
+public enum RunStatus {
+  FINISHED, OUT_OF_STEPS, OUT_OF_TIME, CANCELLED;
+
+  // Steps between looks at the clock, the cancel flag and the thread's interrupt status
+  static final long CHECK_INTERVAL = 1 << 16;
+
+  /**
+   * Whether a run that has taken executed steps so far has to stop, and why; null if it can go on.
+   * deadline is a System.nanoTime() value, or 0 for none.
+   * Executors only call this at loop back-edges, once executed reaches nextCheck().
+   */
+  static RunStatus check(long executed, long stepLimit, long deadline, boolean cancelled) {
+    if (executed >= stepLimit) {
+      return OUT_OF_STEPS;
+    }
+    if (cancelled || Thread.currentThread().isInterrupted()) {
+      return CANCELLED;
+    }
+    if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+      return OUT_OF_TIME;
+    }
+    return null;
+  }
+
+  // When the next check is due
+  static long nextCheck(long executed, long stepLimit) {
+    return Math.min(stepLimit, executed + CHECK_INTERVAL);
+  }
+}
@@ -0,0 +1,124 @@
+import java.util.Arrays;
+
+/**
+ * Where each statement came from in the source. Statements are numbered from 1 in the order they appear,
+ * which is what AstNode.line holds, and this maps them back to text and line/column positions.
+ * Only offsets are stored; text is cut out of the source when something actually asks for it.
+ */
+public class SourceMap {
+  private final CharSequence source;
+  private int[] starts = new int[256];
+  private int[] ends = new int[256];
+  private int[] lines = new int[256];
+  private int[] columns = new int[256];
+  private int count = 0;
+
+  public SourceMap(CharSequence source) {
+    this.source = source;
+  }
+
+  // Records the next statement and returns its number.
+  int add(int start, int end, int line, int column) {
+    ensureCapacity(count + 1);
+    starts[count] = start;
+    ends[count] = end;
+    lines[count] = line;
+    columns[count] = column;
+    return ++count;
+  }
+
+  private void ensureCapacity(int size) {
+    if (size > starts.length) {
+      size = Math.max(size, starts.length * 2);
+      starts = Arrays.copyOf(starts, size);
+      ends = Arrays.copyOf(ends, size);
+      lines = Arrays.copyOf(lines, size);
+      columns = Arrays.copyOf(columns, size);
+    }
+  }
+
+  /**
+   * Replaces removed statements, starting with statement from, with all of added's (over the same source).
+   * For IncrementalCompiler: the statements after them move by shift characters and lineShift lines,
+   * and the ones that were on line columnLine, where the replaced statements ended, by columnShift columns too.
+   */
+  void splice(int from, int removed, SourceMap added, int shift, int lineShift, int columnLine, int columnShift) {
+    int at = from - 1;
+    int tail = count - at - removed;
+    ensureCapacity(count - removed + added.count);
+
+    int moved = at + added.count;
+    if (removed != added.count) {
+      System.arraycopy(starts, at + removed, starts, moved, tail);
+      System.arraycopy(ends, at + removed, ends, moved, tail);
+      System.arraycopy(lines, at + removed, lines, moved, tail);
+      System.arraycopy(columns, at + removed, columns, moved, tail);
+    }
+    System.arraycopy(added.starts, 0, starts, at, added.count);
+    System.arraycopy(added.ends, 0, ends, at, added.count);
+    System.arraycopy(added.lines, 0, lines, at, added.count);
+    System.arraycopy(added.columns, 0, columns, at, added.count);
+    count = moved + tail;
+
+    // Lines only ever go up, so everything still on columnLine comes first
+    int i = moved;
+    if (columnShift != 0) {
+      for (; i < count && lines[i] == columnLine; i++) {
+        columns[i] += columnShift;
+      }
+    }
+    if (shift != 0 || lineShift != 0) {
+      for (i = moved; i < count; i++) {
+        starts[i] += shift;
+        ends[i] += shift;
+        lines[i] += lineShift;
+      }
+    }
+  }
+
+  /**
+   * The first statement whose ';' (or end) is at offset or after it, or statementCount() + 1 if there isn't one.
+   */
+  int statementEndingFrom(int offset) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (ends[mid] < offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low + 1;
+  }
+
+  // Offset of a statement's first token, and of its ';' (or the end of the source)
+  int startOf(int statement) {
+    return starts[statement - 1];
+  }
+
+  int endOf(int statement) {
+    return ends[statement - 1];
+  }
+
+  public int statementCount() {
+    return count;
+  }
+
+  /**
+   * The text of a statement, without its ';'.
+   */
+  public String text(int statement) {
+    return source.subSequence(starts[statement - 1], ends[statement - 1]).toString().trim();
+  }
+
+  // Source line a statement starts on, counted from 1.
+  public int lineOf(int statement) {
+    return lines[statement - 1];
+  }
+
+  public int columnOf(int statement) {
+    return columns[statement - 1];
+  }
+}
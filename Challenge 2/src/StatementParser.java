@@ -0,0 +1,152 @@
+/**
+ * Parses Bare Bones one statement at a time: each statement's tokens from a Lexer are run through
+ * the grammar table in CodeGrammars, and next() says what the statement was.
+ * AstCompiler parses whole files with it; IncrementalCompiler just the statements an edit touched.
+ */
+class StatementParser {
+  // What next() found
+  static final int EOF = 0;
+  static final int OPERATOR = 1;
+  static final int WHILE = 2;
+  static final int END = 3;
+  static final int ERROR = 4;
+  static final int PAR = 5;
+  static final int AND = 6;
+  static final int DEF = 7;
+  static final int CALL = 8;
+
+  private final Lexer lexer;
+  private final NumericMode numericMode;
+  private final UnderflowPolicy underflow;
+
+  // The tokens of the current statement, by position. Only the parts the grammar needs get filled in.
+  private final String[] names = new String[CodeGrammars.maxGrammarLength];
+  private final int[] literals = new int[CodeGrammars.maxGrammarLength];
+  private final OperatorTypes[] operators = new OperatorTypes[CodeGrammars.maxGrammarLength];
+  private final String[][] lists = new String[CodeGrammars.maxGrammarLength][];
+
+  // The statement next() last parsed
+  int start; // Offset of its first token
+  int end; // Offset of the ';', or of the end of the source if it ran into that first
+  int line; // Line and column of its first token
+  int column;
+  boolean terminated; // Ended with a ';'
+  int endLine; // Line and column of the ';' (or end of the source)
+  int endColumn;
+  int errorLine; // ERROR only: where it stopped making sense
+  int errorColumn;
+  String name; // OPERATOR and WHILE: the variable. DEF and CALL: the def's name.
+  String[] args; // DEF: the parameters. CALL: the arguments.
+  private int kind;
+  private OperatorTypes operator;
+  private TruthTypes truth;
+  private int literal;
+
+  StatementParser(Lexer lexer, NumericMode numericMode, UnderflowPolicy underflow) {
+    this.lexer = lexer;
+    this.numericMode = numericMode;
+    this.underflow = underflow;
+  }
+
+  /**
+   * Parses the next statement and returns what it was, or EOF if there are none left.
+   */
+  int next() {
+    int token = lexer.next();
+    if (token == Lexer.EOF) {
+      return EOF;
+    }
+
+    start = lexer.tokenStart();
+    line = lexer.tokenLine();
+    column = lexer.tokenColumn();
+    int state = 0;
+    int count = 0;
+    int badLine = 0;
+    int badColumn = -1;
+
+    // Walk the grammar table until the statement ends
+    for (; token >= 0; token = lexer.next(), count++) {
+      if (state >= 0) {
+        state = CodeGrammars.transitions[state][token];
+        if (state < 0) {
+          badLine = lexer.tokenLine();
+          badColumn = lexer.tokenColumn();
+        }
+      }
+
+      if (state >= 0) {
+        if (token == TokenTypes.VARIABLE.ordinal()) {
+          names[count] = lexer.name();
+        } else if (token == TokenTypes.LITERAL.ordinal()) {
+          literals[count] = lexer.literal();
+        } else if (token == TokenTypes.UOPERATOR.ordinal()) {
+          operators[count] = lexer.operator();
+        } else if (token == TokenTypes.ARGS.ordinal()) {
+          lists[count] = lexer.args();
+        }
+      }
+    }
+
+    end = lexer.tokenStart();
+    terminated = token == Lexer.SEMICOLON;
+    endLine = lexer.tokenLine();
+    endColumn = lexer.tokenColumn();
+
+    int gramIndex = state >= 0 ? CodeGrammars.accepting[state] : -1;
+    if (gramIndex == -1) {
+      // Point at the first token that didn't fit, or the end if the statement stopped too soon
+      errorLine = badColumn >= 0 ? badLine : line;
+      errorColumn = badColumn >= 0 ? badColumn : column + (end - start);
+      kind = ERROR;
+      return ERROR;
+    }
+
+    // OK FINALLY we get to take the tokens and build an actual statement.
+    // Every statement will contain one operator / condition - UOPERATOR, [BOPERATOR], CONTROL, END, PAR, AND,
+    // DEF or CALL.
+    // Get it, then fill up the rest of the slots with the given grammar. Remember, we know exactly
+    // how the code will look, since we are known to conform to a specific grammar at this point.
+    int main = CodeGrammars.mainLocations[gramIndex];
+    switch (CodeGrammars.acceptedGrammars[gramIndex][main]) {
+      case UOPERATOR -> {
+        kind = OPERATOR;
+        operator = operators[main];
+        name = names[main + 1];
+      }
+      case CONTROL -> {
+        kind = WHILE;
+        truth = CodeGrammars.mainTruthTypes[gramIndex];
+        name = names[main + 1];
+        literal = literals[main + 3];
+      }
+      case PAR -> kind = PAR;
+      case AND -> kind = AND;
+      case DEF -> {
+        kind = DEF;
+        name = names[main + 1];
+        args = lists[main + 2];
+      }
+      case CALL -> {
+        kind = CALL;
+        name = names[main + 1];
+        args = lists[main + 2];
+      }
+      default -> kind = END;
+    }
+    return kind;
+  }
+
+  /**
+   * A new node for the OPERATOR or WHILE statement next() just parsed, numbered statement.
+   */
+  AstNode node(int statement) {
+    if (kind == WHILE) {
+      return new AstNode(statement, new TruthCondition(truth, name, literal));
+    }
+    // Unary operator so construct with only one value.
+    Operator node = new Operator(operator, name);
+    node.setNumerics(numericMode, underflow);
+    return new AstNode(statement, node);
+  }
+}
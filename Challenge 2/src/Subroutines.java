@@ -0,0 +1,279 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * def and call, for the blocks programs otherwise paste in over and over:
+ *
+ *   def mul(X, Y, Z);
+ *     clear Z; while X not 0 do; ...; end;      as in multiply.bb
+ *   end;
+ *   call mul(A, B, C);
+ *
+ * Arguments are passed by reference, so the body works on the caller's own variables. Anything else the body uses
+ * belongs to the def, named "mul W" so it's never printed, and starts at 0 on every call: the body begins by clearing
+ * each of them. So a call means the same wherever it is, in a loop, a par's branch or on its own. A def can't see the caller's other variables, the same variable can't be passed twice, and a def can only
+ * call the ones above it, so there's no recursion.
+ *
+ * Each body is parsed once. A small one is copied into every call, with the parameters renamed to the arguments,
+ * which costs nothing at runtime. A bigger one, if the tree is only for TreeExecutor, goes in the tree once and is
+ * shared by every call to it: a call is then a block that copies the arguments into the def's own "mul X" variables,
+ * runs the shared body and copies back the ones it changes. Nothing aliases and the body can't see anything else,
+ * so that's the same as passing by reference. Everything else only understands trees, so there every call is copied.
+ * So is every call in a def's body, so bodies never have a shared block in them.
+ *
+ * A call in a par's branch gets its own copy too, and its own set of the def's variables ("mul W 12", for the call
+ * at statement 12). Otherwise every branch calling the same def would be using the same ones at once.
+ */
+class Subroutines {
+  // Bodies this small are always copied; so are ones no bigger than the copying a shared call would need
+  static final int INLINE_LIMIT = 16;
+
+  private static class Def {
+    final String name;
+    final String[] params;
+    AstNode body; // Parameters by their own names, everything else by the def's
+    int size; // Nodes a copy of the body adds
+    boolean[] changed; // Which parameters the body changes
+    AstNode shared; // The body with its parameters renamed to the def's too; made by the first call that shares it
+
+    Def(String name, String[] params, AstNode body) {
+      this.name = name;
+      this.params = params;
+      this.body = body;
+    }
+  }
+
+  private final Map<String, Def> defs = new HashMap<>();
+  private final boolean share;
+  private final NumericMode numericMode;
+  private final UnderflowPolicy underflow;
+  private Def open = null; // Whose body is being parsed
+  private int inlined = 0;
+  private int sharedCalls = 0;
+
+  // share: whether big bodies can be shared between calls, which only TreeExecutor can run
+  Subroutines(boolean share, NumericMode numericMode, UnderflowPolicy underflow) {
+    this.share = share;
+    this.numericMode = numericMode;
+    this.underflow = underflow;
+  }
+
+  /**
+   * Starts a def. Its body's statements go in the block this returns, until end().
+   * Throws IllegalArgumentException, saying why, if it can't be defined.
+   */
+  AstNode begin(String name, String[] params, int statement) {
+    if (defs.containsKey(name)) {
+      throw new IllegalArgumentException(name + " is already defined");
+    }
+    String twice = repeated(params);
+    if (twice != null) {
+      throw new IllegalArgumentException(twice + " is a parameter twice");
+    }
+    open = new Def(name, params, new AstNode(statement, false));
+    return open.body;
+  }
+
+  // The block begin() returned, while its def is still open, or null
+  AstNode openBody() {
+    return open == null ? null : open.body;
+  }
+
+  /**
+   * Finishes the open def: gives everything in its body that isn't a parameter (or already someone's) to it,
+   * cleared first.
+   */
+  void end() {
+    Def def = open;
+    open = null;
+    Set<String> params = new HashSet<>(Arrays.asList(def.params));
+    Set<String> own = new LinkedHashSet<>();
+    AstNode body = copy(def.body, name -> {
+      if (params.contains(name) || SymbolTable.isHidden(name)) {
+        return name;
+      }
+      own.add(def.name + " " + name);
+      return def.name + " " + name;
+    });
+
+    def.body = new AstNode(body.line, false);
+    for (String variable : own) {
+      def.body.addNode(operator(body.line, OperatorTypes.CLEAR, variable, null));
+    }
+    for (AstNode statement : body.getChildren()) {
+      def.body.addNode(statement);
+    }
+
+    Set<String> changed = new HashSet<>();
+    def.size = walk(def.body, changed);
+    def.changed = new boolean[def.params.length];
+    for (int i = 0; i < def.params.length; i++) {
+      def.changed[i] = changed.contains(def.params[i]);
+    }
+    defs.put(def.name, def);
+  }
+
+  /**
+   * The nodes that call name(args) at statement, to go where the call is. inPar: it's in a par's branch.
+   * Throws IllegalArgumentException, saying why, if it can't be called like that.
+   */
+  List<AstNode> call(String name, String[] args, int statement, boolean inPar) {
+    Def def = defs.get(name);
+    if (def == null) {
+      throw new IllegalArgumentException(name + " isn't defined above this");
+    }
+    if (args.length != def.params.length) {
+      String arguments = def.params.length == 1 ? " argument" : " arguments";
+      throw new IllegalArgumentException(name + " takes " + def.params.length + arguments + ", not " + args.length);
+    }
+    String twice = repeated(args);
+    if (twice != null) {
+      throw new IllegalArgumentException(twice + " is passed twice");
+    }
+
+    // Copying in and out costs up to four nodes a parameter, plus the call's own block
+    boolean small = def.size <= Math.max(INLINE_LIMIT, 4 * def.params.length + 1);
+    if (inPar || open != null || !share || small) {
+      Map<String, String> renamed = new HashMap<>();
+      for (int i = 0; i < args.length; i++) {
+        renamed.put(def.params[i], args[i]);
+      }
+      // Anything else that's hidden is a def's own, the called one's or one it calls
+      UnaryOperator<String> own = inPar ? variable -> SymbolTable.isHidden(variable) ? variable + " " + statement : variable
+          : UnaryOperator.identity();
+      inlined++;
+      return Arrays.asList(copy(def.body, param -> renamed.getOrDefault(param, own.apply(param))).getChildren());
+    }
+
+    if (def.shared == null) {
+      Set<String> params = new HashSet<>(Arrays.asList(def.params));
+      def.shared = copy(def.body, param -> params.contains(param) ? def.name + " " + param : param);
+      def.shared.share();
+    }
+    AstNode call = new AstNode(statement, false);
+    for (int i = 0; i < args.length; i++) {
+      call.addNode(operator(statement, OperatorTypes.CLEAR, def.name + " " + def.params[i], null));
+      call.addNode(operator(statement, OperatorTypes.ADD, def.name + " " + def.params[i], args[i]));
+    }
+    call.addNode(def.shared);
+    for (int i = 0; i < args.length; i++) {
+      if (def.changed[i]) {
+        call.addNode(operator(statement, OperatorTypes.CLEAR, args[i], null));
+        call.addNode(operator(statement, OperatorTypes.ADD, args[i], def.name + " " + def.params[i]));
+      }
+    }
+    sharedCalls++;
+    return List.of(call);
+  }
+
+  /**
+   * name as the user knows it: a def's own variables by the name they have in its body.
+   */
+  static String describe(String name) {
+    String[] parts = name.split(" ");
+    return parts.length < 2 ? name : parts[1] + " in def " + parts[0];
+  }
+
+  // Calls that got their own copy of the body
+  int getInlined() {
+    return inlined;
+  }
+
+  // Calls that share one
+  int getShared() {
+    return sharedCalls;
+  }
+
+  private static String repeated(String[] names) {
+    Set<String> seen = new HashSet<>();
+    for (String name : names) {
+      if (!seen.add(name)) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  // Nodes below block a copy would make, and the names they change
+  private static int walk(AstNode block, Set<String> changed) {
+    int size = 0;
+    ArrayDeque<AstNode> pending = new ArrayDeque<>();
+    for (int i = 0; i < block.getChildCount(); i++) {
+      pending.push(block.getChild(i));
+    }
+    while (!pending.isEmpty()) {
+      AstNode node = pending.pop();
+      size++;
+      if (node.getOperator() != null) {
+        changed.add(node.getOperator().getOp1());
+      }
+      for (int i = 0; i < node.getChildCount(); i++) {
+        pending.push(node.getChild(i));
+      }
+    }
+    return size;
+  }
+
+  /**
+   * A copy of the tree under from, with every variable renamed.
+   */
+  private AstNode copy(AstNode from, UnaryOperator<String> rename) {
+    AstNode to = copyNode(from, rename);
+    ArrayDeque<AstNode[]> pending = new ArrayDeque<>();
+    pending.push(new AstNode[] {from, to});
+    while (!pending.isEmpty()) {
+      AstNode[] pair = pending.pop();
+      for (int i = 0; i < pair[0].getChildCount(); i++) {
+        AstNode child = pair[0].getChild(i);
+        AstNode childCopy = copyNode(child, rename);
+        pair[1].addNode(childCopy);
+        pending.push(new AstNode[] {child, childCopy});
+      }
+    }
+    return to;
+  }
+
+  private AstNode copyNode(AstNode node, UnaryOperator<String> rename) {
+    Operator operator = node.getOperator();
+    TruthCondition condition = node.getCondition();
+    if (operator != null) {
+      String op2 = operator.getOp2();
+      return op2 != null ? operator(node.line, operator.getType(), rename.apply(operator.getOp1()), rename.apply(op2))
+          : literalOperator(node.line, operator.getType(), rename.apply(operator.getOp1()), operator.getOp2Lit());
+    }
+    if (condition == null) {
+      return new AstNode(node.line, node.isParallel());
+    }
+
+    TruthCondition copy;
+    if (condition.getOp2() != null) {
+      String op1 = condition.getOp1() != null ? rename.apply(condition.getOp1()) : Integer.toString(condition.getOp1Lit());
+      copy = new TruthCondition(condition.getType(), op1, rename.apply(condition.getOp2()));
+    } else if (condition.getOp1() != null) {
+      copy = new TruthCondition(condition.getType(), rename.apply(condition.getOp1()), condition.getOp2Lit());
+    } else {
+      copy = new TruthCondition(condition.getType(), condition.getOp1Lit(), condition.getOp2Lit());
+    }
+    return new AstNode(node.line, copy);
+  }
+
+  // op1 op2, or just op1 if op2 is null
+  private AstNode operator(int line, OperatorTypes type, String op1, String op2) {
+    Operator operator = op2 == null ? new Operator(type, op1) : new Operator(type, op1, op2);
+    operator.setNumerics(numericMode, underflow);
+    return new AstNode(line, operator);
+  }
+
+  private AstNode literalOperator(int line, OperatorTypes type, String op1, long op2) {
+    Operator operator = new Operator(type, op1, op2);
+    operator.setNumerics(numericMode, underflow);
+    return new AstNode(line, operator);
+  }
+}
@@ -0,0 +1,80 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Gives every variable in a program a dense integer slot, in order of first appearance.
+ * The interpreter keeps all values in a flat long[] indexed by these slots,
+ * so names are only needed again when printing results.
+ */
+public class SymbolTable {
+  private final HashMap<String, Integer> slots = new HashMap<>();
+  private final List<String> names = new ArrayList<>();
+
+  /**
+   * Compiler-generated temporaries have a space in their name, which no source token can contain.
+   * They get slots like any other variable but are never printed.
+   */
+  public static boolean isHidden(String name) {
+    return name.indexOf(' ') >= 0;
+  }
+
+  /**
+   * Returns the slot for a variable, assigning the next free one if it hasn't been seen yet.
+   */
+  public int slotOf(String name) {
+    Integer slot = slots.get(name);
+    if (slot == null) {
+      slot = names.size();
+      slots.put(name, slot);
+      names.add(name);
+    }
+
+    return slot;
+  }
+
+  public int size() {
+    return names.size();
+  }
+
+  public String nameOf(int slot) {
+    return names.get(slot);
+  }
+
+  public String[] getNames() {
+    return names.toArray(new String[0]);
+  }
+
+  // A fresh register file; every variable starts at 0.
+  public long[] newRegisters() {
+    return new long[names.size()];
+  }
+
+  /**
+   * Rebuilds the name -> value view of a register file. Only used for printing.
+   */
+  public LinkedHashMap<String, Long> toMap(long[] vals) {
+    LinkedHashMap<String, Long> map = new LinkedHashMap<>();
+    for (int i = 0; i < names.size(); i++) {
+      if (!isHidden(names.get(i))) {
+        map.put(names.get(i), vals[i]);
+      }
+    }
+
+    return map;
+  }
+
+  // Same for NumericMode.BIG, where a variable's value is in big instead if that isn't null
+  public LinkedHashMap<String, Number> toMap(long[] vals, BigInteger[] big) {
+    LinkedHashMap<String, Number> map = new LinkedHashMap<>();
+    for (int i = 0; i < names.size(); i++) {
+      if (!isHidden(names.get(i))) {
+        map.put(names.get(i), big[i] != null ? big[i] : (Number) vals[i]);
+      }
+    }
+
+    return map;
+  }
+}
@@ -0,0 +1,25 @@
+class SyntaxError extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  private final int line;
+  private final int column;
+
+  public SyntaxError(String errorMessage) {
+    this(errorMessage, 0, 0);
+  }
+
+  public SyntaxError(String errorMessage, int line, int column) {
+    super(errorMessage);
+    this.line = line;
+    this.column = column;
+  }
+
+  // Position in the source file, counted from 1. 0 if unknown.
+  public int getLine() {
+    return line;
+  }
+
+  public int getColumn() {
+    return column;
+  }
+}
@@ -0,0 +1,7 @@
+enum TokenTypes {
+  // UOPERATOR - Unary operator
+  // BOPERATOR - Binary operator
+  // PAR, AND - Start a par block, and its next branch
+  // ARGS - A whole argument list, "(X, Y)"; see Lexer.args()
+  VARIABLE, LITERAL, CONTROL, UOPERATOR, BOPERATOR, NOT, DO, END, PAR, AND, DEF, CALL, ARGS
+}
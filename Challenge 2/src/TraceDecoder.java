@@ -0,0 +1,96 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Turns a trace written by TraceWriter back into the same text verbose mode prints.
+ * Needs the program's source too, since the trace only holds statement numbers and slots;
+ * the source is compiled again at the trace's opt level and checked against the hash in the header.
+ *
+ * Usage: TraceDecoder trace.bbt program.bb
+ */
+public class TraceDecoder {
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.out.println("Usage: TraceDecoder trace.bbt program.bb");
+      return;
+    }
+
+    PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16));
+    try {
+      decode(Path.of(args[0]), AstCompiler.readSource(Path.of(args[1])), out);
+    } catch (SyntaxError | IllegalArgumentException e) {
+      System.out.println("Can't decode - " + e.getMessage());
+      System.exit(1);
+    } finally {
+      out.flush();
+    }
+  }
+
+  public static void decode(Path trace, CharSequence source, PrintStream out) throws IOException, SyntaxError {
+    try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+      ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+      in.limit(0); // Nothing read yet
+      fill(channel, in, 8 + 64);
+      if (in.getInt() != TraceWriter.MAGIC) {
+        throw new IllegalArgumentException("not a Bare Bones trace");
+      }
+      int optLevel = in.getInt();
+      byte[] key = new byte[64];
+      in.get(key);
+      if (!new String(key, StandardCharsets.US_ASCII).equals(ProgramCache.key(source, optLevel))) {
+        throw new IllegalArgumentException("the trace was made from a different program");
+      }
+
+      AstCompiler compiler = new AstCompiler(source, optLevel);
+      compiler.compile();
+      SymbolTable symbols = compiler.getSymbols();
+      VerbosePrinter printer = new VerbosePrinter(compiler.getSourceMap(), symbols, out);
+      long[] vals = symbols.newRegisters();
+
+      while (fill(channel, in, TraceWriter.RECORD_SIZE)) {
+        int statement = in.getInt();
+        int slot = in.getInt();
+        long value = in.getLong();
+
+        if (statement < 0) {
+          printer.printLoopPassed(-statement, vals);
+        } else {
+          if (slot >= 0) {
+            vals[slot] = value;
+          }
+          printer.printStatement(statement, vals);
+        }
+      }
+    }
+
+    out.println("\nCode finished. Have a great day!");
+  }
+
+  // Makes sure at least count bytes are ready to get from in. False at the end of the file.
+  private static boolean fill(FileChannel channel, ByteBuffer in, int count) throws IOException {
+    if (in.remaining() >= count) {
+      return true;
+    }
+
+    in.compact();
+    while (in.position() < count) {
+      if (channel.read(in) < 0) {
+        if (in.position() > 0) {
+          throw new IllegalArgumentException("the trace ends part way through a record");
+        }
+        in.flip();
+        return false;
+      }
+    }
+    in.flip();
+    return true;
+  }
+}
@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records a run as a compact binary trace instead of printing it, for TraceDecoder to turn back into
+ * verbose output later. Each step is one 16-byte record: the statement (negated for a loop passing its test),
+ * the slot the statement wrote (-1 if none) and that slot's new value. Since every statement writes at most
+ * one variable, that's enough to rebuild all of them.
+ *
+ * Records go into a fixed ring of buffers. A full buffer is handed to a background thread that writes it out
+ * through a FileChannel and gives it back, so the running program only ever pays for a few puts.
+ * If the disk can't keep up, the program waits for a free buffer rather than losing records.
+ *
+ * Records can be limited to a range of source lines and/or a set of variables, and thinned to one in every N.
+ * A filtered trace still decodes, but a variable only changes in the output when a record for it was kept.
+ *
+ * File layout: magic, opt level, the source's ProgramCache key (64 ASCII hex digits), then records to the end.
+ */
+public class TraceWriter implements ExecutionListener, AutoCloseable {
+  static final int MAGIC = 0x42425431; // "BBT1"
+  static final int RECORD_SIZE = 16;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int BUFFER_COUNT = 8;
+  private static final ByteBuffer END = ByteBuffer.allocate(0); // Tells the flusher to stop
+
+  private final FileChannel channel;
+  private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+  private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+  private final Thread flusher;
+  private volatile IOException flushError = null;
+  private ByteBuffer current;
+
+  // Filters, worked out per statement and per slot up front so each step is just array lookups
+  private final boolean[] statementKept;
+  private final boolean[] slotKept; // null = every variable
+  private final int sampleEvery;
+  private int untilSample;
+
+  /**
+   * Starts a trace of a program compiled by compiler, from source, at optLevel.
+   * fromLine/toLine are source lines (inclusive; 0 and Integer.MAX_VALUE for all of them),
+   * vars is null for every variable, and sampleEvery keeps one record in that many.
+   */
+  public TraceWriter(Path file, CharSequence source, int optLevel, AstCompiler compiler,
+                     int fromLine, int toLine, Set<String> vars, int sampleEvery) throws IOException {
+    SourceMap lines = compiler.getSourceMap();
+    statementKept = new boolean[lines.statementCount() + 1];
+    for (int statement = 1; statement <= lines.statementCount(); statement++) {
+      int line = lines.lineOf(statement);
+      statementKept[statement] = line >= fromLine && line <= toLine;
+    }
+
+    SymbolTable symbols = compiler.getSymbols();
+    if (vars == null) {
+      slotKept = null;
+    } else {
+      slotKept = new boolean[symbols.size()];
+      for (int slot = 0; slot < symbols.size(); slot++) {
+        slotKept[slot] = vars.contains(symbols.nameOf(slot));
+      }
+    }
+    this.sampleEvery = sampleEvery;
+    this.untilSample = sampleEvery;
+
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    ByteBuffer header = ByteBuffer.allocate(8 + 64);
+    header.putInt(MAGIC).putInt(optLevel);
+    header.put(ProgramCache.key(source, optLevel).getBytes(StandardCharsets.US_ASCII));
+    header.flip();
+    writeFully(header);
+
+    for (int i = 0; i < BUFFER_COUNT; i++) {
+      free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+    current = free.remove();
+
+    flusher = new Thread(this::flushLoop, "trace-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  @Override
+  public void loopPassed(AstNode loop, long[] vals) {
+    // Loops don't write anything, so a variable filter has nothing to keep here
+    if (slotKept == null && statementKept[loop.line] && sampled()) {
+      record(-loop.line, -1, 0);
+    }
+  }
+
+  @Override
+  public void statementDone(AstNode node, long[] vals) {
+    if (!statementKept[node.line]) {
+      return;
+    }
+
+    // The one variable this statement wrote, if any
+    Operator operator = node.getOperator();
+    int slot = operator == null ? -1 : operator.getSlot1();
+    if (slotKept != null && (slot < 0 || !slotKept[slot])) {
+      return;
+    }
+    if (sampled()) {
+      record(node.line, slot, slot < 0 ? 0 : vals[slot]);
+    }
+  }
+
+  private boolean sampled() {
+    if (--untilSample > 0) {
+      return false;
+    }
+    untilSample = sampleEvery;
+    return true;
+  }
+
+  private void record(int statement, int slot, long value) {
+    if (current.remaining() < RECORD_SIZE) {
+      handOff();
+    }
+    current.putInt(statement).putInt(slot).putLong(value);
+  }
+
+  // Queues the current buffer for writing and takes the next free one, waiting if there isn't one yet
+  private void handOff() {
+    current.flip();
+    try {
+      full.put(current);
+      current = free.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while tracing", e);
+    }
+  }
+
+  private void flushLoop() {
+    try {
+      while (true) {
+        ByteBuffer buffer = full.take();
+        if (buffer == END) {
+          return;
+        }
+        if (flushError == null) {
+          try {
+            writeFully(buffer);
+          } catch (IOException e) {
+            // Keep taking buffers so the program isn't blocked; close() reports it
+            flushError = e;
+          }
+        }
+        buffer.clear();
+        free.put(buffer);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Writes out whatever is still buffered and closes the file.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      current.flip();
+      full.put(current);
+      full.put(END);
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while finishing the trace", e);
+    } finally {
+      channel.close();
+    }
+
+    if (flushError != null) {
+      throw flushError;
+    }
+  }
+}
@@ -0,0 +1,408 @@
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks an AST without recursing. Each open while gets a frame on an explicit stack: the loop node
+ * and the index of its next child. The stack is sized to the tree's deepest nesting up front,
+ * so running never allocates, and nesting depth is limited by memory instead of the Java stack.
+ *
+ * The root is run once as a plain block; its ONCE condition is never tested, so the same tree
+ * can be run any number of times. One executor holds one stack, so give each thread its own.
+ *
+ * Budgets, cancel() and Thread.interrupt() work as in VirtualMachine, checked only when a loop goes
+ * round again. A run that stops early keeps its frame stack, and the next run() carries on from it.
+ * getPosition() and resumeAt() hand that stack to another executor for the same tree, e.g. via a Checkpoint.
+ * A step here is a statement run or a loop condition tested.
+ *
+ * Given a pool, the branches of a par block (see ParallelBlocks) run at the same time, each on its own executor
+ * and its own copy of the variables it uses; what each changed is copied back once they've all finished.
+ * Branches see cancel() and interrupts of the thread running the par too; if one stops, the par is left as though
+ * it never started, and the run stops just before it with CANCELLED.
+ * Otherwise, and in runs with a listener, BigIntegers or limits, which a branch couldn't stop part way through for,
+ * a par and its branches are just blocks, run once each in order.
+ */
+public class TreeExecutor {
+  private final AstNode root;
+  private final AstNode[] frameNodes;
+  private final int[] frameNext;
+  private int suspendedTop = -1; // Top frame of a suspended run; -1 if there isn't one
+  private long steps = 0;
+  private volatile boolean cancelled = false;
+  private volatile boolean interrupted = false; // Its thread was interrupted waiting for a par's branches
+  private TreeExecutor parent = null; // For a par's branch, the executor running the par
+  private LoopMemo memo = null;
+  private ForkJoinPool pool = null;
+  private final Map<AstNode, Branch[]> branches = new HashMap<>(); // Of each par, made the first time it runs
+
+  // One branch of a par, ready to run again each time the par does
+  private static class Branch extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final TreeExecutor executor;
+    final int[] used; // Slots it reads or changes, copied in
+    final int[] changed; // Slots it changes, copied back out
+    final long[] regs;
+    long[] shared;
+    boolean finished;
+    RuntimeException failure;
+
+    Branch(AstNode branch, TreeExecutor parent, int size) {
+      executor = new TreeExecutor(branch);
+      executor.setPool(parent.pool);
+      executor.parent = parent;
+      used = ParallelBlocks.slotsUsed(branch, false);
+      changed = ParallelBlocks.slotsUsed(branch, true);
+      regs = new long[size];
+    }
+
+    @Override
+    protected void compute() {
+      // Its own copy, so branches never write to the same cache line. No other branch changes these.
+      for (int slot : used) {
+        regs[slot] = shared[slot];
+      }
+      try {
+        finished = executor.run(regs) == RunStatus.FINISHED;
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+  }
+
+  public TreeExecutor(AstNode root) {
+    this.root = root;
+    int depth = depthOf(root);
+    this.frameNodes = new AstNode[depth];
+    this.frameNext = new int[depth];
+  }
+
+  // Number of frames needed: the root plus the deepest chain of whiles (and other blocks) inside it.
+  private static int depthOf(AstNode root) {
+    int deepest = 1;
+    Map<AstNode, Integer> shared = new HashMap<>(); // Deepest each shared block has been looked through at
+    ArrayDeque<AstNode> nodes = new ArrayDeque<>();
+    ArrayDeque<Integer> depths = new ArrayDeque<>();
+    nodes.push(root);
+    depths.push(1);
+    while (!nodes.isEmpty()) {
+      AstNode node = nodes.pop();
+      int depth = depths.pop();
+      if (node.isShared() && shared.getOrDefault(node, 0) >= depth) {
+        continue; // Nothing inside can go any deeper than last time
+      }
+      if (node.isShared()) {
+        shared.put(node, depth);
+      }
+      deepest = Math.max(deepest, depth);
+      for (int i = 0; i < node.getChildCount(); i++) {
+        AstNode child = node.getChild(i);
+        if (child.getCondition() != null || child.isBlock()) {
+          nodes.push(child);
+          depths.push(depth + 1);
+        }
+      }
+    }
+
+    return deepest;
+  }
+
+  /**
+   * Runs summarisable loops all at once from now on; see LoopMemo. Only used by runs without
+   * a listener or BigIntegers, since it skips the steps a listener would be told about.
+   */
+  public void setLoopMemo(LoopMemo memo) {
+    this.memo = memo;
+  }
+
+  /**
+   * Runs the branches of par blocks on pool from now on, or one after another if it's null.
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+    branches.clear();
+  }
+
+  public RunStatus run(long[] vals) {
+    return run(vals, null);
+  }
+
+  public RunStatus run(long[] vals, ExecutionListener listener) {
+    return run(vals, null, listener);
+  }
+
+  public RunStatus run(long[] vals, BigInteger[] big, ExecutionListener listener) {
+    return run(vals, big, listener, Long.MAX_VALUE, 0);
+  }
+
+  /**
+   * Runs the tree against vals. If listener isn't null it's told about every step,
+   * in the same order the old recursive runNode printed them.
+   * big is the BigInteger side of the registers for a program compiled in NumericMode.BIG, null otherwise.
+   * A NumericError comes out with the statement it happened at filled in.
+   * Stops early after about stepLimit more steps or at deadline (a System.nanoTime() value, 0 for none);
+   * see RunStatus.
+   */
+  public RunStatus run(long[] vals, BigInteger[] big, ExecutionListener listener, long stepLimit, long deadline) {
+    AstNode[] nodes = frameNodes;
+    int[] next = frameNext;
+    boolean operators = listener != null && listener.wantsOperators();
+    LoopMemo memo = listener == null && big == null ? this.memo : null;
+    boolean fork = pool != null && listener == null && big == null && stepLimit == Long.MAX_VALUE && deadline == 0;
+    int top = suspendedTop;
+    if (top < 0) {
+      top = 0;
+      nodes[0] = root;
+      next[0] = 0;
+      steps = 0;
+    }
+    suspendedTop = -1;
+    long executed = 0;
+    long checkAt = RunStatus.nextCheck(0, stepLimit);
+
+    try {
+      while (top >= 0) {
+        executed++;
+        AstNode node = nodes[top];
+        int index = next[top];
+
+        if (index < node.getChildCount()) {
+          next[top] = index + 1;
+          AstNode child = node.getChild(index);
+
+          if (child.isBlock()) {
+            if (fork && child.isParallel()) {
+              long taken = runBranches(child, vals);
+              if (taken < 0) {
+                // Nothing it did was kept, so carry on from just before it
+                next[top] = index;
+                suspendedTop = top;
+                steps += executed;
+                cancelled = false;
+                return RunStatus.CANCELLED;
+              }
+              executed += taken;
+            } else {
+              // Run once, and never tested, like the root
+              top++;
+              nodes[top] = child;
+              next[top] = 0;
+            }
+          } else if (child.getCondition() == null) {
+            child.runOperator(vals, big);
+            if (operators) {
+              listener.statementDone(child, vals);
+            }
+          } else if (child.testCondition(vals, big) == 1) {
+            if (memo != null && memo.runLoop(child, vals)) {
+              // Every iteration done in one go
+              continue;
+            }
+            if (listener != null) {
+              listener.loopPassed(child, vals);
+            }
+            top++;
+            nodes[top] = child;
+            next[top] = 0;
+          } else if (listener != null) {
+            // Never entered, but still counts as a finished statement
+            listener.statementDone(child, vals);
+          }
+        } else if (top > 0 && node.testCondition(vals, big) == 1) {
+          // End of the body; go round again
+          if (listener != null) {
+            listener.loopPassed(node, vals);
+          }
+          next[top] = 0;
+
+          if (executed >= checkAt) {
+            RunStatus status = RunStatus.check(executed, stepLimit, deadline, stopRequested());
+            if (status != null) {
+              suspendedTop = top;
+              steps += executed;
+              if (status == RunStatus.CANCELLED) {
+                cancelled = false; // Seen; a later run() resumes normally
+              }
+              return status;
+            }
+            checkAt = RunStatus.nextCheck(executed, stepLimit);
+          }
+        } else {
+          if (top > 0 && listener != null && !node.isBlock()) {
+            listener.statementDone(node, vals);
+          }
+          nodes[top] = null;
+          top--;
+        }
+      }
+    } catch (NumericError e) {
+      // Only operators throw, and the one that did is the child just taken from the top frame,
+      // unless it was inside a branch that ran on its own executor, which has said where already
+      steps += executed;
+      throw e.getStatement() != 0 ? e : e.at(nodes[top].getChild(next[top] - 1).line);
+    }
+
+    steps += executed;
+    return RunStatus.FINISHED;
+  }
+
+  /**
+   * Runs every branch of par at once on the pool and waits for them all. Returns the steps they took,
+   * or -1 if one was cancelled, in which case vals are as they were.
+   */
+  private long runBranches(AstNode par, long[] vals) {
+    Branch[] tasks = branches.computeIfAbsent(par, key -> {
+      Branch[] made = new Branch[key.getChildCount()];
+      for (int i = 0; i < made.length; i++) {
+        made[i] = new Branch(key.getChild(i), this, vals.length);
+      }
+      return made;
+    });
+
+    for (Branch task : tasks) {
+      task.reinitialize();
+      task.shared = vals;
+      task.finished = false;
+      task.failure = null;
+    }
+    if (ForkJoinTask.getPool() == pool) {
+      ForkJoinTask.invokeAll(tasks); // A par inside a branch, already on the pool
+    } else {
+      waitFor(pool.submit(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+    boolean stopped = false;
+    for (Branch task : tasks) {
+      task.shared = null;
+      // The first branch's error, whichever happened first, so the same program always stops the same way
+      if (task.failure != null) {
+        throw task.failure;
+      }
+      stopped |= !task.finished;
+    }
+    if (stopped) {
+      for (Branch task : tasks) {
+        task.executor.reset(); // Started again from the beginning next time
+      }
+      return -1;
+    }
+
+    long steps = 0;
+    for (Branch task : tasks) {
+      for (int slot : task.changed) {
+        vals[slot] = task.regs[slot];
+      }
+      steps += task.executor.getSteps();
+    }
+    return steps;
+  }
+
+  /**
+   * Makes the current (or next) run stop at its next check with CANCELLED. Safe from any thread.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Waits for branches to finish. An interrupt while waiting is passed on to them, as pool threads never see
+   * it, and the thread is left interrupted once they've stopped.
+   */
+  private void waitFor(ForkJoinTask<?> branches) {
+    boolean wasInterrupted = false;
+    while (true) {
+      try {
+        branches.get();
+        break;
+      } catch (InterruptedException e) {
+        wasInterrupted = true;
+        interrupted = true;
+      } catch (ExecutionException e) {
+        // Branches catch their own RuntimeExceptions, so this is an Error
+        if (e.getCause() instanceof Error error) {
+          throw error;
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+    if (wasInterrupted) {
+      interrupted = false;
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // cancel() called on this or any executor running a par this is a branch of, or that one interrupted
+  private boolean stopRequested() {
+    if (cancelled) {
+      return true;
+    }
+    for (TreeExecutor above = parent; above != null; above = above.parent) {
+      if (above.cancelled || above.interrupted) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // True between a run stopping early and the next run() carrying on with it
+  public boolean isSuspended() {
+    return suspendedTop >= 0;
+  }
+
+  /**
+   * Where a suspended run will carry on: the index of the next child to run in the root, then in each loop
+   * or block open inside it, from the outside in. So every index but the last is one past the child that's open.
+   */
+  public int[] getPosition() {
+    if (suspendedTop < 0) {
+      throw new IllegalStateException("Nothing is suspended");
+    }
+    return Arrays.copyOf(frameNext, suspendedTop + 1);
+  }
+
+  /**
+   * Sets the executor up to carry on a run suspended at position after steps steps, e.g. by another
+   * executor for the same tree. The registers are the caller's to restore.
+   */
+  public void resumeAt(int[] position, long steps) {
+    if (position.length == 0 || position.length > frameNodes.length) {
+      throw new IllegalArgumentException("position is " + position.length + " deep; the tree is " + frameNodes.length);
+    }
+    frameNodes[0] = root;
+    for (int top = 0; top < position.length; top++) {
+      AstNode node = frameNodes[top];
+      int next = position[top];
+      boolean last = top == position.length - 1;
+      if (next < (last ? 0 : 1) || next > node.getChildCount()) {
+        throw new IllegalArgumentException("position " + Arrays.toString(position) + " is outside the tree");
+      }
+      frameNext[top] = next;
+      if (!last) {
+        AstNode open = node.getChild(next - 1);
+        if (open.getCondition() == null && !open.isBlock()) {
+          throw new IllegalArgumentException("position " + Arrays.toString(position) + " opens a statement");
+        }
+        frameNodes[top + 1] = open;
+      }
+    }
+    this.suspendedTop = position.length - 1;
+    this.steps = steps;
+  }
+
+  // Forgets a suspended run, so the next run() starts from the beginning
+  public void reset() {
+    suspendedTop = -1;
+    cancelled = false;
+  }
+
+  // Steps taken by the current run so far, over all of its slices
+  public long getSteps() {
+    return steps;
+  }
+}
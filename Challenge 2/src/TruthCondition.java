@@ -1,4 +1,4 @@
-import java.util.Hashtable;
+import java.math.BigInteger;
 
 /**
  * Essentially, denotes a specific true/false condition.
@@ -10,7 +10,10 @@ public class TruthCondition {
 
   private int op1Lit = -1;
   private int op2Lit = -1;
-  private boolean first = true;
+
+  // Register slots for op1/op2, or -1 if that side is a literal. Filled in by resolve().
+  private int slot1 = -1;
+  private int slot2 = -1;
 
   public TruthCondition(TruthTypes s_ttyp, String s_op1, String s_op2) {
     if (AstCompiler.isNumeric(s_op1)) {
@@ -28,6 +31,14 @@ public class TruthCondition {
     ttyp = s_ttyp;
   }
 
+  // Variable against a literal, as the parser produces
+  public TruthCondition(TruthTypes s_ttyp, String s_op1, int l_op2) {
+    op1 = s_op1;
+    op2 = null;
+    op2Lit = l_op2;
+    ttyp = s_ttyp;
+  }
+
   // Constant
   public TruthCondition(TruthTypes s_ttyp, int l_op1, int l_op2) {
     op1 = null;
@@ -37,25 +48,67 @@ public class TruthCondition {
     ttyp = s_ttyp;
   }
 
+  public TruthTypes getType() {
+    return ttyp;
+  }
+
+  // Null if the operand is a literal
+  public String getOp1() {
+    return op1;
+  }
+
+  public String getOp2() {
+    return op2;
+  }
+
+  public int getOp1Lit() {
+    return op1Lit;
+  }
+
+  public int getOp2Lit() {
+    return op2Lit;
+  }
+
+  // -1 if the operand is a literal
+  public int getSlot1() {
+    return slot1;
+  }
+
+  public int getSlot2() {
+    return slot2;
+  }
+
+  /**
+   * Swaps variable names for register slots. Must be called before testTrue().
+   */
+  public void resolve(SymbolTable symbols) {
+    if (op1 != null) {
+      slot1 = symbols.slotOf(op1);
+    }
+    if (op2 != null) {
+      slot2 = symbols.slotOf(op2);
+    }
+  }
+
   /**
    * Tests this statement based on typ, operator, operand
    */
-  public boolean testTrue(Hashtable<String, Integer> vals) {
+  public boolean testTrue(long[] vals) {
     // Get from vals if a variable else use literal value
     // If the condition is ONCE, then it doesn't need either, so don't fetch
 
-    int op1Got = -1;
-    int op2Got = -1;
+    long op1Got = -1;
+    long op2Got = -1;
     if (ttyp != TruthTypes.ONCE) {
-      op1Got = op1 == null ? op1Lit : vals.get(op1);
-      op2Got = op2 == null ? op2Lit : vals.get(op2);
+      op1Got = slot1 < 0 ? op1Lit : vals[slot1];
+      op2Got = slot2 < 0 ? op2Lit : vals[slot2];
     }
 
     switch (ttyp) {
       case ONCE -> {
-        boolean firstMade = first;
-        first = false;
-        return firstMade;
+        // Only the root has this, and executors run its body once without testing it.
+        // Keeping no "first time" flag here means a compiled tree can be shared and rerun.
+        return false;
       }
       case IS -> {
         return op1Got == op2Got;
@@ -69,8 +122,39 @@ public class TruthCondition {
       case LT -> {
         return op1Got < op2Got;
       }
+      case DIVISIBLE -> {
+        return divisible(op1Got, op2Got);
+      }
     }
 
     return false;
   }
-}
\ No newline at end of file
+
+  /**
+   * True if stepping a by -b will land exactly on 0 after a positive number of steps,
+   * i.e. both are non-zero, have the same sign and b divides a.
+   */
+  public static boolean divisible(long a, long b) {
+    return a != 0 && b != 0 && (a > 0) == (b > 0) && a % b == 0;
+  }
+
+  /**
+   * testTrue for NumericMode.BIG, where either side might have been promoted to a BigInteger.
+   */
+  public boolean testTrue(long[] vals, BigInteger[] big) {
+    if ((slot1 < 0 || big[slot1] == null) && (slot2 < 0 || big[slot2] == null)) {
+      return testTrue(vals);
+    }
+
+    BigInteger a = slot1 < 0 ? BigInteger.valueOf(op1Lit) : Operator.value(vals, big, slot1);
+    BigInteger b = slot2 < 0 ? BigInteger.valueOf(op2Lit) : Operator.value(vals, big, slot2);
+    return switch (ttyp) {
+      case ONCE -> false;
+      case IS -> a.equals(b);
+      case NOT -> !a.equals(b);
+      case GT -> a.compareTo(b) > 0;
+      case LT -> a.compareTo(b) < 0;
+      case DIVISIBLE -> a.signum() != 0 && a.signum() == b.signum() && a.remainder(b).signum() == 0;
+    };
+  }
+}
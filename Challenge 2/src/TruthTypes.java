@@ -2,5 +2,6 @@
  * Enum for easier indexing
  */
 public enum TruthTypes {
-  ONCE, NOT, IS, GT, LT
+  ONCE, NOT, IS, GT, LT,
+  DIVISIBLE // Compiler-generated only, see LoopOptimizer
 }
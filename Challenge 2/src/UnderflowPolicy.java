@@ -0,0 +1,7 @@
+/**
+ * What happens when a variable would go below zero. Bare Bones is meant to work on natural numbers,
+ * but programs written against this interpreter have always been allowed negatives, so that's the default.
+ */
+public enum UnderflowPolicy {
+  ALLOW, ERROR, SATURATE
+}
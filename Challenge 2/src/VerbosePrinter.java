@@ -0,0 +1,67 @@
+import java.io.PrintStream;
+import java.math.BigInteger;
+
+/**
+ * Prints what verbose mode shows: each statement as it finishes, or each time a loop passes its test,
+ * followed by every variable. Output is built up in one StringBuilder per step and handed to out in one go,
+ * so give it a buffered stream and flush it at the end.
+ * TraceDecoder uses the same printer, so a decoded trace reads exactly like a verbose run.
+ */
+public class VerbosePrinter implements ExecutionListener {
+  private final SourceMap lines;
+  private final SymbolTable symbols;
+  private final PrintStream out;
+  private final BigInteger[] big; // For NumericMode.BIG, else null
+  private final StringBuilder text = new StringBuilder();
+
+  public VerbosePrinter(SourceMap lines, SymbolTable symbols, PrintStream out) {
+    this(lines, symbols, out, null);
+  }
+
+  public VerbosePrinter(SourceMap lines, SymbolTable symbols, PrintStream out, BigInteger[] big) {
+    this.lines = lines;
+    this.symbols = symbols;
+    this.out = out;
+    this.big = big;
+  }
+
+  @Override
+  public void loopPassed(AstNode loop, long[] vals) {
+    printLoopPassed(loop.line, vals);
+  }
+
+  @Override
+  public void statementDone(AstNode node, long[] vals) {
+    printStatement(node.line, vals);
+  }
+
+  public void printLoopPassed(int statement, long[] vals) {
+    text.setLength(0);
+    text.append("\nLine ").append(lines.lineOf(statement)).append(" - ").append(lines.text(statement))
+        .append(";  Control statement passed, so looping inside...\n\n");
+    appendVariables(vals);
+  }
+
+  public void printStatement(int statement, long[] vals) {
+    text.setLength(0);
+    text.append("\nLine ").append(lines.lineOf(statement)).append(" - ").append(lines.text(statement))
+        .append(";\n\n");
+    appendVariables(vals);
+  }
+
+  // The last line of every step; the name -> value pairs, one per line
+  private void appendVariables(long[] vals) {
+    for (int i = 0; i < symbols.size(); i++) {
+      if (!SymbolTable.isHidden(symbols.nameOf(i))) {
+        text.append(symbols.nameOf(i)).append(": ");
+        if (big != null && big[i] != null) {
+          text.append(big[i]);
+        } else {
+          text.append(vals[i]);
+        }
+        text.append('\n');
+      }
+    }
+    out.print(text);
+  }
+}
@@ -0,0 +1,237 @@
+/**
+ * Runs a BytecodeProgram with a single non-recursive dispatch loop.
+ * Like TreeExecutor, nothing here allocates or recurses, however deep the loops are nested.
+ * The program is never modified, so many machines can share one; each machine is for one thread at a time.
+ *
+ * A run can be given a step limit and a deadline, and stopped from another thread with cancel()
+ * or Thread.interrupt(). All of that is only looked at when a loop jumps back to its body, since
+ * straight-line code always ends on its own; so a run can go a little past its step limit.
+ * A run that stops early is suspended: the machine keeps its pc, the registers keep the variables,
+ * and the next run() carries on from there. That's what lets BatchRunner time-slice programs.
+ */
+public class VirtualMachine {
+  private final BytecodeProgram program;
+  private long steps = 0;
+  private int pc = 0; // Where a suspended run carries on
+  private boolean suspended = false;
+  private volatile boolean cancelled = false;
+
+  public VirtualMachine(BytecodeProgram program) {
+    this.program = program;
+  }
+
+  /**
+   * Runs the program to completion against regs, which must come from program.newRegisters().
+   * Only stops early if the thread is interrupted or cancel() is called.
+   */
+  public RunStatus run(long[] regs) {
+    return run(regs, Long.MAX_VALUE, 0);
+  }
+
+  /**
+   * Runs the program, or carries on with a suspended run, until it halts, has executed about
+   * stepLimit more instructions, System.nanoTime() passes deadline (0 for no deadline), or it's cancelled.
+   */
+  public RunStatus run(long[] regs, long stepLimit, long deadline) {
+    final int[] code = program.code;
+    int pc = suspended ? this.pc : 0;
+    if (!suspended) {
+      steps = 0;
+    }
+    long executed = 0;
+    long checkAt = RunStatus.nextCheck(0, stepLimit);
+
+    while (true) {
+      executed++;
+
+      switch (code[pc]) {
+        case BytecodeProgram.HALT -> {
+          steps += executed;
+          suspended = false;
+          return RunStatus.FINISHED;
+        }
+        case BytecodeProgram.CLEAR -> {
+          regs[code[pc + 1]] = 0;
+          pc += 2;
+        }
+        case BytecodeProgram.INCR -> {
+          regs[code[pc + 1]]++;
+          pc += 2;
+        }
+        case BytecodeProgram.DECR -> {
+          regs[code[pc + 1]]--;
+          pc += 2;
+        }
+        case BytecodeProgram.ADD -> {
+          regs[code[pc + 1]] += regs[code[pc + 2]];
+          pc += 3;
+        }
+        case BytecodeProgram.SUB -> {
+          regs[code[pc + 1]] -= regs[code[pc + 2]];
+          pc += 3;
+        }
+        case BytecodeProgram.MUL -> {
+          regs[code[pc + 1]] *= regs[code[pc + 2]];
+          pc += 3;
+        }
+        case BytecodeProgram.DIV -> {
+          regs[code[pc + 1]] /= regs[code[pc + 2]];
+          pc += 3;
+        }
+        case BytecodeProgram.INCDEC -> {
+          regs[code[pc + 1]]++;
+          regs[code[pc + 2]]--;
+          pc += 3;
+        }
+        case BytecodeProgram.INCINC -> {
+          regs[code[pc + 1]]++;
+          regs[code[pc + 2]]++;
+          pc += 3;
+        }
+        // Only ever jumps forward, to a loop's test
+        case BytecodeProgram.JMP -> pc = code[pc + 1];
+        // Conditional jumps only ever go back to a loop's body, so these are the only places budgets are checked
+        case BytecodeProgram.JNZ -> {
+          if (regs[code[pc + 1]] == 0) {
+            pc += 3;
+          } else {
+            pc = code[pc + 2];
+            if (executed >= checkAt) {
+              RunStatus status = stopAt(pc, executed, stepLimit, deadline);
+              if (status != null) {
+                return status;
+              }
+              checkAt = RunStatus.nextCheck(executed, stepLimit);
+            }
+          }
+        }
+        case BytecodeProgram.JNE -> {
+          if (regs[code[pc + 1]] == regs[code[pc + 2]]) {
+            pc += 4;
+          } else {
+            pc = code[pc + 3];
+            if (executed >= checkAt) {
+              RunStatus status = stopAt(pc, executed, stepLimit, deadline);
+              if (status != null) {
+                return status;
+              }
+              checkAt = RunStatus.nextCheck(executed, stepLimit);
+            }
+          }
+        }
+        case BytecodeProgram.JEQ -> {
+          if (regs[code[pc + 1]] != regs[code[pc + 2]]) {
+            pc += 4;
+          } else {
+            pc = code[pc + 3];
+            if (executed >= checkAt) {
+              RunStatus status = stopAt(pc, executed, stepLimit, deadline);
+              if (status != null) {
+                return status;
+              }
+              checkAt = RunStatus.nextCheck(executed, stepLimit);
+            }
+          }
+        }
+        case BytecodeProgram.JGT -> {
+          if (regs[code[pc + 1]] <= regs[code[pc + 2]]) {
+            pc += 4;
+          } else {
+            pc = code[pc + 3];
+            if (executed >= checkAt) {
+              RunStatus status = stopAt(pc, executed, stepLimit, deadline);
+              if (status != null) {
+                return status;
+              }
+              checkAt = RunStatus.nextCheck(executed, stepLimit);
+            }
+          }
+        }
+        case BytecodeProgram.JLT -> {
+          if (regs[code[pc + 1]] >= regs[code[pc + 2]]) {
+            pc += 4;
+          } else {
+            pc = code[pc + 3];
+            if (executed >= checkAt) {
+              RunStatus status = stopAt(pc, executed, stepLimit, deadline);
+              if (status != null) {
+                return status;
+              }
+              checkAt = RunStatus.nextCheck(executed, stepLimit);
+            }
+          }
+        }
+        case BytecodeProgram.JDV -> {
+          if (!TruthCondition.divisible(regs[code[pc + 1]], regs[code[pc + 2]])) {
+            pc += 4;
+          } else {
+            pc = code[pc + 3];
+            if (executed >= checkAt) {
+              RunStatus status = stopAt(pc, executed, stepLimit, deadline);
+              if (status != null) {
+                return status;
+              }
+              checkAt = RunStatus.nextCheck(executed, stepLimit);
+            }
+          }
+        }
+        default -> throw new IllegalStateException("Bad opcode " + code[pc] + " at pc " + pc);
+      }
+    }
+  }
+
+  // At a back-edge with a check due: suspends the run at pc if it has to stop, and says why
+  private RunStatus stopAt(int pc, long executed, long stepLimit, long deadline) {
+    RunStatus status = RunStatus.check(executed, stepLimit, deadline, cancelled);
+    if (status != null) {
+      this.pc = pc;
+      steps += executed;
+      suspended = true;
+      if (status == RunStatus.CANCELLED) {
+        cancelled = false; // Seen; a later run() resumes normally
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Makes the current (or next) run stop at its next check with CANCELLED. Safe from any thread.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  // True between a run stopping early and the next run() carrying on with it
+  public boolean isSuspended() {
+    return suspended;
+  }
+
+  // Where a suspended run will carry on
+  public int getPc() {
+    return pc;
+  }
+
+  /**
+   * Sets the machine up to carry on a run suspended at pc after steps instructions,
+   * e.g. by another machine for the same program. The registers are the caller's to restore.
+   */
+  public void resumeAt(int pc, long steps) {
+    if (pc < 0 || pc >= program.code.length) {
+      throw new IllegalArgumentException("pc " + pc + " is outside the program");
+    }
+    this.pc = pc;
+    this.steps = steps;
+    this.suspended = true;
+  }
+
+  // Forgets a suspended run, so the next run() starts from the beginning
+  public void reset() {
+    suspended = false;
+    cancelled = false;
+  }
+
+  // Instructions executed by the current run so far (all of its slices), including the HALT if it got that far
+  public long getSteps() {
+    return steps;
+  }
+}